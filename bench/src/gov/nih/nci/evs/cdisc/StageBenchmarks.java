@@ -0,0 +1,194 @@
+/* JMH benchmarks for the stages of GenerateCDISC.generate.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One benchmark per stage of a report, each run against a
+ * {@link SyntheticOwlGenerator} file of the configured size: codelist
+ * discovery, the Concept_In_Subset scan, element extraction from the KB, the
+ * root-scoped extraction of -lazy that replaces both, sorting the codelist
+ * names and submission values (in the default order and for a locale),
+ * rendering (phases 1 and 2 plus formatting every codelist from the sorted
+ * indexes), and the .txt and .xls writers. The streaming loader is measured as
+ * well, as the alternative to the KB load. The OWL file and KB are built once
+ * per trial; each stage starts from cold caches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class StageBenchmarks {
+
+	@Param({ "20000" })
+	public int concepts;
+
+	@Param({ "500" })
+	public int codelists;
+
+	@Param({ "20" })
+	public int members;
+
+	@Param({ "4" })
+	public int synonyms;
+
+	@Param({ "1" })
+	public int threads;
+
+	private File dir;
+	private File owl;
+	private String root;
+	private GenerateCDISC report;
+	private ArrayList<CodelistBlock> blocks;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dir = File.createTempFile("cdisc-bench", "");
+		dir.delete();
+		dir.mkdirs();
+		owl = new File(dir, "synthetic.owl");
+
+		SyntheticOwlGenerator generator = new SyntheticOwlGenerator();
+		generator.setConcepts(concepts);
+		generator.setCodelists(codelists);
+		generator.setMembers(members);
+		generator.setSynonyms(synonyms);
+		generator.write(owl);
+		root = generator.getRoot();
+
+		report = new GenerateCDISC();
+		report.setThreads(threads);
+		report.init(owl.getPath());
+
+		//Rendered once for the writer benchmarks
+		blocks = new ArrayList<CodelistBlock>();
+		for( CodelistExtractor extractor : report.buildExtractors(root) ) {
+			blocks.add(extractor.call());
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if( files != null ) {
+			for( File file : files ) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public Vector<URI> discovery() {
+		return report.kb.getAllDescendantsForConcept(report.createURI(root));
+	}
+
+	@Benchmark
+	public SubsetIndex subsetScan() {
+		return new SubsetIndex(report.kb);
+	}
+
+	@Benchmark
+	public CdiscModel extraction() {
+		//Start from an empty cache, or every concept after the first invocation is a hit
+		report.conceptCache = null;
+		CdiscModel model = new CdiscModel();
+		new ModelExtractor(report, threads).extract(root, model);
+		return model;
+	}
+
+	@Benchmark
+	public CdiscModel lazyExtraction() {
+		//-lazy: members from each codelist's associations, no KB-wide scan and no member records
+		report.conceptCache = null;
+		report.rootScope = null;
+		report.setLazy(true);
+		try {
+			CdiscModel model = new CdiscModel();
+			new ModelExtractor(report, threads).extract(root, model);
+			return model;
+		} finally {
+			report.setLazy(false);
+		}
+	}
+
+	@Benchmark
+	public CdiscModel sort() {
+		//Sort keys and indexes are kept in the model, drop them so each invocation sorts
+		CdiscModel model = report.getModel();
+		model.clearSort();
+		report.sort(root);
+		return model;
+	}
+
+	@Benchmark
+	public CdiscModel localeSort() {
+		CdiscModel model = report.getModel();
+		model.setCollation(Collation.forName("en"));
+		model.clearSort();
+		try {
+			report.sort(root);
+			return model;
+		} finally {
+			model.setCollation(Collation.DEFAULT);
+		}
+	}
+
+	@Benchmark
+	public void render(Blackhole blackhole) {
+		for( CodelistExtractor extractor : report.buildExtractors(root) ) {
+			blackhole.consume(extractor.call());
+		}
+	}
+
+	@Benchmark
+	public void writeTxt() throws IOException {
+		write(new TabDelimitedSink(new File(dir, "bench.txt")));
+	}
+
+	@Benchmark
+	public void writeXls() throws IOException {
+		write(new ExcelSink(new File(dir, "bench.xls"), "bench"));
+	}
+
+	@Benchmark
+	public CdiscModel streamLoad() throws IOException {
+		return new OwlStreamLoader(report.getNamespace()).load(owl.getPath(), Collections.singleton(root));
+	}
+
+	private void write(ReportSink sink) throws IOException {
+		sink.header(GenerateCDISC.HEADER);
+		for( CodelistBlock block : blocks ) {
+			sink.codelist(block);
+		}
+		sink.close();
+	}
+}
@@ -0,0 +1,316 @@
+/* Writes synthetic Thesaurus-shaped OWL files for benchmarking.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Generates an RDF/XML file laid out like the NCIt export the report reads:
+ * annotation properties with their labels, a CDISC root, codelists under it
+ * with NCI and CDISC synonyms, Extensible_List and a CDISC definition, and a
+ * pool of concepts of which some are Concept_In_Subset of the codelists.
+ * FULL_SYN and ALT_DEFINITION qualifiers are written as owl:Axiom
+ * annotations, as in the production export. The same seed and counts always
+ * give the same file, so benchmark numbers can be compared between changes.
+ * <p>
+ * Usage: SyntheticOwlGenerator [-concepts n] [-codelists n] [-members n]
+ * [-synonyms n] [-seed n] [-root code] output.owl
+ */
+public class SyntheticOwlGenerator {
+
+	public static final String NAMESPACE = "http://ncicb.nci.nih.gov/xml/owl/EVS/Thesaurus.owl";
+	public static final String DEFAULT_ROOT = "C_SYNTHETIC";
+
+	private static final String[] WORDS = { "Alpha", "Beta", "Gamma", "Delta", "Epsilon", "Zeta", "Eta", "Theta",
+			"Iota", "Kappa", "Lambda", "Mu", "Nu", "Xi", "Omicron", "Pi", "Rho", "Sigma", "Tau", "Upsilon" };
+
+	private int concepts = 10000;
+	private int codelists = 500;
+	private int members = 20;
+	private int synonyms = 4;
+	private long seed = 1;
+	private String root = DEFAULT_ROOT;
+
+	public static void main(String[] args) {
+		SyntheticOwlGenerator generator = new SyntheticOwlGenerator();
+		int i = 0;
+		try {
+			for( ; i < args.length - 1 && args[i].startsWith("-"); i++ ) {
+				String option = args[i];
+				if( option.equals("-concepts") ) {
+					generator.setConcepts(Integer.parseInt(args[++i]));
+				}
+				else if( option.equals("-codelists") ) {
+					generator.setCodelists(Integer.parseInt(args[++i]));
+				}
+				else if( option.equals("-members") ) {
+					generator.setMembers(Integer.parseInt(args[++i]));
+				}
+				else if( option.equals("-synonyms") ) {
+					generator.setSynonyms(Integer.parseInt(args[++i]));
+				}
+				else if( option.equals("-seed") ) {
+					generator.setSeed(Long.parseLong(args[++i]));
+				}
+				else if( option.equals("-root") ) {
+					generator.setRoot(args[++i]);
+				}
+				else {
+					usage("Unknown option " + option);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage("Not a number: " + args[i]);
+		}
+		if( i != args.length - 1 ) {
+			usage(null);
+		}
+		try {
+			long start = System.currentTimeMillis();
+			generator.write(new File(args[i]));
+			System.out.println("Wrote " + args[i] + " in " + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void usage(String message) {
+		if( message != null ) {
+			System.out.println(message);
+		}
+		System.out.println("Usage: SyntheticOwlGenerator [-concepts n] [-codelists n] [-members n] [-synonyms n] [-seed n] [-root code] output.owl");
+		System.exit(0);
+	}
+
+	/**
+	 * @param owl
+	 * 			The file to write
+	 */
+	public void write(File owl) throws IOException {
+		Random random = new Random(seed);
+
+		//Choose the members first so each concept can list the subsets it is in
+		ArrayList<ArrayList<Integer>> subsets = new ArrayList<ArrayList<Integer>>();
+		for( int c = 0; c < concepts; c++ ) {
+			subsets.add(null);
+		}
+		int perCodelist = Math.min(members, concepts);
+		for( int list = 0; list < codelists; list++ ) {
+			for( int m = 0; m < perCodelist; m++ ) {
+				int c = random.nextInt(concepts);
+				if( subsets.get(c) == null ) {
+					subsets.set(c, new ArrayList<Integer>(2));
+				}
+				if( !subsets.get(c).contains(list) ) {
+					subsets.get(c).add(list);
+				}
+			}
+		}
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(owl), "UTF-8"), 1 << 16));
+		try {
+			out.println("<?xml version=\"1.0\"?>");
+			out.println("<rdf:RDF xmlns=\"" + NAMESPACE + "#\" xml:base=\"" + NAMESPACE + "\""
+					+ " xmlns:owl=\"http://www.w3.org/2002/07/owl#\""
+					+ " xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\""
+					+ " xmlns:rdfs=\"http://www.w3.org/2000/01/rdf-schema#\">");
+			out.println("    <owl:Ontology rdf:about=\"" + NAMESPACE + "\"/>");
+			annotationProperty(out, "P90", "FULL_SYN");
+			annotationProperty(out, "P97", "DEFINITION");
+			annotationProperty(out, "P108", "Preferred_Name");
+			annotationProperty(out, "P325", "ALT_DEFINITION");
+			annotationProperty(out, "P361", "Extensible_List");
+			annotationProperty(out, "P378", "Definition Source");
+			annotationProperty(out, "P383", "Term Type");
+			annotationProperty(out, "P384", "Term Source");
+			annotationProperty(out, "P385", "Source Code");
+			annotationProperty(out, "A8", "Concept_In_Subset");
+
+			//Most of the Thesaurus sits outside the CDISC tree
+			out.println("    <owl:Class rdf:about=\"" + uri("C1") + "\">");
+			property(out, "P108", "Conceptual Entity");
+			out.println("    </owl:Class>");
+
+			out.println("    <owl:Class rdf:about=\"" + uri(root) + "\">");
+			out.println("        <rdfs:subClassOf rdf:resource=\"" + uri("C1") + "\"/>");
+			property(out, "P108", "CDISC Synthetic Terminology");
+			out.println("    </owl:Class>");
+
+			for( int list = 0; list < codelists; list++ ) {
+				writeCodelist(out, random, list);
+			}
+			for( int c = 0; c < concepts; c++ ) {
+				writeConcept(out, random, c, subsets.get(c));
+			}
+			out.println("</rdf:RDF>");
+		} finally {
+			out.close();
+		}
+		if( out.checkError() ) {
+			throw new IOException("Couldn't write " + owl);
+		}
+	}
+
+	private void writeCodelist(PrintWriter out, Random random, int list) {
+		String code = codelistCode(list);
+		String name = phrase(random, 2) + " Codelist " + list;
+		String ab = "CL" + list;
+		out.println("    <owl:Class rdf:about=\"" + uri(code) + "\">");
+		out.println("        <rdfs:subClassOf rdf:resource=\"" + uri(root) + "\"/>");
+		property(out, "P108", name);
+		property(out, "P90", name);
+		property(out, "P90", ab);
+		property(out, "P90", shortName(list));
+		property(out, "P90", name);
+		String definition = "Terminology codelist used with " + phrase(random, 3).toLowerCase() + ".";
+		property(out, "P325", definition);
+		property(out, "P361", random.nextInt(3) == 0 ? "No" : "Yes");
+		out.println("    </owl:Class>");
+		axiom(out, code, "P90", name, "P383", "PT", "P384", "NCI");
+		axiom(out, code, "P90", ab, "P383", "AB", "P384", "NCI");
+		axiom(out, code, "P90", shortName(list), "P383", "PT", "P384", "CDISC");
+		axiom(out, code, "P90", name, "P383", "SY", "P384", "CDISC");
+		axiom(out, code, "P325", definition, "P378", "CDISC");
+	}
+
+	private void writeConcept(PrintWriter out, Random random, int c, ArrayList<Integer> lists) {
+		String code = conceptCode(c);
+		String name = phrase(random, 2) + " " + c;
+		out.println("    <owl:Class rdf:about=\"" + uri(code) + "\">");
+		out.println("        <rdfs:subClassOf rdf:resource=\"" + uri("C1") + "\"/>");
+		property(out, "P108", name);
+		ArrayList<String[]> axioms = new ArrayList<String[]>();
+		property(out, "P90", name);
+		axioms.add(new String[] { name, "PT", "NCI", null });
+		if( lists != null ) {
+			//One submission value per codelist, told apart by the codelist's NCI AB
+			for( Integer list : lists ) {
+				String submission = phrase(random, 1).toUpperCase() + c + (lists.size() > 1 ? "_" + list : "");
+				property(out, "P90", submission);
+				axioms.add(new String[] { submission, "PT", "CDISC", lists.size() > 1 ? "CL" + list : null });
+			}
+			for( int s = 1; s < synonyms; s++ ) {
+				String synonym = phrase(random, 1 + random.nextInt(2)) + " " + s;
+				property(out, "P90", synonym);
+				axioms.add(new String[] { synonym, "SY", "CDISC", null });
+			}
+		}
+		String definition = null;
+		if( lists != null && random.nextInt(10) > 0 ) {
+			definition = "A " + phrase(random, 4).toLowerCase() + " & " + phrase(random, 2).toLowerCase() + ".";
+			property(out, "P325", definition);
+		}
+		if( random.nextInt(50) == 0 ) {
+			out.println("        <owl:deprecated rdf:datatype=\"http://www.w3.org/2001/XMLSchema#boolean\">true</owl:deprecated>");
+		}
+		if( lists != null ) {
+			for( Integer list : lists ) {
+				out.println("        <A8 rdf:resource=\"" + uri(codelistCode(list)) + "\"/>");
+			}
+		}
+		out.println("    </owl:Class>");
+		for( String[] axiom : axioms ) {
+			if( axiom[3] != null ) {
+				axiom(out, code, "P90", axiom[0], "P383", axiom[1], "P384", axiom[2], "P385", axiom[3]);
+			}
+			else {
+				axiom(out, code, "P90", axiom[0], "P383", axiom[1], "P384", axiom[2]);
+			}
+		}
+		if( definition != null ) {
+			axiom(out, code, "P325", definition, "P378", "CDISC");
+		}
+	}
+
+	private static void annotationProperty(PrintWriter out, String code, String label) {
+		out.println("    <owl:AnnotationProperty rdf:about=\"" + uri(code) + "\">");
+		out.println("        <rdfs:label>" + escape(label) + "</rdfs:label>");
+		out.println("    </owl:AnnotationProperty>");
+	}
+
+	private static void property(PrintWriter out, String code, String value) {
+		out.println("        <" + code + ">" + escape(value) + "</" + code + ">");
+	}
+
+	/**
+	 * @param qualifiers
+	 * 			Qualifier code and value pairs
+	 */
+	private static void axiom(PrintWriter out, String source, String property, String target, String... qualifiers) {
+		out.println("    <owl:Axiom>");
+		out.println("        <owl:annotatedSource rdf:resource=\"" + uri(source) + "\"/>");
+		out.println("        <owl:annotatedProperty rdf:resource=\"" + uri(property) + "\"/>");
+		out.println("        <owl:annotatedTarget>" + escape(target) + "</owl:annotatedTarget>");
+		for( int i = 0; i < qualifiers.length; i += 2 ) {
+			property(out, qualifiers[i], qualifiers[i + 1]);
+		}
+		out.println("    </owl:Axiom>");
+	}
+
+	private static String phrase(Random random, int words) {
+		StringBuilder phrase = new StringBuilder();
+		for( int i = 0; i < words; i++ ) {
+			if( i > 0 ) phrase.append(' ');
+			phrase.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return phrase.toString();
+	}
+
+	private static String shortName(int list) {
+		return "SYN" + list;
+	}
+
+	public static String codelistCode(int list) {
+		return "C" + (100000 + list);
+	}
+
+	public static String conceptCode(int c) {
+		return "C" + (1000000 + c);
+	}
+
+	private static String uri(String code) {
+		return NAMESPACE + "#" + code;
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	public void setConcepts(int concepts) {
+		this.concepts = concepts;
+	}
+
+	public void setCodelists(int codelists) {
+		this.codelists = codelists;
+	}
+
+	public void setMembers(int members) {
+		this.members = members;
+	}
+
+	public void setSynonyms(int synonyms) {
+		this.synonyms = synonyms;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setRoot(String root) {
+		this.root = root;
+	}
+
+	public String getRoot() {
+		return root;
+	}
+}
@@ -0,0 +1,103 @@
+/* Codelist blocks kept from one render to the next.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The blocks of the last render, each with the extractor that built it, so a
+ * render of a new export only builds the blocks of the codelists whose inputs
+ * changed and takes the rest as they were. A block is reused when the new
+ * extractor for the same listing {@link CodelistExtractor#hasSameInputs} the
+ * old one, which compares the records of the two models directly, so the
+ * previous model is kept until the blocks built from it are dropped. Blocks not
+ * asked for since the last {@link #retainUsed()} are dropped by it, so the
+ * cache holds one render's worth of blocks.
+ */
+public class BlockCache {
+
+	private final HashMap<String,CodelistExtractor> extractors = new HashMap<String,CodelistExtractor>();
+	private final HashMap<String,CodelistBlock> blocks = new HashMap<String,CodelistBlock>();
+	private final HashSet<String> used = new HashSet<String>();
+	private final ArrayList<String> built = new ArrayList<String>();
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * @param extractor
+	 * @return the listing the extractor builds, the same from one model to the next
+	 */
+	private static String key(CodelistExtractor extractor) {
+		return extractor.getCodelistConcept() + " " + extractor.getListing() + " " + extractor.getCodelistName()
+				+ (extractor.isInternal() ? " internal" : "");
+	}
+
+	/**
+	 * @param extractor
+	 * 			The extractor that would build the block, before it is called
+	 * @return the block built for the same listing from the same inputs, or null
+	 */
+	public synchronized CodelistBlock get(CodelistExtractor extractor) {
+		String key = key(extractor);
+		CodelistExtractor previous = extractors.get(key);
+		if( previous == null || !previous.hasSameInputs(extractor) ) {
+			misses++;
+			return null;
+		}
+		hits++;
+		used.add(key);
+		return blocks.get(key);
+	}
+
+	/**
+	 * @param extractor
+	 * @param block
+	 * 			The block the extractor built after {@link #get(CodelistExtractor)} missed
+	 */
+	public synchronized void put(CodelistExtractor extractor, CodelistBlock block) {
+		String key = key(extractor);
+		extractors.put(key, extractor);
+		blocks.put(key, block);
+		used.add(key);
+		built.add(block.getCodelistName());
+	}
+
+	/**
+	 * Drops the blocks, and the extractors and models they were built with,
+	 * that weren't asked for or built since the last call, and starts counting
+	 * again.
+	 */
+	public synchronized void retainUsed() {
+		extractors.keySet().retainAll(used);
+		blocks.keySet().retainAll(used);
+		used.clear();
+		built.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * @return the names of the codelists built since {@link #retainUsed()}, in the order they were built
+	 */
+	public synchronized List<String> getBuilt() {
+		return new ArrayList<String>(built);
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return blocks.size();
+	}
+}
@@ -0,0 +1,341 @@
+/* The part of the ontology a CDISC report is built from.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * For each root, its codelists in KB order; for each codelist, its
+ * Concept_In_Subset members in index order; and a {@link ConceptRecord} for
+ * every root, codelist and member. That is all generate needs, so a model
+ * extracted once can be rendered, saved as a snapshot and re-rendered without
+ * the OWLKb.
+ * <p>
+ * Concepts are numbered by {@link ConceptCodes}, and the records and member
+ * lists are kept in arrays indexed by those ids rather than in maps keyed by
+ * code, so a code is held once, as a number where it can be, however many
+ * codelists and roots it is in.
+ * <p>
+ * The model also keeps how its terms sort: a {@link SortKey} per term under
+ * its {@link Collation}, and the {@link SortIndex} of each root's codelist names
+ * and each codelist's submission values once a report has needed them.
+ */
+public class CdiscModel {
+
+	private final LinkedHashMap<String,List<String>> root2Codelists = new LinkedHashMap<String,List<String>>();
+	private final ConceptCodes codes = new ConceptCodes();
+	//Indexed by concept id
+	private ConceptRecord[] records = new ConceptRecord[1024];
+	private int[][] members = new int[1024][];
+	private SortIndex[] submissions = new SortIndex[1024];
+	private int recordCount = 0;
+	private int codelistCount = 0;
+	private volatile ConceptCache resolver = null;
+	private volatile Collation collation = Collation.DEFAULT;
+	private final ConcurrentHashMap<String,SortKey> sortKeys = new ConcurrentHashMap<String,SortKey>();
+	private final HashMap<String,SortIndex> listings = new HashMap<String,SortIndex>();
+	
+	/**
+	 * @param root
+	 * 			The root concept code
+	 * @param codelists
+	 * 			Codes of the codelists under the root, in KB order
+	 */
+	public synchronized void addRoot(String root, List<String> codelists) {
+		root2Codelists.put(root, Collections.unmodifiableList(new ArrayList<String>(codelists)));
+		listings.remove(root);
+	}
+	
+	public synchronized boolean hasRoot(String root) {
+		return root2Codelists.containsKey(root);
+	}
+	
+	public synchronized Set<String> getRoots() {
+		return new LinkedHashSet<String>(root2Codelists.keySet());
+	}
+	
+	/**
+	 * @param root
+	 * @return the codelist codes under the root, in KB order
+	 */
+	public synchronized List<String> getCodelists(String root) {
+		return root2Codelists.get(root);
+	}
+	
+	/**
+	 * @param root
+	 * @return the Preferred_Name of the root, which names the report files
+	 */
+	public String getRootName(String root) {
+		return record(root).getPreferredName();
+	}
+	
+	/**
+	 * @param codelist
+	 * 			The codelist code
+	 * @param members
+	 * 			Member codes, in index order
+	 */
+	public synchronized void setMembers(String codelist, List<String> members) {
+		int[] ids = new int[members.size()];
+		for( int i = 0; i < ids.length; i++ ) {
+			ids[i] = codes.id(members.get(i));
+		}
+		int id = codes.id(codelist);
+		grow(id);
+		if( this.members[id] == null ) {
+			codelistCount++;
+		}
+		this.members[id] = ids;
+		submissions[id] = null;
+	}
+	
+	/**
+	 * @param codelist
+	 * @return the member codes in index order, empty if the codelist has none
+	 */
+	public List<String> getMembers(String codelist) {
+		int[] ids = memberIds(codelist);
+		if( ids == null || ids.length == 0 ) {
+			return Collections.emptyList();
+		}
+		return new MemberList(ids);
+	}
+	
+	/**
+	 * @return the members of every codelist, in a map made for the call
+	 */
+	public synchronized Map<String,List<String>> getAllMembers() {
+		LinkedHashMap<String,List<String>> all = new LinkedHashMap<String,List<String>>();
+		for( int id = 0; id < members.length; id++ ) {
+			if( members[id] != null ) {
+				all.put(code(id), new MemberList(members[id]));
+			}
+		}
+		return Collections.unmodifiableMap(all);
+	}
+	
+	/**
+	 * @param code
+	 * 			The code the concept is looked up by, its URI fragment
+	 * @param record
+	 * 			The record to add. An existing record for the same code is kept.
+	 */
+	public synchronized void addConcept(String code, ConceptRecord record) {
+		int id = codes.id(code);
+		grow(id);
+		if( records[id] == null ) {
+			records[id] = record;
+			recordCount++;
+		}
+	}
+	
+	public boolean hasConcept(String code) {
+		return record(code) != null;
+	}
+	
+	public ConceptRecord getConcept(String code) {
+		ConceptRecord record = record(code);
+		if( record == null && resolver != null ) {
+			record = resolver.get(code);
+		}
+		return record;
+	}
+	
+	/**
+	 * For a model extracted with -lazy, which holds the roots and codelists
+	 * but leaves the members in the KB until they are written.
+	 * 
+	 * @param resolver
+	 * 			Where {@link #getConcept(String)} reads the records the model doesn't hold
+	 */
+	public void setResolver(ConceptCache resolver) {
+		this.resolver = resolver;
+	}
+	
+	public boolean isLazy() {
+		return resolver != null;
+	}
+	
+	/**
+	 * @return the records the model holds by code, in a map made for the call
+	 */
+	public synchronized Map<String,ConceptRecord> getConcepts() {
+		LinkedHashMap<String,ConceptRecord> concepts = new LinkedHashMap<String,ConceptRecord>();
+		for( int id = 0; id < records.length; id++ ) {
+			if( records[id] != null ) {
+				concepts.put(code(id), records[id]);
+			}
+		}
+		return Collections.unmodifiableMap(concepts);
+	}
+	
+	/**
+	 * @param collation
+	 * 			How terms are ordered. Changing it drops the keys and indexes made under the old one.
+	 */
+	public synchronized void setCollation(Collation collation) {
+		if( collation.getName().equals(this.collation.getName()) ) {
+			return;
+		}
+		this.collation = collation;
+		clearSort();
+	}
+	
+	/**
+	 * Drops the sort keys and indexes, so they are made again when next needed.
+	 */
+	public synchronized void clearSort() {
+		sortKeys.clear();
+		listings.clear();
+		Arrays.fill(submissions, null);
+	}
+	
+	public Collation getCollation() {
+		return collation;
+	}
+	
+	/**
+	 * @param term
+	 * 			A codelist name, submission value or synonym
+	 * @return the term's key under the model's collation, made the first time it is asked for
+	 */
+	public SortKey getSortKey(String term) {
+		SortKey key = sortKeys.get(term);
+		if( key == null ) {
+			key = collation.key(term);
+			SortKey existing = sortKeys.putIfAbsent(term, key);
+			if( existing != null ) {
+				key = existing;
+			}
+		}
+		return key;
+	}
+	
+	/**
+	 * @param key
+	 * 			A key made under the model's collation, such as one read from a snapshot
+	 */
+	public void addSortKey(SortKey key) {
+		sortKeys.putIfAbsent(key.getValue(), key);
+	}
+	
+	public Collection<SortKey> getSortKeys() {
+		return Collections.unmodifiableCollection(sortKeys.values());
+	}
+	
+	/**
+	 * @param root
+	 * @return the root's codelist names in report order, with the position of each codelist, or null if not sorted yet
+	 */
+	public synchronized SortIndex getListingIndex(String root) {
+		return listings.get(root);
+	}
+	
+	public synchronized void setListingIndex(String root, SortIndex index) {
+		listings.put(root, index);
+	}
+	
+	/**
+	 * @param codelist
+	 * @return the codelist's submission values in report order, with the position of each member, or null if not sorted yet
+	 */
+	public synchronized SortIndex getSubmissionIndex(String codelist) {
+		int id = codes.find(codelist);
+		return id == ConceptCodes.NONE || id >= submissions.length ? null : submissions[id];
+	}
+	
+	public synchronized void setSubmissionIndex(String codelist, SortIndex index) {
+		int id = codes.id(codelist);
+		grow(id);
+		submissions[id] = index;
+	}
+	
+	/**
+	 * @return the codes of the codelists with a submission index
+	 */
+	public synchronized List<String> getSubmissionIndexed() {
+		ArrayList<String> codelists = new ArrayList<String>();
+		for( int id = 0; id < submissions.length; id++ ) {
+			if( submissions[id] != null ) {
+				codelists.add(code(id));
+			}
+		}
+		return codelists;
+	}
+	
+	/**
+	 * @return number of records the model holds
+	 */
+	public synchronized int getConceptCount() {
+		return recordCount;
+	}
+	
+	/**
+	 * @return number of codelists with members set
+	 */
+	public synchronized int getCodelistCount() {
+		return codelistCount;
+	}
+	
+	private synchronized ConceptRecord record(String code) {
+		int id = codes.find(code);
+		return id == ConceptCodes.NONE || id >= records.length ? null : records[id];
+	}
+	
+	private synchronized int[] memberIds(String codelist) {
+		int id = codes.find(codelist);
+		return id == ConceptCodes.NONE || id >= members.length ? null : members[id];
+	}
+	
+	/**
+	 * @return the code of the concept, from its record if the model has one so no string is made
+	 */
+	private synchronized String code(int id) {
+		ConceptRecord record = id < records.length ? records[id] : null;
+		return record != null ? record.getCode() : codes.code(id);
+	}
+	
+	private void grow(int id) {
+		if( id >= records.length ) {
+			int length = Math.max(id + 1, records.length * 2);
+			records = Arrays.copyOf(records, length);
+			members = Arrays.copyOf(members, length);
+			submissions = Arrays.copyOf(submissions, length);
+		}
+	}
+	
+	/**
+	 * A codelist's members as codes, read from their ids as they are asked for.
+	 */
+	private class MemberList extends AbstractList<String> implements RandomAccess {
+		private final int[] ids;
+		
+		MemberList(int[] ids) {
+			this.ids = ids;
+		}
+		
+		public String get(int index) {
+			return code(ids[index]);
+		}
+		
+		public int size() {
+			return ids.length;
+		}
+	}
+}
@@ -0,0 +1,483 @@
+/* Checkpoints of a run's stages in a spill directory, for -resume.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps what each stage of a run has finished in a spill directory, so a run
+ * that dies late, in the Excel conversion or on a bad element, can be started
+ * again with -resume at the first stage that didn't finish instead of from the
+ * OWL file. The stages and their files, per root unless noted:
+ * <ul>
+ * <li>load : not a file; skipped when every root's extraction is checkpointed</li>
+ * <li>discover : &lt;root&gt;.codelists, the root record and its codelists in KB order</li>
+ * <li>subsets : subsets.bin, the {@link SubsetIndex} of the whole KB, shared by the roots</li>
+ * <li>extract : &lt;root&gt;.extract, one entry per codelist, appended as each is
+ * extracted, with the codelist's members and every record it needs</li>
+ * <li>render : &lt;root&gt;.rendered, once every report file of the root is closed</li>
+ * <li>excel : &lt;root&gt;.converted, once -xls-formatter has converted them</li>
+ * </ul>
+ * The run file holds the OWL file's length, time and SHA-256, as a snapshot
+ * does, and the options the reports depend on. Checkpoints of another OWL file
+ * are all dropped; if only the options changed, just the render and excel
+ * stages are. The hash is only worked out when a resume finds the file's time
+ * changed, or otherwise on a thread of its own while the run loads the file;
+ * checkpoints of a run that ended before it was written are only resumed while
+ * the file keeps its time. Files are written to a temporary name and moved
+ * into place, and an extract entry is only used if it was written out whole,
+ * so a crash mid-write loses at most the codelist being written.
+ */
+public class Checkpoints {
+
+	public static final String DISCOVER = "discover";
+	public static final String SUBSETS = "subsets";
+	public static final String EXTRACT = "extract";
+	public static final String RENDER = "render";
+	public static final String EXCEL = "excel";
+
+	private static final String MAGIC = "GenerateCDISC checkpoint";
+	private static final int VERSION = 2;
+	private static final String RUN = "run.bin";
+	private static final String[] SUFFIXES = { RUN, ".codelists", "subsets.bin", ".extract", ".rendered", ".converted", ".tmp" };
+
+	private final File dir;
+	private final File owl;
+	private final String settings;
+	private final HashMap<String,DataOutputStream> extracts = new HashMap<String,DataOutputStream>();
+	private final StringPool pool = new StringPool();
+
+	/**
+	 * @param dir
+	 * 			The spill directory, made if it doesn't exist
+	 * @param owlLocation
+	 * 			The OWL file the run reads
+	 * @param settings
+	 * 			The options the reports depend on, such as the profiles and formats
+	 */
+	public Checkpoints(File dir, String owlLocation, String settings) {
+		this.dir = dir;
+		this.owl = SnapshotStore.toFile(owlLocation);
+		this.settings = settings;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * @param resume
+	 * 			Whether to keep the checkpoints of an earlier run of the same OWL file.
+	 * 			Without it the directory is cleared and the run starts over.
+	 * @return true if there were checkpoints to resume from
+	 */
+	public boolean open(boolean resume) throws IOException {
+		if( owl == null || !owl.isFile() ) {
+			throw new IOException("Checkpoints need a local OWL file");
+		}
+		if( !dir.isDirectory() && !dir.mkdirs() ) {
+			throw new IOException("Couldn't make spill directory " + dir);
+		}
+		File run = new File(dir, RUN);
+		boolean resumed = false;
+		//Of the OWL file as it is now, once it is known
+		String hash = null;
+		if( resume && run.isFile() ) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+			try {
+				if( !MAGIC.equals(in.readUTF()) || in.readInt() != VERSION ) {
+					System.out.println("Checkpoints in " + dir + " are from another version, starting over");
+				}
+				else {
+					long length = in.readLong();
+					long modified = in.readLong();
+					String previousHash = in.readUTF();
+					String previousSettings = SnapshotStore.readString(in);
+					if( length == owl.length() && modified == owl.lastModified() ) {
+						resumed = true;
+						hash = previousHash;
+					}
+					else if( length == owl.length() && previousHash.length() > 0 ) {
+						hash = SnapshotStore.sha256(owl);
+						resumed = hash.equals(previousHash);
+					}
+					if( !resumed ) {
+						System.out.println("Checkpoints in " + dir + " are for another OWL file, starting over");
+					}
+					else if( !settings.equals(previousSettings) ) {
+						System.out.println("Report options changed since the checkpoints in " + dir + ", writing the reports again");
+						clear(".rendered", ".converted");
+					}
+				}
+			} finally {
+				SnapshotStore.close(in);
+			}
+		}
+		if( !resumed ) {
+			clear(SUFFIXES);
+		}
+		//Written again either way, for the options of this run
+		writeRun(run, hash == null ? "" : hash);
+		if( hash == null || hash.length() == 0 ) {
+			hashLater(run);
+		}
+		return resumed;
+	}
+
+	/**
+	 * @param run
+	 * @param hash
+	 * 			SHA-256 of the OWL file, or "" if it isn't known yet
+	 */
+	private synchronized void writeRun(File run, String hash) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(owl.length());
+		out.writeLong(owl.lastModified());
+		out.writeUTF(hash);
+		SnapshotStore.writeString(out, settings);
+		out.close();
+		replace(run, bytes.toByteArray());
+	}
+
+	/**
+	 * Hashes the OWL file on a daemon thread and writes the hash into the run
+	 * file, so a later -resume can tell the file apart if its time changes.
+	 *
+	 * @param run
+	 */
+	private void hashLater(final File run) {
+		Thread thread = new Thread("Hash " + owl.getName()) {
+			public void run() {
+				try {
+					writeRun(run, SnapshotStore.sha256(owl));
+				} catch (IOException e) {
+					System.out.println("Couldn't hash " + owl + " for the checkpoints");
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param root
+	 * @param model
+	 * 			Where the root record is added
+	 * @return the root's codelists, or null if discovery wasn't checkpointed
+	 */
+	public List<String> readCodelists(String root, CdiscModel model) throws IOException {
+		File file = file(root, ".codelists");
+		if( !file.isFile() ) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			model.addConcept(root, SnapshotStore.readRecord(in, pool));
+			return SnapshotStore.readList(in);
+		} finally {
+			SnapshotStore.close(in);
+		}
+	}
+
+	/**
+	 * @param root
+	 * @param record
+	 * 			The root's record
+	 * @param codelists
+	 * 			The root's codelists in KB order
+	 */
+	public void writeCodelists(String root, ConceptRecord record, List<String> codelists) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		SnapshotStore.writeRecord(out, record);
+		SnapshotStore.writeList(out, codelists);
+		out.close();
+		replace(file(root, ".codelists"), bytes.toByteArray());
+	}
+
+	/**
+	 * @return the checkpointed subset index, or null if there isn't one
+	 */
+	public SubsetIndex readSubsets() throws IOException {
+		File file = new File(dir, "subsets.bin");
+		if( !file.isFile() ) {
+			return null;
+		}
+		SubsetIndex index = new SubsetIndex();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int subsets = in.readInt();
+			for( int i = 0; i < subsets; i++ ) {
+				String subset = SnapshotStore.readString(in);
+				for( String member : SnapshotStore.readList(in) ) {
+					index.add(subset, member);
+				}
+			}
+		} finally {
+			SnapshotStore.close(in);
+		}
+		return index;
+	}
+
+	public void writeSubsets(SubsetIndex index) throws IOException {
+		File tmp = new File(dir, "subsets.bin.tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(index.size());
+			for( String subset : index.getSubsets() ) {
+				SnapshotStore.writeString(out, subset);
+				SnapshotStore.writeList(out, new ArrayList<String>(index.getMembers(subset)));
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(dir, "subsets.bin").toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Reads the codelists of the root already extracted into the model, and
+	 * opens the root's extract file for the rest to be appended to.
+	 *
+	 * @param root
+	 * @param model
+	 * 			Where the codelists' members and records are added
+	 * @return the codelists read
+	 */
+	public synchronized Set<String> readExtracted(String root, CdiscModel model) throws IOException {
+		HashSet<String> extracted = new HashSet<String>();
+		File file = file(root, ".extract");
+		long whole = 0;
+		if( file.isFile() ) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while( true ) {
+					byte[] entry;
+					try {
+						entry = new byte[in.readInt()];
+						in.readFully(entry);
+					} catch (EOFException e) {
+						//The end, or an entry cut short by the crash
+						break;
+					}
+					DataInputStream entryIn = new DataInputStream(new ByteArrayInputStream(entry));
+					String codelist = SnapshotStore.readString(entryIn);
+					List<String> members = SnapshotStore.readList(entryIn);
+					int records = entryIn.readInt();
+					for( int i = 0; i < records; i++ ) {
+						String code = SnapshotStore.readString(entryIn);
+						model.addConcept(code, SnapshotStore.readRecord(entryIn, pool));
+					}
+					model.setMembers(codelist, members);
+					extracted.add(codelist);
+					whole += 4 + entry.length;
+				}
+			} finally {
+				SnapshotStore.close(in);
+			}
+			//Drop a partial entry so the next one starts where it should
+			RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+			try {
+				truncate.setLength(whole);
+			} finally {
+				truncate.close();
+			}
+		}
+		close(root);
+		extracts.put(root, new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true))));
+		return extracted;
+	}
+
+	/**
+	 * Appends a codelist to the root's extract file, opened by
+	 * {@link #readExtracted(String, CdiscModel)}. Safe to call from several threads.
+	 *
+	 * @param root
+	 * @param codelist
+	 * @param model
+	 * 			The model holding the codelist's members and the records of it and them
+	 */
+	public void extracted(String root, String codelist, CdiscModel model) throws IOException {
+		List<String> members = model.getMembers(codelist);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream entry = new DataOutputStream(bytes);
+		SnapshotStore.writeString(entry, codelist);
+		SnapshotStore.writeList(entry, members);
+		entry.writeInt(members.size() + 1);
+		SnapshotStore.writeString(entry, codelist);
+		SnapshotStore.writeRecord(entry, model.getConcept(codelist));
+		for( String member : members ) {
+			SnapshotStore.writeString(entry, member);
+			SnapshotStore.writeRecord(entry, model.getConcept(member));
+		}
+		entry.close();
+		synchronized( this ) {
+			DataOutputStream out = extracts.get(root);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+			out.flush();
+		}
+	}
+
+	/**
+	 * @param root
+	 * 			A root whose extraction is finished or abandoned
+	 */
+	public synchronized void close(String root) throws IOException {
+		DataOutputStream out = extracts.remove(root);
+		if( out != null ) {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param root
+	 * @return true if every codelist of the root is in its extract file, so the root needs no KB
+	 */
+	public boolean isExtracted(String root) throws IOException {
+		CdiscModel scratch = new CdiscModel();
+		List<String> codelists = readCodelists(root, scratch);
+		if( codelists == null ) {
+			return false;
+		}
+		return countExtracted(root) >= new HashSet<String>(codelists).size();
+	}
+
+	/**
+	 * @param root
+	 * @param stage
+	 * 			{@link #RENDER} or {@link #EXCEL}
+	 * @return true if the stage was finished for the root
+	 */
+	public boolean isDone(String root, String stage) {
+		return file(root, suffix(stage)).isFile();
+	}
+
+	/**
+	 * @param root
+	 * @param stage
+	 * 			{@link #RENDER} or {@link #EXCEL}
+	 */
+	public void done(String root, String stage) throws IOException {
+		replace(file(root, suffix(stage)), new byte[0]);
+	}
+
+	/**
+	 * @param root
+	 * @param excel
+	 * 			Whether the run converts the reports with -xls-formatter
+	 * @return the first stage the root hasn't finished, with how far extraction got, or null if it is done
+	 */
+	public String describe(String root, boolean excel) throws IOException {
+		if( excel ? isDone(root, EXCEL) : isDone(root, RENDER) ) {
+			return null;
+		}
+		if( isDone(root, RENDER) ) {
+			return EXCEL;
+		}
+		List<String> codelists = readCodelists(root, new CdiscModel());
+		if( codelists == null ) {
+			return DISCOVER;
+		}
+		int extracted = countExtracted(root);
+		int total = new HashSet<String>(codelists).size();
+		if( extracted >= total ) {
+			return RENDER;
+		}
+		return EXTRACT + " (" + extracted + " of " + total + " codelists checkpointed)";
+	}
+
+	private int countExtracted(String root) throws IOException {
+		File file = file(root, ".extract");
+		if( !file.isFile() ) {
+			return 0;
+		}
+		HashSet<String> extracted = new HashSet<String>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while( true ) {
+				byte[] entry;
+				try {
+					entry = new byte[in.readInt()];
+					in.readFully(entry);
+				} catch (EOFException e) {
+					break;
+				}
+				extracted.add(SnapshotStore.readString(new DataInputStream(new ByteArrayInputStream(entry))));
+			}
+		} finally {
+			SnapshotStore.close(in);
+		}
+		return extracted.size();
+	}
+
+	private static String suffix(String stage) {
+		if( stage.equals(RENDER) ) {
+			return ".rendered";
+		}
+		if( stage.equals(EXCEL) ) {
+			return ".converted";
+		}
+		throw new IllegalArgumentException("No marker for stage " + stage);
+	}
+
+	/**
+	 * @return the root's file with the suffix, the root's code made safe for a file name
+	 */
+	private File file(String root, String suffix) {
+		return new File(dir, root.replaceAll("[^A-Za-z0-9_.-]", "_") + suffix);
+	}
+
+	private void replace(File file, byte[] bytes) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Deletes this class's files, leaving anything else in the directory alone.
+	 */
+	private void clear(String... suffixes) {
+		File[] files = dir.listFiles();
+		if( files == null ) {
+			return;
+		}
+		for( File file : files ) {
+			for( String suffix : suffixes ) {
+				if( file.isFile() && file.getName().endsWith(suffix) ) {
+					file.delete();
+					break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/* The rows one codelist contributes to a CDISC report.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.ArrayList;
+
+
+/**
+ * A codelist header row followed by its element rows, already in report order.
+ * Cells are the strings written to the report, so a missing value is the
+ * literal "null" just as PrintWriter has always printed it. Warnings raised
+ * while the block was built are kept with it, so they are printed in report
+ * order no matter which thread produced the block.
+ */
+public class CodelistBlock {
+
+	private final String codelistName;
+	private final String[] codelistRow;
+	private final ArrayList<String[]> elementRows = new ArrayList<String[]>();
+	private final ArrayList<String> messages = new ArrayList<String>();
+	private CodelistBlock internal = null;
+	
+	/**
+	 * @param codelistName
+	 * 			The CDISC synonym the codelist is reported under
+	 * @param codelistRow
+	 * 			The codelist header row
+	 */
+	public CodelistBlock(String codelistName, String[] codelistRow) {
+		this.codelistName = codelistName;
+		this.codelistRow = codelistRow;
+	}
+	
+	public String getCodelistName() {
+		return codelistName;
+	}
+	
+	public String[] getCodelistRow() {
+		return codelistRow;
+	}
+	
+	public ArrayList<String[]> getElementRows() {
+		return elementRows;
+	}
+	
+	public void addElementRow(String[] row) {
+		elementRows.add(row);
+	}
+	
+	public ArrayList<String> getMessages() {
+		return messages;
+	}
+	
+	public void addMessage(String message) {
+		messages.add(message);
+	}
+	
+	/**
+	 * @return the rows for the internal profile, or null if they weren't built
+	 */
+	public CodelistBlock getInternal() {
+		return internal;
+	}
+	
+	public void setInternal(CodelistBlock internal) {
+		this.internal = internal;
+	}
+	
+	/**
+	 * @param values
+	 * 			Cell values, any of which may be null
+	 * @return the cells as they are written to the report
+	 */
+	public static String[] row(Object... values) {
+		String[] row = new String[values.length];
+		for( int i = 0; i < values.length; i++ ) {
+			row[i] = String.valueOf(values[i]);
+		}
+		return row;
+	}
+}
@@ -0,0 +1,299 @@
+/* Builds the report rows for the elements of one codelist.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Phase 3 of the report for a single codelist: drops retired elements, picks
+ * each element's submission value and sorts the rows, all from the
+ * {@link ConceptRecord}s in the model. For the internal profile the same is
+ * done again for every member, retired ones included.
+ */
+public class CodelistExtractor implements Callable<CodelistBlock> {
+
+	private final CdiscModel model;
+	private final String codelistName;
+	private final String codelistConcept;
+	private final String codelistCode;
+	private final String codelistNCIAB;
+	private final String[] codelistRow;
+	private final ArrayList<String> elements;
+	private final int listing;
+	private boolean internal = false;
+	
+	/**
+	 * @param model
+	 * 			The model holding the element records
+	 * @param codelistName
+	 * 			The CDISC synonym the codelist is reported under
+	 * @param codelistConcept
+	 * 			The codelist concept
+	 * @param codelistCode
+	 * 			The codelist code reported on each element row
+	 * @param codelistNCIAB
+	 * 			The NCI AB of the codelist, used to pick between several submission values
+	 * @param codelistRow
+	 * 			The codelist header row
+	 * @param elements
+	 * 			The codelist members, which this extractor is free to modify
+	 * @param listing
+	 * 			1 for the first name the codelist is reported under, 2 for the second and so on
+	 */
+	public CodelistExtractor(CdiscModel model, String codelistName, String codelistConcept, String codelistCode,
+			String codelistNCIAB, String[] codelistRow, ArrayList<String> elements, int listing) {
+		this.model = model;
+		this.codelistName = codelistName;
+		this.codelistConcept = codelistConcept;
+		this.codelistCode = codelistCode;
+		this.codelistNCIAB = codelistNCIAB;
+		this.codelistRow = codelistRow;
+		this.elements = elements;
+		this.listing = listing;
+	}
+	
+	public String getCodelistName() {
+		return codelistName;
+	}
+	
+	public String getCodelistConcept() {
+		return codelistConcept;
+	}
+	
+	public int getListing() {
+		return listing;
+	}
+	
+	/**
+	 * Whether the other extractor, over this model or an earlier one, builds
+	 * the same block: the same codelist row, name, code, NCI AB, listing and
+	 * profile, the same collation, and a codelist record and member records,
+	 * in member order, that are {@link ConceptRecord#sameAs(ConceptRecord)}
+	 * each other. The members are read from the models, not the extractors,
+	 * so this holds before and after {@link #call()}.
+	 * 
+	 * @param other
+	 * @return true if the blocks would be the same
+	 */
+	public boolean hasSameInputs(CodelistExtractor other) {
+		if( listing != other.listing || internal != other.internal || !codelistName.equals(other.codelistName)
+				|| !codelistConcept.equals(other.codelistConcept) || !equal(codelistCode, other.codelistCode)
+				|| !equal(codelistNCIAB, other.codelistNCIAB) || !Arrays.equals(codelistRow, other.codelistRow)
+				|| !model.getCollation().getName().equals(other.model.getCollation().getName()) ) {
+			return false;
+		}
+		if( !model.getConcept(codelistConcept).sameAs(other.model.getConcept(codelistConcept)) ) {
+			return false;
+		}
+		List<String> members = model.getMembers(codelistConcept);
+		List<String> otherMembers = other.model.getMembers(codelistConcept);
+		if( !members.equals(otherMembers) ) {
+			return false;
+		}
+		for( String member : members ) {
+			if( !model.getConcept(member).sameAs(other.model.getConcept(member)) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	/**
+	 * @param internal
+	 * 			Whether to build the rows of the internal profile as well
+	 */
+	public void setInternal(boolean internal) {
+		this.internal = internal;
+	}
+	
+	public boolean isInternal() {
+		return internal;
+	}
+	
+	public CodelistBlock call() {
+		CodelistBlock block = new CodelistBlock(codelistName, codelistRow);
+		ArrayList<String> members = internal ? new ArrayList<String>(elements) : null;
+		
+		//Don't report retired elements
+		//The original loop steps past the element after each one it removes, and a codelist
+		//reported under several synonyms shared one list, so its n-th listing saw n passes.
+		//Repeat the passes so the output stays the same.
+		for( int pass = 0; pass < listing; pass++ ) {
+			for( int i=0; i < elements.size(); i++ ) {
+				if( model.getConcept(elements.get(i)).isDeprecated() ) {
+					elements.remove(i);
+				}
+			}
+		}
+		addRows(block, elements, false);
+		
+		//The internal release lists every member, retired or not, with its status
+		if( internal ) {
+			ConceptRecord codelist = model.getConcept(codelistConcept);
+			List<Synonym> codelistPTs = codelist.getSynonyms("CDISC", "PT");
+			String sourceCode = codelistPTs.isEmpty() ? null : codelistPTs.get(codelistPTs.size() - 1).getSourceCode();
+			CodelistBlock internalBlock = new CodelistBlock(codelistName, internalRow(codelistRow, codelist, sourceCode));
+			addRows(internalBlock, members, true);
+			block.setInternal(internalBlock);
+		}
+		return block;
+	}
+	
+	/**
+	 * The submission values of every member, retired ones included, in report
+	 * order. Sorted the first time a listing of the codelist needs it and kept
+	 * in the model, so later listings, profiles and renders of the model only
+	 * pick out their elements.
+	 * 
+	 * @return the submission values with the position of each member in the codelist
+	 */
+	public SortIndex getSubmissionIndex() {
+		return getSubmissionIndex(model, codelistConcept, codelistNCIAB);
+	}
+	
+	/**
+	 * @param model
+	 * @param codelistConcept
+	 * 			The codelist concept
+	 * @param codelistNCIAB
+	 * 			The NCI AB of the codelist, used to pick between several submission values
+	 * @return the codelist's index, sorted and added to the model if it hasn't one
+	 */
+	public static SortIndex getSubmissionIndex(CdiscModel model, String codelistConcept, String codelistNCIAB) {
+		SortIndex index = model.getSubmissionIndex(codelistConcept);
+		if( index == null ) {
+			List<String> members = model.getMembers(codelistConcept);
+			ArrayList<SortKey> keys = new ArrayList<SortKey>();
+			ArrayList<Integer> positions = new ArrayList<Integer>();
+			for( int i = 0; i < members.size(); i++ ) {
+				for( Synonym submission : submissionValues(model.getConcept(members.get(i)), codelistNCIAB) ) {
+					keys.add(model.getSortKey(submission.getName()));
+					positions.add(i);
+				}
+			}
+			index = SortIndex.sort(keys, positions);
+			model.setSubmissionIndex(codelistConcept, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * Picks each element's submission value and adds the element rows, sorted.
+	 * 
+	 * @param block
+	 * 			The block to add to
+	 * @param elements
+	 * 			The elements to report, in member order
+	 * @param internal
+	 * 			Whether to add the internal columns. Problems are only reported for the public rows.
+	 */
+	private void addRows(CodelistBlock block, List<String> elements, boolean internal) {
+		if( !internal ) {
+			for( String element : elements ) {
+				if( submissionValues(model.getConcept(element), codelistNCIAB).isEmpty() ) {
+					block.addMessage("No submission value!\n\tCodelist concept: "+ codelistConcept + "\n\tElement concept: " + element);
+				}
+			}
+		}
+		
+		List<String> members = model.getMembers(codelistConcept);
+		boolean[] reported = new boolean[members.size()];
+		for( int i = 0, j = 0; i < members.size() && j < elements.size(); i++ ) {
+			if( members.get(i).equals(elements.get(j)) ) {
+				reported[i] = true;
+				j++;
+			}
+		}
+		
+		//Where elements share a submission value the last of them is reported, as the old TreeMap kept the last put
+		SortIndex index = getSubmissionIndex();
+		int last = -1;
+		for( int i = 0; i < index.size(); i++ ) {
+			if( reported[index.getPosition(i)] ) {
+				last = index.getPosition(i);
+			}
+			String submission = index.getTerm(i);
+			if( i + 1 == index.size() || !index.getTerm(i + 1).equals(submission) ) {
+				if( last >= 0 ) {
+					addRow(block, submission, model.getConcept(members.get(last)), internal);
+				}
+				last = -1;
+			}
+		}
+	}
+	
+	private void addRow(CodelistBlock block, String submission, ConceptRecord element, boolean internal) {
+		List<Synonym> synonyms = element.getSynonyms("CDISC", "SY");
+		ArrayList<SortKey> cdiscSynonyms = new ArrayList<SortKey>(synonyms.size());
+		for( Synonym synonym : synonyms ) {
+			cdiscSynonyms.add(model.getSortKey(synonym.getName()));
+		}
+		Collections.sort(cdiscSynonyms, SortKey.EXACT);
+		StringBuilder cellFormattedSynonyms = new StringBuilder();
+		for( int i=0; i < cdiscSynonyms.size(); i++ ) {
+			cellFormattedSynonyms.append(cdiscSynonyms.get(i).getValue());
+			if( i + 1 < cdiscSynonyms.size() ) cellFormattedSynonyms.append("; ");
+		}
+		String[] row = CodelistBlock.row(element.getCode(), codelistCode, "", codelistName, submission,
+				cellFormattedSynonyms, element.getCdiscDefinition(), element.getPreferredName());
+		if( internal ) {
+			String sourceCode = null;
+			for( Synonym synonym : submissionValues(element, codelistNCIAB) ) {
+				if( synonym.getName().equals(submission) ) {
+					sourceCode = synonym.hasSourceCode(codelistNCIAB) ? codelistNCIAB : synonym.getSourceCode();
+				}
+			}
+			row = internalRow(row, element, sourceCode);
+		}
+		block.addElementRow(row);
+	}
+	
+	/**
+	 * @param element
+	 * @param codelistNCIAB
+	 * @return the element's CDISC PT, or where it has several the ones whose Source Code is the codelist's NCI AB
+	 */
+	static List<Synonym> submissionValues(ConceptRecord element, String codelistNCIAB) {
+		List<Synonym> submissionValues = element.getSynonyms("CDISC", "PT");
+		if( submissionValues.size() <= 1 ) {
+			return submissionValues;
+		}
+		ArrayList<Synonym> matches = new ArrayList<Synonym>(1);
+		for( Synonym possibleSubmissionValue : submissionValues ) {
+			if( possibleSubmissionValue.hasSourceCode(codelistNCIAB) ) {
+				matches.add(possibleSubmissionValue);
+			}
+		}
+		return matches;
+	}
+	
+	/**
+	 * @param row
+	 * 			The public row
+	 * @param concept
+	 * 			The codelist or element the row is for
+	 * @param sourceCode
+	 * 			Source Code of its submission value, or null
+	 * @return the row with the {@link ReportProfile#INTERNAL_COLUMNS} added
+	 */
+	private static String[] internalRow(String[] row, ConceptRecord concept, String sourceCode) {
+		List<Synonym> ncias = concept.getSynonyms("NCI", "AB");
+		String[] internalRow = new String[row.length + ReportProfile.INTERNAL_COLUMNS.length];
+		System.arraycopy(row, 0, internalRow, 0, row.length);
+		internalRow[row.length] = ncias.isEmpty() ? "" : ncias.get(ncias.size() - 1).getName();
+		internalRow[row.length + 1] = sourceCode == null ? "" : sourceCode;
+		internalRow[row.length + 2] = concept.isDeprecated() ? "Retired" : "";
+		return internalRow;
+	}
+}
@@ -0,0 +1,229 @@
+/* Looks up submission values in the codelists of a generated report.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The terminology as the reports have it, indexed to check data against: each
+ * codelist by code, submission value and name, and for each codelist its
+ * submission values, the CDISC synonyms of its terms and whether it is
+ * extensible. Built from the {@link CodelistBlock}s that generate writes, so
+ * retired terms are left out and each term has the submission value printed
+ * for it. Values and synonyms are indexed as they are and case folded, as
+ * {@link SortKey#fold(String)} folds them. Only read once built, so any
+ * number of threads can look up at once.
+ */
+public class CodelistLookup {
+
+	/** The value is a submission value of the codelist. */
+	public static final int VALID = 0;
+	/** The value is a submission value of the codelist in another case. */
+	public static final int CASE = 1;
+	/** The value is a CDISC synonym of a term, not its submission value. */
+	public static final int SYNONYM = 2;
+	/** The value isn't in the codelist, which may be extended with it. */
+	public static final int EXTENDED = 3;
+	/** The value isn't in the codelist, which isn't extensible. */
+	public static final int INVALID = 4;
+
+	/**
+	 * The terms of one codelist listing.
+	 */
+	public static class Codelist {
+		private final String root;
+		private final String code;
+		private final String submissionValue;
+		private final String name;
+		private final boolean extensible;
+		//Submission value -> term code
+		private final HashMap<String,String> values = new HashMap<String,String>();
+		//Folded submission value -> submission value
+		private final HashMap<String,String> folded = new HashMap<String,String>();
+		//Synonym, as it is and folded -> submission value
+		private final HashMap<String,String> synonyms = new HashMap<String,String>();
+
+		Codelist(String root, CodelistBlock block) {
+			String[] row = block.getCodelistRow();
+			this.root = root;
+			this.code = row[0];
+			this.extensible = row[2].equalsIgnoreCase("Yes");
+			this.name = block.getCodelistName();
+			this.submissionValue = row[4];
+			for( String[] element : block.getElementRows() ) {
+				String value = element[4];
+				values.put(value, element[0]);
+				folded.put(SortKey.fold(value), value);
+			}
+			for( String[] element : block.getElementRows() ) {
+				if( element[5].length() == 0 ) {
+					continue;
+				}
+				for( String synonym : element[5].split("; ") ) {
+					//A synonym that is another term's submission value is that term's
+					if( !values.containsKey(synonym) && !synonyms.containsKey(synonym) ) {
+						synonyms.put(synonym, element[4]);
+					}
+					String key = SortKey.fold(synonym);
+					if( !folded.containsKey(key) && !synonyms.containsKey(key) ) {
+						synonyms.put(key, element[4]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @param value
+		 * 			A value from the data, not empty
+		 * @return {@link #VALID}, {@link #CASE}, {@link #SYNONYM}, {@link #EXTENDED} or {@link #INVALID}
+		 */
+		public int check(String value) {
+			if( values.containsKey(value) ) {
+				return VALID;
+			}
+			if( synonyms.containsKey(value) ) {
+				return SYNONYM;
+			}
+			String key = SortKey.fold(value);
+			if( folded.containsKey(key) ) {
+				return CASE;
+			}
+			if( synonyms.containsKey(key) ) {
+				return SYNONYM;
+			}
+			return extensible ? EXTENDED : INVALID;
+		}
+
+		/**
+		 * @param value
+		 * 			A value {@link #check(String)} found to be in another case or a synonym
+		 * @return the submission value it stands for, or null
+		 */
+		public String submissionValueFor(String value) {
+			String submission = synonyms.get(value);
+			if( submission == null ) {
+				String key = SortKey.fold(value);
+				submission = folded.containsKey(key) ? folded.get(key) : synonyms.get(key);
+			}
+			return submission;
+		}
+
+		/**
+		 * @param submission
+		 * 			A submission value of the codelist
+		 * @return the code of its term, or null
+		 */
+		public String getTermCode(String submission) {
+			return values.get(submission);
+		}
+
+		public String getRoot() {
+			return root;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+		/**
+		 * @return the codelist's own submission value, its CDISC PT
+		 */
+		public String getSubmissionValue() {
+			return submissionValue;
+		}
+
+		/**
+		 * @return the CDISC synonym the codelist is listed under
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public boolean isExtensible() {
+			return extensible;
+		}
+
+		/**
+		 * @return the number of submission values
+		 */
+		public int size() {
+			return values.size();
+		}
+
+		public String toString() {
+			return name + " (" + code + ")";
+		}
+	}
+
+	private final ArrayList<Codelist> codelists = new ArrayList<Codelist>();
+	private final HashSet<String> roots = new HashSet<String>();
+	//Code, submission value or name, as it is and folded -> first codelist with it
+	private final HashMap<String,Codelist> index = new HashMap<String,Codelist>();
+
+	/**
+	 * Adds the blocks of a root from its extractors, without writing anything,
+	 * for a root whose blocks weren't added as its reports were written.
+	 *
+	 * @param report
+	 * 			A report with the root loaded
+	 * @param root
+	 */
+	public void addRoot(GenerateCDISC report, String root) {
+		for( CodelistExtractor extractor : report.buildExtractors(root) ) {
+			add(root, extractor.call());
+		}
+	}
+
+	/**
+	 * @param root
+	 * 			The root the block was reported under
+	 * @param block
+	 * 			A block built for the public profile or with its rows
+	 */
+	public void add(String root, CodelistBlock block) {
+		Codelist codelist = new Codelist(root, block);
+		roots.add(root);
+		codelists.add(codelist);
+		index(codelist.getCode(), codelist);
+		index(codelist.getSubmissionValue(), codelist);
+		index(codelist.getName(), codelist);
+	}
+
+	private void index(String key, Codelist codelist) {
+		if( !index.containsKey(key) ) {
+			index.put(key, codelist);
+		}
+		key = SortKey.fold(key);
+		if( !index.containsKey(key) ) {
+			index.put(key, codelist);
+		}
+	}
+
+	/**
+	 * @param key
+	 * 			A codelist code, submission value or name, in any case
+	 * @return the first codelist added with it, exactly if there is one, or null
+	 */
+	public Codelist find(String key) {
+		Codelist codelist = index.get(key);
+		return codelist != null ? codelist : index.get(SortKey.fold(key));
+	}
+
+	/**
+	 * @param root
+	 * @return true if a block of the root was added
+	 */
+	public boolean hasRoot(String root) {
+		return roots.contains(root);
+	}
+
+	public List<Codelist> getCodelists() {
+		return codelists;
+	}
+}
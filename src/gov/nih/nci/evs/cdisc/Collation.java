@@ -0,0 +1,80 @@
+/* How report terms are ordered.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * Makes the {@link SortKey}s codelist names, submission values and synonyms are
+ * sorted by. {@link #DEFAULT} gives the order the report has always had. A
+ * locale collation orders by that locale's Collator first, so accented and
+ * mixed case terms sort the way a reader of the language expects, and falls
+ * back to the default order between terms the Collator finds equal.
+ */
+public class Collation {
+
+	public static final Collation DEFAULT = new Collation("", null);
+
+	private final String name;
+	private final Collator collator;
+
+	private Collation(String name, Collator collator) {
+		this.name = name;
+		this.collator = collator;
+	}
+
+	/**
+	 * @param name
+	 * 			A BCP 47 language tag such as en or fr-CA, or "" for the default order
+	 * @return the collation
+	 * @throws IllegalArgumentException if the tag isn't a locale Collator has rules for
+	 */
+	public static Collation forName(String name) {
+		if( name == null || name.length() == 0 ) {
+			return DEFAULT;
+		}
+		Locale locale = Locale.forLanguageTag(name);
+		boolean known = false;
+		for( Locale available : Collator.getAvailableLocales() ) {
+			known |= available.getLanguage().equals(locale.getLanguage());
+		}
+		if( locale.getLanguage().length() == 0 || !known ) {
+			throw new IllegalArgumentException("No collation for " + name);
+		}
+		return new Collation(locale.toLanguageTag(), Collator.getInstance(locale));
+	}
+
+	/**
+	 * @param term
+	 * @return the term's sort key
+	 */
+	public SortKey key(String term) {
+		if( collator == null ) {
+			return new SortKey(term, null);
+		}
+		//Collators aren't thread safe
+		synchronized( collator ) {
+			return new SortKey(term, collator.getCollationKey(term).toByteArray());
+		}
+	}
+
+	/**
+	 * @return the language tag, "" for the default order
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public boolean isDefault() {
+		return collator == null;
+	}
+
+	@Override
+	public String toString() {
+		return isDefault() ? "default" : name;
+	}
+}
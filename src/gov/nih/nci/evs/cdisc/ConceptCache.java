@@ -0,0 +1,137 @@
+/* Cache of the concept records read from an OWLKb.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import gov.nih.nci.evs.owl.data.OWLKb;
+
+/**
+ * Resolves each concept against the KB once and keeps the resulting
+ * {@link ConceptRecord}, with its synonyms already classified, for every
+ * later codelist and root that needs it. The cache can be bounded, in which
+ * case the least recently used records are evicted first. Lookups are
+ * thread safe; the KB is read outside the lock so codelists extracted in
+ * parallel don't wait on each other.
+ */
+public class ConceptCache {
+
+	private final OWLKb kb;
+	private final String namespace;
+	private final int maxSize;
+	private final LinkedHashMap<String,ConceptRecord> records;
+	private final StringPool pool = new StringPool();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param kb
+	 * 			The KB to read from
+	 * @param namespace
+	 * 			The namespace of the concept URIs
+	 * @param maxSize
+	 * 			Most records to keep, 0 for no limit
+	 */
+	public ConceptCache(OWLKb kb, String namespace, int maxSize) {
+		this.kb = kb;
+		this.namespace = namespace;
+		this.maxSize = maxSize;
+		this.records = new LinkedHashMap<String,ConceptRecord>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,ConceptRecord> eldest) {
+				if( ConceptCache.this.maxSize > 0 && size() > ConceptCache.this.maxSize ) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param code
+	 * 			The concept code
+	 * @return the record for the concept, read from the KB if it isn't cached
+	 */
+	public ConceptRecord get(String code) {
+		synchronized( records ) {
+			ConceptRecord record = records.get(code);
+			if( record != null ) {
+				hits.incrementAndGet();
+				return record;
+			}
+		}
+		misses.incrementAndGet();
+		ConceptRecord record = ConceptRecord.fromKb(kb, URI.create(namespace + "#" + code), pool);
+		synchronized( records ) {
+			//Another thread may have read it meanwhile, keep theirs so everyone shares one record
+			ConceptRecord cached = records.get(code);
+			if( cached != null ) {
+				return cached;
+			}
+			records.put(code, record);
+		}
+		return record;
+	}
+
+	public int size() {
+		synchronized( records ) {
+			return records.size();
+		}
+	}
+
+	/**
+	 * @return most records kept, 0 for no limit
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Drops the records, e.g. once their codelist is written. They are read
+	 * from the KB again if they are needed later.
+	 * 
+	 * @param codes
+	 */
+	public void release(Collection<String> codes) {
+		synchronized( records ) {
+			for( String code : codes ) {
+				records.remove(code);
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized( records ) {
+			records.clear();
+		}
+	}
+
+	public String toString() {
+		return "Concept cache: " + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions, "
+				+ size() + " of " + (maxSize > 0 ? String.valueOf(maxSize) : "unlimited") + " cached";
+	}
+}
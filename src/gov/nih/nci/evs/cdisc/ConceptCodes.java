@@ -0,0 +1,149 @@
+/* Integer ids for concept codes.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Numbers the concept codes of a model 0, 1, 2... in the order they are first
+ * seen, so records and member lists can be kept in arrays indexed by id. A
+ * Thesaurus code of the form C&lt;digits&gt; is kept as its number in a primitive
+ * open addressed table, without a String; anything else, like the roots'
+ * C_SDTM, is kept as it is. Safe to use from several threads.
+ */
+public class ConceptCodes {
+
+	/** Returned by {@link #find(String)} for a code without an id. */
+	public static final int NONE = -1;
+
+	//Open addressed, number -> id + 1, 0 for an empty slot
+	private int[] keys = new int[1024];
+	private int[] slots = new int[1024];
+	private int numbered = 0;
+	private final HashMap<String,Integer> named = new HashMap<String,Integer>();
+
+	//id -> number, or -1 if the code is in names
+	private int[] numbers = new int[1024];
+	private String[] names = new String[1024];
+	private int size = 0;
+
+	/**
+	 * @param code
+	 * 			A concept code
+	 * @return the code's id, given it if it hasn't one
+	 */
+	public synchronized int id(String code) {
+		int id = find(code);
+		if( id != NONE ) {
+			return id;
+		}
+		id = size++;
+		if( id == numbers.length ) {
+			numbers = Arrays.copyOf(numbers, id * 2);
+			names = Arrays.copyOf(names, id * 2);
+		}
+		int number = number(code);
+		numbers[id] = number;
+		if( number < 0 ) {
+			names[id] = code;
+			named.put(code, id);
+		}
+		else {
+			if( (numbered + 1) * 2 > keys.length ) {
+				rehash(keys.length * 2);
+			}
+			put(number, id);
+			numbered++;
+		}
+		return id;
+	}
+
+	/**
+	 * @param code
+	 * 			A concept code
+	 * @return the code's id, or {@link #NONE} if it hasn't one
+	 */
+	public synchronized int find(String code) {
+		int number = number(code);
+		if( number < 0 ) {
+			Integer id = named.get(code);
+			return id == null ? NONE : id;
+		}
+		int mask = keys.length - 1;
+		for( int i = mix(number) & mask; keys[i] != 0; i = (i + 1) & mask ) {
+			if( keys[i] == number ) {
+				return slots[i] - 1;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * @param id
+	 * @return the code with that id
+	 */
+	public synchronized String code(int id) {
+		if( id < 0 || id >= size ) {
+			throw new IllegalArgumentException("No concept code has id " + id);
+		}
+		return numbers[id] < 0 ? names[id] : "C" + numbers[id];
+	}
+
+	/**
+	 * @return number of codes with an id
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @param code
+	 * @return the number of a C&lt;digits&gt; code that prints back the same, -1 for any other code
+	 */
+	static int number(String code) {
+		int length = code.length();
+		if( length < 2 || length > 10 || code.charAt(0) != 'C' || code.charAt(1) == '0' ) {
+			return -1;
+		}
+		long number = 0;
+		for( int i = 1; i < length; i++ ) {
+			char c = code.charAt(i);
+			if( c < '0' || c > '9' ) {
+				return -1;
+			}
+			number = number * 10 + (c - '0');
+		}
+		return number > Integer.MAX_VALUE ? -1 : (int) number;
+	}
+
+	private void put(int number, int id) {
+		int mask = keys.length - 1;
+		int i = mix(number) & mask;
+		while( keys[i] != 0 ) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = number;
+		slots[i] = id + 1;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		int[] oldSlots = slots;
+		keys = new int[capacity];
+		slots = new int[capacity];
+		for( int i = 0; i < oldKeys.length; i++ ) {
+			if( oldKeys[i] != 0 ) {
+				put(oldKeys[i], oldSlots[i] - 1);
+			}
+		}
+	}
+
+	private static int mix(int number) {
+		int h = number * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
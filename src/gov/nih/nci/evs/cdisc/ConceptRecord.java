@@ -0,0 +1,195 @@
+/* What a CDISC report needs to know about one concept.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+
+import gov.nih.nci.evs.owl.data.OWLKb;
+import gov.nih.nci.evs.owl.entity.Property;
+import gov.nih.nci.evs.owl.entity.Qualifier;
+import gov.nih.nci.evs.owl.proxy.ConceptProxy;
+
+/**
+ * The code, Preferred_Name (P108), synonyms (P90), CDISC ALT_DEFINITION (P325),
+ * Extensible_List (P361) values and deprecation of a codelist or element,
+ * read from the KB once. Records are filled in when they are built and only
+ * read after that, so they can be shared between threads and roots.
+ * <p>
+ * A model holds a record for every codelist and element of every root, so the
+ * synonyms and Extensible_List values are kept in plain arrays and looked up by
+ * a scan, there being only a handful per concept.
+ */
+public class ConceptRecord {
+
+	private final String code;
+	private String preferredName = null;
+	private String cdiscDefinition = null;
+	private boolean deprecated = false;
+	private Synonym[] synonyms = NO_SYNONYMS;
+	private String[] extensibleLists = NO_STRINGS;
+	
+	private static final Synonym[] NO_SYNONYMS = new Synonym[0];
+	private static final String[] NO_STRINGS = new String[0];
+	
+	/**
+	 * @param code
+	 * 			The concept code
+	 */
+	public ConceptRecord(String code) {
+		this.code = code;
+	}
+	
+	/**
+	 * @param kb
+	 * @param uri
+	 * 			The concept to read
+	 * @return the record for the concept
+	 */
+	public static ConceptRecord fromKb(OWLKb kb, URI uri) {
+		return fromKb(kb, uri, new StringPool());
+	}
+	
+	/**
+	 * @param kb
+	 * @param uri
+	 * 			The concept to read
+	 * @param pool
+	 * 			Where the code, names, qualifiers and Extensible_List values are shared with other records
+	 * @return the record for the concept
+	 */
+	public static ConceptRecord fromKb(OWLKb kb, URI uri, StringPool pool) {
+		ConceptProxy concept = kb.getConcept(uri);
+		ConceptRecord record = new ConceptRecord(pool.intern(concept.getCode()));
+		
+		Property preferredName = concept.getProperty("P108");
+		if( preferredName != null ) {
+			record.setPreferredName(pool.intern(preferredName.getValue()));
+		}
+		for( Property synonym : concept.getProperties("P90") ) {
+			record.addSynonym(Synonym.fromProperty(synonym, pool));
+		}
+		for( Property definition : concept.getProperties("P325") ) {
+			Vector<Qualifier> quals = definition.getQualifiers();
+			for( Qualifier qual : quals ) {
+				if( qual.getName().equals("Definition Source") && qual.getValue().equals("CDISC")) {
+					record.setCdiscDefinition(definition.getValue());
+				}
+			}
+		}
+		for( Property exList : concept.getProperties("P361") ) {
+			record.addExtensibleList(pool.intern(exList.getValue()));
+		}
+		record.setDeprecated(kb.isDeprecated(uri));
+		return record;
+	}
+	
+	public String getCode() {
+		return code;
+	}
+	
+	public String getPreferredName() {
+		return preferredName;
+	}
+	
+	public void setPreferredName(String preferredName) {
+		this.preferredName = preferredName;
+	}
+	
+	/**
+	 * @return the last CDISC sourced definition, or null if there is none
+	 */
+	public String getCdiscDefinition() {
+		return cdiscDefinition;
+	}
+	
+	public void setCdiscDefinition(String cdiscDefinition) {
+		this.cdiscDefinition = cdiscDefinition;
+	}
+	
+	public boolean isDeprecated() {
+		return deprecated;
+	}
+	
+	public void setDeprecated(boolean deprecated) {
+		this.deprecated = deprecated;
+	}
+	
+	/**
+	 * @return the synonyms in document order
+	 */
+	public List<Synonym> getSynonyms() {
+		return Collections.unmodifiableList(Arrays.asList(synonyms));
+	}
+	
+	public void addSynonym(Synonym synonym) {
+		synonyms = Arrays.copyOf(synonyms, synonyms.length + 1);
+		synonyms[synonyms.length - 1] = synonym;
+	}
+	
+	/**
+	 * @param source
+	 * 			Term Source, e.g. CDISC or NCI
+	 * @param group
+	 * 			Term Type, e.g. PT, SY or AB
+	 * @return the synonyms with that source and type in document order, empty if there are none
+	 */
+	public List<Synonym> getSynonyms(String source, String group) {
+		ArrayList<Synonym> matches = null;
+		Synonym first = null;
+		for( Synonym synonym : synonyms ) {
+			if( synonym.is(source, group) ) {
+				if( first == null ) {
+					first = synonym;
+				}
+				else {
+					if( matches == null ) {
+						matches = new ArrayList<Synonym>(4);
+						matches.add(first);
+					}
+					matches.add(synonym);
+				}
+			}
+		}
+		if( matches != null ) {
+			return matches;
+		}
+		return first == null ? Collections.<Synonym>emptyList() : Collections.singletonList(first);
+	}
+	
+	/**
+	 * @return the Extensible_List values in document order
+	 */
+	public List<String> getExtensibleLists() {
+		return Collections.unmodifiableList(Arrays.asList(extensibleLists));
+	}
+	
+	public void addExtensibleList(String extensible) {
+		extensibleLists = Arrays.copyOf(extensibleLists, extensibleLists.length + 1);
+		extensibleLists[extensibleLists.length - 1] = extensible;
+	}
+	
+	/**
+	 * @param other
+	 * 			A record of the same concept, from another model
+	 * @return true if it has the same Preferred_Name, synonyms, CDISC definition,
+	 * 			Extensible_List values and deprecation, so a report can't tell them apart
+	 */
+	public boolean sameAs(ConceptRecord other) {
+		return other != null && code.equals(other.code) && deprecated == other.deprecated
+				&& equal(preferredName, other.preferredName) && equal(cdiscDefinition, other.cdiscDefinition)
+				&& Arrays.equals(synonyms, other.synonyms) && Arrays.equals(extensibleLists, other.extensibleLists);
+	}
+	
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
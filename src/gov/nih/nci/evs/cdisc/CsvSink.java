@@ -0,0 +1,65 @@
+/* Writes a CDISC report as comma separated values.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * The &lt;root name&gt;.csv report: the rows of the .txt in UTF-8, quoted as
+ * RFC 4180 where a cell has a comma, quote or line break, lines ending in CRLF,
+ * and an empty cell where the .txt has "null".
+ */
+public class CsvSink implements ReportSink {
+
+	private final File file;
+	private final PrintWriter pw;
+
+	/**
+	 * @param file
+	 * 			The file to write
+	 */
+	public CsvSink(File file) throws IOException {
+		this.file = file;
+		this.pw = new PrintWriter(file, "UTF-8");
+	}
+
+	public void header(String[] header) {
+		printRow(header);
+	}
+
+	public void codelist(CodelistBlock block) {
+		printRow(block.getCodelistRow());
+		for( String[] row : block.getElementRows() ) {
+			printRow(row);
+		}
+	}
+
+	public void close() throws IOException {
+		pw.close();
+		if( pw.checkError() ) {
+			throw new IOException("Couldn't write " + file);
+		}
+	}
+
+	private void printRow(String[] row) {
+		for( int i = 0; i < row.length; i++ ) {
+			if( i > 0 ) pw.print(",");
+			String value = ReportFormat.value(row[i]);
+			if( value == null ) {
+				continue;
+			}
+			if( value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0 ) {
+				pw.print("\"" + value.replace("\"", "\"\"") + "\"");
+			}
+			else {
+				pw.print(value);
+			}
+		}
+		pw.print("\r\n");
+	}
+}
@@ -0,0 +1,414 @@
+/* Checks the values of submission datasets against the codelists.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams datasets exported as CSV (tab delimited if the file ends in .tsv or
+ * .txt) with a header row, and checks the value of each variable mapped to a
+ * codelist with a {@link CodelistLookup}. A variable is checked against the
+ * codelist it is mapped to, or without a map, against the codelist whose
+ * submission value is the variable's name, as with SEX or DOMAIN.
+ * <p>
+ * The reading thread only cuts the file into records; batches of records are
+ * split and checked on a thread pool, and their findings written in file
+ * order as the batches finish, so memory doesn't grow with the dataset and
+ * the findings are the same whatever the number of threads. A finding is
+ * written for a value that isn't a submission value of a non-extensible
+ * codelist, one that is a CDISC synonym rather than the submission value, and
+ * one that is a submission value in another case. Values an extensible
+ * codelist doesn't have are only counted. Empty values aren't checked.
+ */
+public class DatasetChecker {
+
+	/** The findings file columns. */
+	public static final String[] HEADER = { "Severity", "Rule", "Dataset", "Line", "Variable", "Value", "Codelist", "Expected", "Message" };
+
+	/** Records checked by one task. */
+	public static final int BATCH = 8192;
+
+	/** The findings for each check result, indexed by it; null where there is none. */
+	private static final String[] RULES = { null, "submission-value-case", "synonym-value", null, "not-in-codelist" };
+	private static final String[] SEVERITIES = { null, Finding.WARNING, Finding.ERROR, null, Finding.ERROR };
+
+	private final CodelistLookup lookup;
+	private final Map<String,String> variables;
+	private final int threads;
+	private long records = 0;
+	private long values = 0;
+	private final long[] counts = new long[RULES.length];
+
+	/**
+	 * What one batch found.
+	 */
+	private static class Batch {
+		final StringBuilder findings = new StringBuilder();
+		long values = 0;
+		final long[] counts = new long[RULES.length];
+	}
+
+	/**
+	 * @param lookup
+	 * 			The codelists to check against
+	 * @param variables
+	 * 			Variable name to codelist code, submission value or name, ignoring the case of
+	 * 			the variable; null to check the variables named after a codelist
+	 * @param threads
+	 * 			Number of batches to check at once
+	 */
+	public DatasetChecker(CodelistLookup lookup, Map<String,String> variables, int threads) {
+		this.lookup = lookup;
+		this.threads = threads;
+		if( variables == null ) {
+			this.variables = null;
+		}
+		else {
+			this.variables = new LinkedHashMap<String,String>();
+			for( Map.Entry<String,String> variable : variables.entrySet() ) {
+				this.variables.put(variable.getKey().toUpperCase(), variable.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @param file
+	 * 			One variable per line, followed by a tab, space or = and the codelist's code,
+	 * 			submission value or name. Blank lines and lines starting with # are ignored.
+	 * @return the variables with their codelists
+	 */
+	public static LinkedHashMap<String,String> readVariables(File file) throws IOException {
+		LinkedHashMap<String,String> variables = new LinkedHashMap<String,String>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while( (line = br.readLine()) != null ) {
+				line = line.trim();
+				if( line.length() == 0 || line.startsWith("#") ) continue;
+				String[] pair = line.split("\\s*[=\\t ]\\s*", 2);
+				if( pair.length < 2 ) {
+					throw new IOException("No codelist for variable " + pair[0] + " in " + file);
+				}
+				variables.put(pair[0], pair[1]);
+			}
+		} finally {
+			br.close();
+		}
+		return variables;
+	}
+
+	/**
+	 * Writes the header of the findings.
+	 *
+	 * @param out
+	 */
+	public void header(Writer out) throws IOException {
+		out.write(format(HEADER));
+	}
+
+	/**
+	 * Checks every mapped variable of the dataset, writing the findings to out
+	 * as they are found.
+	 *
+	 * @param dataset
+	 * @param out
+	 * 			Where the findings go, after {@link #header(Writer)}
+	 */
+	public void check(File dataset, Writer out) throws IOException {
+		final char delimiter = dataset.getName().toLowerCase().endsWith(".tsv")
+				|| dataset.getName().toLowerCase().endsWith(".txt") ? '\t' : ',';
+		final String name = dataset.getName();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(dataset), "UTF-8"), 1 << 20);
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			final boolean quoted = delimiter == ',';
+			long[] line = { 0, 0 };
+			String header = readRecord(br, line, quoted);
+			if( header == null ) {
+				System.out.println(name + " is empty");
+				return;
+			}
+			final String[] columns = split(header, delimiter, quoted, null, null);
+			final CodelistLookup.Codelist[] codelists = new CodelistLookup.Codelist[columns.length];
+			boolean any = false;
+			for( int i = 0; i < columns.length; i++ ) {
+				String variable = columns[i].trim();
+				String key = variables == null ? variable : variables.get(variable.toUpperCase());
+				if( key != null ) {
+					codelists[i] = lookup.find(key);
+					if( codelists[i] == null && variables != null ) {
+						System.out.println("No codelist " + key + " for " + variable + " in " + name);
+					}
+				}
+				if( codelists[i] != null ) {
+					System.out.println("Checking " + name + " " + variable + " against " + codelists[i]);
+					any = true;
+				}
+			}
+			if( !any ) {
+				System.out.println("No variable of " + name + " has a codelist");
+				return;
+			}
+
+			ArrayDeque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+			String record = readRecord(br, line, quoted);
+			while( record != null ) {
+				final String[] batch = new String[BATCH];
+				final long[] lines = new long[BATCH];
+				int size = 0;
+				while( record != null && size < BATCH ) {
+					batch[size] = record;
+					lines[size++] = line[1];
+					record = readRecord(br, line, quoted);
+				}
+				records += size;
+				if( pool == null ) {
+					write(check(name, columns, codelists, delimiter, quoted, batch, lines, size), out);
+					continue;
+				}
+				final int batchSize = size;
+				//Enough in flight to keep every thread busy, without reading ahead of the writer
+				if( pending.size() >= threads * 2 ) {
+					write(pending.removeFirst(), out);
+				}
+				pending.addLast(pool.submit(new Callable<Batch>() {
+					public Batch call() {
+						return check(name, columns, codelists, delimiter, quoted, batch, lines, batchSize);
+					}
+				}));
+			}
+			while( !pending.isEmpty() ) {
+				write(pending.removeFirst(), out);
+			}
+		} finally {
+			if( pool != null ) {
+				pool.shutdownNow();
+			}
+			br.close();
+		}
+	}
+
+	private void write(Future<Batch> batch, Writer out) throws IOException {
+		try {
+			write(batch.get(), out);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while checking", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Checking failed", e.getCause());
+		}
+	}
+
+	private void write(Batch batch, Writer out) throws IOException {
+		out.write(batch.findings.toString());
+		values += batch.values;
+		for( int i = 0; i < counts.length; i++ ) {
+			counts[i] += batch.counts[i];
+		}
+	}
+
+	private Batch check(String dataset, String[] columns, CodelistLookup.Codelist[] codelists, char delimiter, boolean quoted,
+			String[] records, long[] lines, int size) {
+		Batch batch = new Batch();
+		String[] fields = new String[columns.length];
+		for( int r = 0; r < size; r++ ) {
+			split(records[r], delimiter, quoted, codelists, fields);
+			for( int i = 0; i < codelists.length; i++ ) {
+				if( codelists[i] == null || fields[i] == null ) {
+					continue;
+				}
+				String value = fields[i].trim();
+				if( value.length() == 0 ) {
+					continue;
+				}
+				batch.values++;
+				int result = codelists[i].check(value);
+				batch.counts[result]++;
+				if( RULES[result] != null ) {
+					String expected = result == CodelistLookup.INVALID ? null : codelists[i].submissionValueFor(value);
+					String message;
+					if( result == CodelistLookup.INVALID ) {
+						message = "Not a submission value of non-extensible codelist " + codelists[i];
+					}
+					else if( result == CodelistLookup.SYNONYM ) {
+						message = "A CDISC synonym of " + codelists[i].getTermCode(expected) + "; submit " + expected;
+					}
+					else {
+						message = "Submission value in another case; submit " + expected;
+					}
+					batch.findings.append(format(new String[] { SEVERITIES[result], RULES[result], dataset, String.valueOf(lines[r]),
+							columns[i].trim(), value, codelists[i].getCode(), expected, message }));
+				}
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * @param br
+	 * @param line
+	 * 			The number of lines read so far, then the line the record starts on; both updated
+	 * @param quoted
+	 * 			Whether values may be quoted, and so have line breaks
+	 * @return the next record, several lines if a quoted value has line breaks, or null at the end
+	 */
+	private static String readRecord(BufferedReader br, long[] line, boolean quoted) throws IOException {
+		String record = br.readLine();
+		if( record == null ) {
+			return null;
+		}
+		line[1] = ++line[0];
+		while( quoted && quotes(record) % 2 != 0 ) {
+			String next = br.readLine();
+			if( next == null ) {
+				break;
+			}
+			line[0]++;
+			record = record + "\n" + next;
+		}
+		return record;
+	}
+
+	private static int quotes(String record) {
+		int quotes = 0;
+		for( int i = 0; i < record.length(); i++ ) {
+			if( record.charAt(i) == '"' ) quotes++;
+		}
+		return quotes;
+	}
+
+	/**
+	 * Splits a record on the delimiter, taking "" in a quoted value as a quote.
+	 *
+	 * @param record
+	 * @param delimiter
+	 * @param quoted
+	 * 			Whether values may be quoted
+	 * @param wanted
+	 * 			The values to keep, where it isn't null, or null for every value
+	 * @param fields
+	 * 			Where the values are put, null for one not wanted or not in the record; or null
+	 * @return the fields
+	 */
+	static String[] split(String record, char delimiter, boolean quoted, Object[] wanted, String[] fields) {
+		ArrayList<String> all = fields == null ? new ArrayList<String>() : null;
+		int field = 0;
+		int i = 0;
+		int length = record.length();
+		while( true ) {
+			boolean keep = wanted == null || (field < wanted.length && wanted[field] != null);
+			String value;
+			if( quoted && i < length && record.charAt(i) == '"' ) {
+				StringBuilder sb = keep ? new StringBuilder() : null;
+				i++;
+				while( i < length ) {
+					char c = record.charAt(i++);
+					if( c == '"' ) {
+						if( quoted && i < length && record.charAt(i) == '"' ) {
+							i++;
+						}
+						else {
+							break;
+						}
+					}
+					if( keep ) sb.append(c);
+				}
+				while( i < length && record.charAt(i) != delimiter ) {
+					i++;
+				}
+				value = keep ? sb.toString() : null;
+			}
+			else {
+				int end = record.indexOf(delimiter, i);
+				if( end < 0 ) end = length;
+				value = keep ? record.substring(i, end) : null;
+				i = end;
+			}
+			if( all != null ) {
+				all.add(value);
+			}
+			else if( field < fields.length ) {
+				fields[field] = value;
+			}
+			field++;
+			if( i >= length ) {
+				break;
+			}
+			i++;
+		}
+		if( fields != null ) {
+			for( ; field < fields.length; field++ ) {
+				fields[field] = null;
+			}
+			return fields;
+		}
+		return all.toArray(new String[all.size()]);
+	}
+
+	/**
+	 * @param row
+	 * @return the row as a line of the findings file, "" for a missing value
+	 */
+	private static String format(String[] row) {
+		StringBuilder sb = new StringBuilder();
+		for( int i = 0; i < row.length; i++ ) {
+			//Keep each finding on one line
+			sb.append(row[i] == null ? "" : row[i].replace('\t', ' ').replace('\n', ' '));
+			sb.append(i + 1 < row.length ? '\t' : '\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the records read, not counting the header rows
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return the values checked
+	 */
+	public long getValues() {
+		return values;
+	}
+
+	/**
+	 * @param result
+	 * 			A {@link CodelistLookup} check result
+	 * @return the number of values checked with that result
+	 */
+	public long getCount(int result) {
+		return counts[result];
+	}
+
+	/**
+	 * @return the number of values by result, one line each
+	 */
+	public String summary() {
+		String[] names = { "valid", "submission-value-case", "synonym-value", "extended", "not-in-codelist" };
+		StringBuilder sb = new StringBuilder();
+		for( int i = 0; i < names.length; i++ ) {
+			String severity = SEVERITIES[i] == null ? "" : SEVERITIES[i] + " ";
+			sb.append(String.format("%12d %s%s%n", counts[i], severity, names[i]));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,227 @@
+/* Writes a CDISC report straight to an Excel workbook.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFFont;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.hssf.util.HSSFColor;
+
+/**
+ * The &lt;root name&gt;.xls report, built from the rows as they are produced rather
+ * than by reading the .txt back in. The layout follows AsciiToExcelFormatter:
+ * a bold header filled light yellow (grey if there is no Extensible column), codelist
+ * rows (those with an Extensible value) bold on light cornflower blue, wrapping in
+ * any column with a value over 30 characters, column widths from the longest value,
+ * and the header row frozen.
+ */
+public class ExcelSink implements ReportSink {
+
+	private static final int WRAP_LENGTH = 30;
+	private static final int ROW_HEIGHT = 12;
+	private static final int CHAR_WIDTH = 315;
+	private static final int MAX_COLUMN_WIDTH = 20000;
+	private static final int HEADER_WORD_LENGTH = 10;
+	
+	private final File file;
+	private final HSSFWorkbook wb;
+	private final HSSFSheet sheet;
+	private final HSSFCellStyle headerStyle;
+	private final HSSFCellStyle codelistStyle;
+	private final HSSFCellStyle wrapStyle;
+	
+	private String[] header = new String[0];
+	private int extensibleColumn = -1;
+	private int rownum = 0;
+	private int[] maxChars = new int[0];
+	private boolean[] used = new boolean[0];
+	private boolean[] wrapped = new boolean[0];
+	
+	/**
+	 * @param file
+	 * 			The workbook to write
+	 * @param sheetName
+	 * 			Name for the sheet, trimmed at the first '.' or "__" as the formatter does
+	 */
+	public ExcelSink(File file, String sheetName) {
+		this.file = file;
+		if( sheetName.indexOf(".") != -1 ) sheetName = sheetName.substring(0, sheetName.indexOf("."));
+		if( sheetName.indexOf("__") != -1 ) sheetName = sheetName.substring(0, sheetName.indexOf("__"));
+		
+		wb = new HSSFWorkbook();
+		sheet = wb.createSheet(sheetName);
+		
+		HSSFFont bold = wb.createFont();
+		bold.setColor(HSSFColor.BLACK.index);
+		bold.setBoldweight(HSSFFont.BOLDWEIGHT_BOLD);
+		
+		headerStyle = wb.createCellStyle();
+		headerStyle.setFont(bold);
+		headerStyle.setFillPattern(HSSFCellStyle.SOLID_FOREGROUND);
+		headerStyle.setAlignment(HSSFCellStyle.ALIGN_LEFT);
+		headerStyle.setWrapText(true);
+		
+		codelistStyle = wb.createCellStyle();
+		codelistStyle.setFont(bold);
+		codelistStyle.setFillForegroundColor(HSSFColor.LIGHT_CORNFLOWER_BLUE.index);
+		codelistStyle.setFillPattern(HSSFCellStyle.SOLID_FOREGROUND);
+		codelistStyle.setAlignment(HSSFCellStyle.ALIGN_LEFT);
+		
+		wrapStyle = wb.createCellStyle();
+		wrapStyle.setWrapText(true);
+		wrapStyle.setAlignment(HSSFCellStyle.ALIGN_GENERAL);
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public void header(String[] header) {
+		this.header = header;
+		maxChars = new int[header.length];
+		used = new boolean[header.length];
+		wrapped = new boolean[header.length];
+		for( int i = 0; i < header.length; i++ ) {
+			if( extensibleColumn == -1 && header[i].contains("Extensible") ) {
+				extensibleColumn = i;
+			}
+		}
+		headerStyle.setFillForegroundColor(extensibleColumn == -1 ? HSSFColor.GREY_25_PERCENT.index : HSSFColor.LIGHT_YELLOW.index);
+		
+		HSSFRow row = sheet.createRow(0);
+		for( int i = 0; i < header.length; i++ ) {
+			HSSFCell cell = row.createCell(i);
+			cell.setCellStyle(headerStyle);
+			setValue(cell, i, header[i]);
+		}
+	}
+	
+	public void codelist(CodelistBlock block) {
+		addRow(block.getCodelistRow());
+		for( String[] row : block.getElementRows() ) {
+			addRow(row);
+		}
+	}
+	
+	public void close() throws IOException {
+		//Wrapping and widths depend on every row, which the formatter found with extra passes over the file
+		for( int r = 1; r <= rownum; r++ ) {
+			HSSFRow row = sheet.getRow(r);
+			for( int i = 0; i < wrapped.length; i++ ) {
+				HSSFCell cell = row.getCell(i);
+				if( wrapped[i] && cell != null && cell.getCellStyle().getIndex() != codelistStyle.getIndex() ) {
+					cell.setCellStyle(wrapStyle);
+				}
+			}
+		}
+		
+		int headerLines = 1;
+		for( int i = 0; i < header.length; i++ ) {
+			Vector<String> words = tokenize(header[i], " ");
+			for( String word : words ) {
+				if( word.length() > maxChars[i] ) maxChars[i] = word.length();
+			}
+			if( maxChars[i] < HEADER_WORD_LENGTH && words.size() > headerLines ) {
+				headerLines = words.size();
+			}
+		}
+		if( sheet.getRow(0) != null ) {
+			sheet.getRow(0).setHeightInPoints(ROW_HEIGHT * headerLines);
+		}
+		
+		for( int i = 0; i < maxChars.length; i++ ) {
+			if( used[i] ) {
+				sheet.setColumnWidth(i, Math.min(maxChars[i] * CHAR_WIDTH, MAX_COLUMN_WIDTH));
+			}
+		}
+		sheet.createFreezePane(0, 1, 0, 1);
+		
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			wb.write(out);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * @param cells
+	 * 			One data row
+	 */
+	private void addRow(String[] cells) {
+		//The formatter's tokenizer drops a trailing empty cell, so no cell is created for it
+		int size = cells.length;
+		if( size > 0 && cells[size - 1].length() == 0 ) size--;
+		boolean codelistRow = extensibleColumn != -1 && extensibleColumn < size && cells[extensibleColumn].trim().length() > 0;
+		
+		HSSFRow row = sheet.createRow(++rownum);
+		row.setHeightInPoints(ROW_HEIGHT);
+		growColumns(size);
+		for( int i = 0; i < size; i++ ) {
+			HSSFCell cell = row.createCell(i);
+			if( codelistRow ) {
+				cell.setCellStyle(codelistStyle);
+			}
+			if( cells[i].length() > maxChars[i] ) maxChars[i] = cells[i].length();
+			if( cells[i].length() > WRAP_LENGTH ) wrapped[i] = true;
+			setValue(cell, i, cells[i]);
+		}
+	}
+	
+	private void setValue(HSSFCell cell, int column, String value) {
+		value = value.trim();
+		if( value.length() > 0 ) {
+			used[column] = true;
+			cell.setCellValue(value);
+		}
+	}
+	
+	private void growColumns(int size) {
+		if( size <= maxChars.length ) return;
+		int[] chars = new int[size];
+		boolean[] isUsed = new boolean[size];
+		boolean[] isWrapped = new boolean[size];
+		System.arraycopy(maxChars, 0, chars, 0, maxChars.length);
+		System.arraycopy(used, 0, isUsed, 0, used.length);
+		System.arraycopy(wrapped, 0, isWrapped, 0, wrapped.length);
+		maxChars = chars;
+		used = isUsed;
+		wrapped = isWrapped;
+	}
+	
+	/**
+	 * @param s
+	 * @param delimiter
+	 * @return the tokens of s, with an empty token between adjacent delimiters, as the formatter splits them
+	 */
+	private static Vector<String> tokenize(String s, String delimiter) {
+		Vector<String> tokens = new Vector<String>();
+		StringTokenizer st = new StringTokenizer(s, delimiter, true);
+		boolean lastWasDelimiter = true;
+		while( st.hasMoreTokens() ) {
+			String token = st.nextToken();
+			if( token.equals(delimiter) ) {
+				if( lastWasDelimiter ) tokens.add("");
+				lastWasDelimiter = true;
+			}
+			else {
+				tokens.add(token);
+				lastWasDelimiter = false;
+			}
+		}
+		return tokens;
+	}
+}
@@ -0,0 +1,102 @@
+/* One problem found by a validation rule.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+/**
+ * What a {@link ValidationRule} found, where: the root, the codelist and, for
+ * problems with a member, the element concept.
+ */
+public class Finding {
+
+	/** The findings file columns. */
+	public static final String[] HEADER = { "Severity", "Rule", "Root", "Codelist", "Concept", "Message" };
+
+	public static final String ERROR = "ERROR";
+	public static final String WARNING = "WARNING";
+
+	private final String severity;
+	private final String rule;
+	private final String root;
+	private final String codelist;
+	private final String concept;
+	private final String message;
+
+	/**
+	 * @param severity
+	 * 			{@link #ERROR} if the report comes out wrong, {@link #WARNING} if it should be looked at
+	 * @param rule
+	 * 			The name of the rule
+	 * @param root
+	 * 			The root concept code
+	 * @param codelist
+	 * 			The codelist concept code, or null for a problem with the root
+	 * @param concept
+	 * 			The concept with the problem: the codelist, or an element of it
+	 * @param message
+	 * 			What is wrong
+	 */
+	public Finding(String severity, String rule, String root, String codelist, String concept, String message) {
+		this.severity = severity;
+		this.rule = rule;
+		this.root = root;
+		this.codelist = codelist;
+		this.concept = concept;
+		this.message = message;
+	}
+
+	public String getSeverity() {
+		return severity;
+	}
+
+	public String getRule() {
+		return rule;
+	}
+
+	public String getRoot() {
+		return root;
+	}
+
+	public String getCodelist() {
+		return codelist;
+	}
+
+	public String getConcept() {
+		return concept;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the cells of the findings file, "" for a missing value
+	 */
+	public String[] toRow() {
+		String[] row = { severity, rule, root, codelist, concept, message };
+		for( int i = 0; i < row.length; i++ ) {
+			if( row[i] == null ) row[i] = "";
+		}
+		return row;
+	}
+
+	/**
+	 * @return the finding as a JSON object
+	 */
+	public String toJson() {
+		String[] row = { severity, rule, root, codelist, concept, message };
+		StringBuilder sb = new StringBuilder("{ ");
+		for( int i = 0; i < row.length; i++ ) {
+			if( i > 0 ) sb.append(", ");
+			sb.append(RunMetrics.quote(HEADER[i].toLowerCase())).append(": ");
+			sb.append(row[i] == null ? "null" : RunMetrics.quote(row[i]));
+		}
+		return sb.append(" }").toString();
+	}
+
+	public String toString() {
+		return severity + " " + rule + " " + (concept == null ? root : concept) + ": " + message;
+	}
+}
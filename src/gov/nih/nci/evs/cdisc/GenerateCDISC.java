@@ -6,53 +6,665 @@
 package gov.nih.nci.evs.cdisc;
 
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 
 import gov.nih.nci.evs.owl.data.OWLKb;
-import gov.nih.nci.evs.owl.entity.Association;
-import gov.nih.nci.evs.owl.entity.Property;
-import gov.nih.nci.evs.owl.entity.Qualifier;
-import gov.nih.nci.evs.owl.entity.Relationship;
-import gov.nih.nci.evs.owl.proxy.ConceptProxy;
 import gov.nih.nci.evs.reportwriter.formatter.AsciiToExcelFormatter;
 
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
 public class GenerateCDISC {
 	
+	/** The report columns. */
+	public static final String[] HEADER = { "Code", "Codelist Code", "Codelist Extensible (Yes/No)", "Codelist Name", "CDISC Submission Value", "CDISC Synonym(s)", "CDISC Definition", "NCI Preferred Term"};
+	
 	OWLKb kb = null;
+	SubsetIndex subsetIndex = null;
+	RootScope rootScope = null;
+	ConceptCache conceptCache = null;
+	CdiscModel model = new CdiscModel();
+	RunMetrics metrics = new RunMetrics();
 	private final String namespace = "http://ncicb.nci.nih.gov/xml/owl/EVS/Thesaurus.owl";
 	boolean checkShortNameLength = true;
+	int threads = Runtime.getRuntime().availableProcessors();
+	boolean useFormatter = false;
+	int cacheSize = 0;
+	boolean lazy = false;
+	Collation collation = Collation.DEFAULT;
+	Checkpoints checkpoints = null;
+	BlockCache blockCache = null;
+	CodelistLookup lookup = null;
+	ReleaseBundle bundle = null;
+	ShardCoordinator shards = null;
+	File outputDir = null;
+	ArrayList<ReportProfile> profiles = new ArrayList<ReportProfile>(Collections.singletonList(ReportProfile.PUBLIC));
+	ArrayList<ReportFormat> formats = new ArrayList<ReportFormat>(Arrays.asList(ReportFormat.TXT, ReportFormat.XLS));
 	
 	/**
-	 * @param args OWL file location and report root concept
+	 * @param args Options, then the OWL file location followed by one or more report root concepts.
+	 * 			See {@link ReportOptions}.
+	 * 			Exits with status 1 if any root failed.
 	 */
 	public static void main(String args[]) {
+		ReportOptions options = ReportOptions.parse(args);
+		Vector<String> roots = options.getRoots();
+
+		configureLogging();
+		ProgressLog.setInterval(options.getProgress());
+		
+		if( options.getServe() >= 0 ) {
+			try {
+				new ReportServer(options).start();
+			} catch (IOException e) {
+				System.out.println("Couldn't start the report server.");
+				e.printStackTrace();
+				System.exit(0);
+			}
+			return;
+		}
+		
+		if( options.getWatch() ) {
+			try {
+				new ReportWatcher(options).start();
+			} catch (IOException e) {
+				System.out.println("Couldn't watch " + options.getOwlFile());
+				e.printStackTrace();
+			}
+			return;
+		}
 
 		GenerateCDISC report = new GenerateCDISC();
+		report.setThreads(options.getThreads());
+		report.setUseFormatter(options.getUseFormatter());
+		report.setCacheSize(options.getCacheSize());
+		report.setLazy(options.getLazy());
+		report.setCollation(options.getCollation());
+		report.setOutputDir(options.getOutputDir());
+		report.setProfiles(options.getProfiles());
+		report.setFormats(options.getFormats());
 		long start = System.currentTimeMillis();		
-		System.out.println("Initializing OWLKb...");
-		report.init(args[0]);
-		System.out.println("Generating report...");
 		
-		//TODO: Iterate over a list of reports to generate	
-		report.generate(args[1]);
-		System.out.println("Finished report in "
+		RunMetrics metrics = report.getMetrics();
+		metrics.setInfo("owlFile", options.getOwlFile());
+		metrics.setInfo("roots", roots);
+		metrics.setInfo("threads", options.getThreads());
+		metrics.setInfo("loader", options.getStream() ? "stream" : "owlkb");
+		metrics.setInfo("lazy", options.getLazy());
+		metrics.setInfo("collation", options.getCollation());
+		metrics.setInfo("profiles", options.getProfiles());
+		metrics.setInfo("formats", options.getFormats());
+		if( options.getSpill() != null ) {
+			Checkpoints checkpoints = new Checkpoints(new File(options.getSpill()), options.getOwlFile(), options.getReportSettings());
+			try {
+				if( checkpoints.open(options.getResume()) ) {
+					boolean excel = options.getUseFormatter() && options.getFormats().contains(ReportFormat.XLS);
+					for( String root : roots ) {
+						String stage = checkpoints.describe(root, excel);
+						System.out.println(stage == null ? "Resuming: " + root + " is done" : "Resuming " + root + " at " + stage);
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("Couldn't use spill directory " + options.getSpill());
+				e.printStackTrace();
+				System.exit(0);
+			}
+			report.setCheckpoints(checkpoints);
+			metrics.setInfo("spill", options.getSpill());
+			metrics.setInfo("resume", options.getResume());
+		}
+		
+		ReleaseBundle bundle = null;
+		if( options.getBundle() != null ) {
+			try {
+				bundle = new ReleaseBundle(options.getBundle());
+			} catch (IOException e) {
+				System.out.println("Couldn't create release bundle " + options.getBundle());
+				e.printStackTrace();
+				System.exit(0);
+			}
+			report.setBundle(bundle);
+			metrics.setInfo("bundle", options.getBundle().getPath());
+		}
+		
+		ShardCoordinator shards = null;
+		if( options.getWorkers() > 0 ) {
+			boolean internal = false;
+			for( ReportProfile profile : options.getProfiles() ) {
+				internal |= profile.isInternal();
+			}
+			try {
+				shards = new ShardCoordinator(options.getWorkers(), options.getWorkerHeap(), internal,
+						options.getSnapshot() != null ? new File(options.getSnapshot()) : null);
+			} catch (IOException e) {
+				System.out.println("Couldn't create a work directory for the shards");
+				e.printStackTrace();
+				System.exit(0);
+			}
+			metrics.setInfo("workers", options.getWorkers());
+		}
+		
+		RunMetrics.Timer load = metrics.start("load");
+		SnapshotStore snapshot = null;
+		CdiscModel snapshotModel = null;
+		if( options.getSnapshot() != null ) {
+			snapshot = new SnapshotStore(new File(options.getSnapshot()), options.getOwlFile());
+			snapshotModel = snapshot.load(roots);
+		}
+		else if( shards != null ) {
+			//Saved like any snapshot, for the workers to map
+			snapshot = new SnapshotStore(shards.getSnapshot(), options.getOwlFile());
+		}
+		if( snapshotModel != null ) {
+			load.stop();
+			metrics.setInfo("loader", "snapshot");
+			report.load(snapshotModel);
+			System.out.println("Loaded snapshot " + snapshot.getFile() + " in "
+			        + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+		}
+		else if( options.getStream() ) {
+			System.out.println("Streaming " + options.getOwlFile() + "...");
+			OwlStreamLoader loader = new OwlStreamLoader(report.getNamespace());
+			try {
+				report.load(loader.load(options.getOwlFile(), roots));
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(0);
+			}
+			load.stop();
+			metrics.count("load", "classes", loader.getClassCount());
+			metrics.count("load", "axioms", loader.getAxiomCount());
+			System.out.println("Streamed " + loader.getClassCount() + " classes and " + loader.getAxiomCount() + " axioms in "
+			        + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+			if( snapshot != null ) {
+				//Sorted first so the snapshot has the indexes
+				for( String root : roots ) {
+					if( report.getModel().hasRoot(root) ) {
+						report.sort(root);
+					}
+				}
+				snapshot.save(report.getModel());
+			}
+		}
+		else if( report.isExtracted(roots) ) {
+			load.stop();
+			metrics.setInfo("loader", "checkpoints");
+			report.load(new CdiscModel());
+			System.out.println("Every root is checkpointed in " + options.getSpill() + ", not loading the OWL file");
+		}
+		else {
+			System.out.println("Initializing OWLKb...");
+			report.init(options.getOwlFile());
+			load.stop();
+			System.out.println("Initialized OWLKb in "
+			        + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+			if( snapshot != null ) {
+				//Extract every root up front so the snapshot is saved even if rendering fails
+				for( String root : roots ) {
+					try {
+						report.extract(root);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+				snapshot.save(report.getModel());
+			}
+		}
+		
+		if( shards != null ) {
+			if( snapshot.getFile().isFile() && report.getModel().getRoots().containsAll(roots) ) {
+				for( String root : roots ) {
+					report.sort(root);
+				}
+				report.releaseKb();
+				shards.start(report.getModel(), roots);
+				report.setShards(shards);
+				System.out.println("Started " + shards.getShardCount() + " shards on " + options.getWorkers() + " workers");
+			}
+			else {
+				System.out.println("Not every root is in the snapshot, generating in this JVM");
+			}
+		}
+		
+		GenerateCDISC previous = null;
+		if( options.getDiff() != null ) {
+			RunMetrics.Timer timer = metrics.start("diff-load");
+			try {
+				previous = open(options.getDiff(), options, roots);
+			} catch (IOException e) {
+				System.out.println("Couldn't load the previous release " + options.getDiff());
+				e.printStackTrace();
+				System.exit(0);
+			} finally {
+				timer.stop();
+			}
+		}
+		
+		Vector<String> failed = new Vector<String>();
+		CodelistLookup lookup = null;
+		if( options.getChecks().size() > 0 ) {
+			//Filled with the blocks as the reports are written
+			lookup = new CodelistLookup();
+			report.setLookup(lookup);
+		}
+		if( options.getValidate() != null ) {
+			Vector<String> extracted = new Vector<String>();
+			for( String root : roots ) {
+				try {
+					report.extract(root);
+					extracted.add(root);
+				} catch (Exception e) {
+					System.out.println("Couldn't extract " + root + " to validate it");
+					e.printStackTrace();
+					failed.add(root);
+				}
+			}
+			RunMetrics.Timer timer = metrics.start("validate");
+			ArrayList<Finding> findings = new Validator(options.getRules(), options.getThreads())
+			        .validate(report.getModel(), extracted);
+			timer.stop();
+			int errors = 0;
+			for( Finding finding : findings ) {
+				if( finding.getSeverity().equals(Finding.ERROR) ) errors++;
+			}
+			metrics.count("validate", "rules", options.getRules().size());
+			metrics.count("validate", "findings", findings.size());
+			metrics.count("validate", "errors", errors);
+			metrics.count("validate", "warnings", findings.size() - errors);
+			try {
+				Validator.write(findings, new File(options.getValidate()));
+				System.out.println("Wrote " + findings.size() + " findings to " + options.getValidate());
+			} catch (IOException e) {
+				System.out.println("Couldn't write findings to " + options.getValidate());
+				e.printStackTrace();
+			}
+			System.out.print(Validator.summary(findings));
+		}
+		
+		for( String root : roots ) {
+			if( options.getNoReport() || failed.contains(root) ) {
+				continue;
+			}
+			long reportStart = System.currentTimeMillis();
+			System.out.println("Generating report for " + root + "...");
+			try {
+				report.generate(root);
+			} catch (Exception e) {
+				//Keep going so one bad root doesn't cost the rest of the batch
+				e.printStackTrace();
+				failed.add(root);
+				continue;
+			}
+			if( previous != null ) {
+				try {
+					new ReleaseDiff(previous, report).write(root, report.outputDir);
+					String name = report.getModel().getRootName(root) + " Changes";
+					report.bundle(new File(report.outputDir, name + ".txt"));
+					report.bundle(new File(report.outputDir, name + ".xls"));
+				} catch (Exception e) {
+					e.printStackTrace();
+					failed.add(root);
+					continue;
+				}
+			}
+			System.out.println("Finished " + root + " in "
+			        + (System.currentTimeMillis() - reportStart) / 1000 + " seconds.");
+		}
+		if( bundle != null ) {
+			//Only what is still being compressed is waited for
+			RunMetrics.Timer timer = metrics.start("bundle");
+			try {
+				bundle.close();
+				System.out.println("Bundled " + bundle.size() + " files, " + bundle.getUncompressedBytes() + " bytes, into "
+				        + bundle.getFile() + " (" + bundle.getBytes() + " bytes) with " + ReleaseBundle.MANIFEST + " and "
+				        + bundle.getFile().getName() + ".sha256");
+			} catch (IOException e) {
+				System.out.println("Couldn't write release bundle " + bundle.getFile());
+				e.printStackTrace();
+			} finally {
+				timer.stop();
+			}
+			metrics.count("bundle", "files", bundle.size());
+			metrics.count("bundle", "bytes", bundle.getUncompressedBytes());
+			metrics.count("bundle", "compressed", bundle.getBytes());
+		}
+		if( shards != null ) {
+			shards.close();
+			metrics.count("shards", "shards", shards.getShardCount());
+			metrics.count("shards", "retries", shards.getRetries());
+			metrics.count("shards", "failed", shards.getFailures());
+		}
+		if( lookup != null ) {
+			for( String root : roots ) {
+				if( failed.contains(root) || lookup.hasRoot(root) ) {
+					continue;
+				}
+				try {
+					lookup.addRoot(report, root);
+				} catch (Exception e) {
+					System.out.println("Couldn't extract " + root + " to check the datasets against it");
+					e.printStackTrace();
+					failed.add(root);
+				}
+			}
+			check(options, lookup, metrics);
+		}
+		if( report.conceptCache != null ) {
+			System.out.println(report.conceptCache);
+			metrics.count("cache", "hits", report.conceptCache.getHits());
+			metrics.count("cache", "misses", report.conceptCache.getMisses());
+			metrics.count("cache", "evictions", report.conceptCache.getEvictions());
+		}
+		if( report.rootScope != null ) {
+			metrics.count("scope", "lookups", report.rootScope.getLookups());
+			metrics.count("scope", "associations", report.rootScope.getAssociationCount());
+		}
+		System.out.print(metrics.summary());
+		if( options.getMetrics() != null ) {
+			try {
+				metrics.write(new File(options.getMetrics()));
+			} catch (IOException e) {
+				System.out.println("Couldn't write metrics to " + options.getMetrics());
+				e.printStackTrace();
+			}
+		}
+		if( failed.size() > 0 ) {
+			System.out.println("Failed to generate: " + failed);
+		}
+		System.out.println("Finished " + (roots.size() - failed.size()) + " of " + roots.size() + (options.getNoReport() ? " roots in " : " reports in ")
 		        + (System.currentTimeMillis() - start) / 1000 + " seconds.");		
+		if( failed.size() > 0 ) {
+			//So whatever runs the batch can tell it only partly finished
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Checks each -check dataset against the codelists of the roots, writing
+	 * the findings to the -check-findings file as they are found.
+	 * 
+	 * @param options
+	 * @param lookup
+	 * 			The codelists of every root
+	 * @param metrics
+	 */
+	private static void check(ReportOptions options, CodelistLookup lookup, RunMetrics metrics) {
+		Map<String,String> variables = null;
+		if( options.getCheckMap() != null ) {
+			try {
+				variables = DatasetChecker.readVariables(new File(options.getCheckMap()));
+			} catch (IOException e) {
+				System.out.println("Couldn't read the variables in " + options.getCheckMap());
+				e.printStackTrace();
+				return;
+			}
+		}
+		DatasetChecker checker = new DatasetChecker(lookup, variables, options.getThreads());
+		File findings = options.getCheckFindings();
+		RunMetrics.Timer timer = metrics.start("check");
+		long start = System.currentTimeMillis();
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(findings), "UTF-8"), 1 << 16);
+			checker.header(out);
+			for( String dataset : options.getChecks() ) {
+				try {
+					checker.check(new File(dataset), out);
+				} catch (IOException e) {
+					System.out.println("Couldn't check " + dataset);
+					e.printStackTrace();
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Couldn't write findings to " + findings);
+			e.printStackTrace();
+		} finally {
+			if( out != null ) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			timer.stop();
+		}
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+		metrics.count("check", "records", checker.getRecords());
+		metrics.count("check", "values", checker.getValues());
+		metrics.count("check", "invalid", checker.getCount(CodelistLookup.INVALID));
+		metrics.count("check", "synonyms", checker.getCount(CodelistLookup.SYNONYM));
+		metrics.count("check", "case", checker.getCount(CodelistLookup.CASE));
+		metrics.count("check", "extended", checker.getCount(CodelistLookup.EXTENDED));
+		System.out.println("Checked " + checker.getValues() + " values in " + checker.getRecords() + " records in "
+		        + millis / 1000 + " seconds (" + checker.getValues() * 1000 / millis + " values a second), findings in " + findings);
+		System.out.print(checker.summary());
+	}
+	
+	/**
+	 * Loads a release in a GenerateCDISC of its own, set up from the options:
+	 * a snapshot as it is, an OWL file streamed with -stream or else as an
+	 * OWLKb. Used for the previous release of -diff and by {@link ReportServer}.
+	 * 
+	 * @param location
+	 * 			A snapshot or OWL file
+	 * @param options
+	 * @param roots
+	 * 			The roots that will be reported. Only these are kept when streaming.
+	 * @return the release, ready for buildExtractors
+	 */
+	static GenerateCDISC open(String location, ReportOptions options, Collection<String> roots) throws IOException {
+		GenerateCDISC report = new GenerateCDISC();
+		report.setThreads(options.getThreads());
+		report.setCacheSize(options.getCacheSize());
+		report.setLazy(options.getLazy());
+		report.setCollation(options.getCollation());
+		report.setOutputDir(options.getOutputDir());
+		report.setProfiles(options.getProfiles());
+		report.setFormats(options.getFormats());
+		report.setUseFormatter(options.getUseFormatter());
+		File file = SnapshotStore.toFile(location);
+		CdiscModel model = file != null && file.isFile() ? SnapshotStore.read(file) : null;
+		if( model != null ) {
+			System.out.println("Loaded snapshot " + file);
+			report.load(model);
+		}
+		else if( options.getStream() ) {
+			System.out.println("Streaming " + location + "...");
+			report.load(new OwlStreamLoader(report.getNamespace()).load(location, roots));
+		}
+		else {
+			System.out.println("Initializing OWLKb for " + location + "...");
+			report.init(location);
+		}
+		return report;
+	}
+	
+	/**
+	 * Progress is logged through log4j. Without a log4j configuration, log INFO
+	 * and up to the console.
+	 */
+	private static void configureLogging() {
+		Logger root = Logger.getRootLogger();
+		if( !root.getAllAppenders().hasMoreElements() ) {
+			root.addAppender(new ConsoleAppender(new PatternLayout("%d{HH:mm:ss} %-5p %m%n")));
+			root.setLevel(Level.INFO);
+		}
 	}
 	
 	/**
 	 * @param filename
 	 */
 	public void init(String filename) {
-		kb = new OWLKb(filename, namespace);		
+		init(new OWLKb(filename, namespace));
+	}
+	
+	/**
+	 * Reports from a KB that is already loaded.
+	 * 
+	 * @param kb
+	 */
+	public void init(OWLKb kb) {
+		this.kb = kb;
+		subsetIndex = null;
+		rootScope = null;
+		conceptCache = null;
+		model = new CdiscModel();
+		model.setCollation(collation);
+	}
+	
+	/**
+	 * Reports from a model, such as one loaded from a snapshot, without an OWLKb.
+	 * 
+	 * @param model
+	 */
+	public void load(CdiscModel model) {
+		this.model = model;
+		model.setCollation(collation);
+	}
+	
+	public CdiscModel getModel() {
+		return model;
+	}
+	
+	/**
+	 * @return the Concept_In_Subset index for the loaded KB, building it on first use
+	 */
+	public SubsetIndex getSubsetIndex() {
+		if( subsetIndex == null && checkpoints != null ) {
+			try {
+				subsetIndex = checkpoints.readSubsets();
+			} catch (IOException e) {
+				System.out.println("Couldn't read the checkpointed subset index, scanning the KB again");
+				e.printStackTrace();
+			}
+			if( subsetIndex != null ) {
+				System.out.println("Read " + subsetIndex.size() + " subsets from the checkpoints in " + checkpoints.getDir());
+				return subsetIndex;
+			}
+		}
+		if( subsetIndex == null ) {
+			long start = System.currentTimeMillis();
+			RunMetrics.Timer timer = metrics.start("subset-scan");
+			subsetIndex = new SubsetIndex(kb);
+			timer.stop();
+			metrics.count("subset-scan", "concepts", subsetIndex.getConceptCount());
+			metrics.count("subset-scan", "associations", subsetIndex.getAssociationCount());
+			metrics.count("subset-scan", "subsets", subsetIndex.size());
+			System.out.println("Indexed " + subsetIndex.size() + " subsets from " + subsetIndex.getConceptCount() + " concepts in "
+			        + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+			if( checkpoints != null ) {
+				try {
+					checkpoints.writeSubsets(subsetIndex);
+				} catch (IOException e) {
+					throw new RuntimeException("Couldn't checkpoint the subset index in " + checkpoints.getDir(), e);
+				}
+			}
+		}
+		return subsetIndex;
+	}
+	
+	/**
+	 * @return the root-scoped view of the loaded KB that -lazy reads members from, created on first use
+	 */
+	public RootScope getRootScope() {
+		if( rootScope == null ) {
+			rootScope = new RootScope(kb, namespace);
+		}
+		return rootScope;
+	}
+	
+	/**
+	 * @return where stages are checkpointed, or null
+	 */
+	public Checkpoints getCheckpoints() {
+		return checkpoints;
+	}
+	
+	/**
+	 * @param checkpoints
+	 * 			Where to checkpoint the stages of the run and read back those already done, or null
+	 */
+	public void setCheckpoints(Checkpoints checkpoints) {
+		this.checkpoints = checkpoints;
+	}
+	
+	/**
+	 * @param blockCache
+	 * 			Blocks of earlier renders to take in place of building the same again, or null
+	 */
+	public void setBlockCache(BlockCache blockCache) {
+		this.blockCache = blockCache;
+	}
+	
+	/**
+	 * @param lookup
+	 * 			Where to add the blocks as they are written, to check datasets against, or null
+	 */
+	public void setLookup(CodelistLookup lookup) {
+		this.lookup = lookup;
+	}
+	
+	/**
+	 * @param bundle
+	 * 			The zip each root's files are added to once generated, or null
+	 */
+	public void setBundle(ReleaseBundle bundle) {
+		this.bundle = bundle;
+	}
+	
+	/**
+	 * @param shards
+	 * 			The coordinator whose workers build the blocks, with every root started, or null to build them here
+	 */
+	public void setShards(ShardCoordinator shards) {
+		this.shards = shards;
+	}
+	
+	/**
+	 * Lets the KB and everything read from it go once the model has every
+	 * root, which is all reporting needs from then on.
+	 */
+	void releaseKb() {
+		kb = null;
+		subsetIndex = null;
+		rootScope = null;
+		conceptCache = null;
+	}
+	
+	/**
+	 * @return the concept cache for the loaded KB, created on first use
+	 */
+	public ConceptCache getConceptCache() {
+		if( conceptCache == null ) {
+			conceptCache = new ConceptCache(kb, namespace, cacheSize);
+		}
+		return conceptCache;
+	}
+	
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public String getNamespace() {
+		return namespace;
 	}
 	
 	public URI createURI(String code) {
@@ -67,510 +679,537 @@ public class GenerateCDISC {
 	}
 	
 	/**
+	 * Extracts the root into the model, unless it is already there.
+	 * 
 	 * @param root
-	 * 			The root concept to report on
+	 * 			The root concept to extract
 	 */
-	public void generate(String root) {
-		PrintWriter pw = null;
-		File fil = null;
-		String rootName = kb.getConcept(createURI(root)).getProperty("P108").getValue();
-		
-		//TODO: This may become CDISC_COA_Terminology - which is now referred to as QRS (Preferred_Name change)
-		if( root.equals("CDISC_Questionnaire_Terminology") || root.equals("CDISC_Functional_Test_Terminology") || 
-				root.equals("CDISC_Clinical_Classification_Terminology") || root.equals("CDISC_COA_Terminology")) {
-			checkShortNameLength = false;
+	public void extract(String root) {
+		if( model.hasRoot(root) ) {
+			sort(root);
+			return;
 		}
-		
-		try {
-			fil = new File(rootName + ".txt");
-			pw = new PrintWriter(fil);
-		} catch(Exception e) {
-			System.out.println("Couldn't create output file.");
-			System.exit(0);
-		}		
-		
-		URI rootURI = null;
+		if( kb == null && !isExtracted(root) ) {
+			throw new IllegalStateException("No OWLKb is loaded and " + root + " isn't in the model");
+		}
+		long start = System.currentTimeMillis();
+		if( lazy ) {
+			model.setResolver(getConceptCache());
+		}
+		new ModelExtractor(this, threads).extract(root, model);
+		System.out.println("Extracted " + model.getCodelists(root).size() + " codelists for " + root + " in "
+		        + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+		sort(root);
+	}
+	
+	/**
+	 * @param root
+	 * @return true if the root's extraction is checkpointed, so it can be read back without the KB
+	 */
+	boolean isExtracted(String root) {
 		try {
-			rootURI = new URI(namespace + "#" + root);
-		} catch (URISyntaxException e2) {
-			// TODO Auto-generated catch block
-			e2.printStackTrace();
+			return checkpoints != null && checkpoints.isExtracted(root);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * @param roots
+	 * @return true if every root's extraction is checkpointed, so the run needs no KB
+	 */
+	boolean isExtracted(Collection<String> roots) {
+		for( String root : roots ) {
+			if( !isExtracted(root) ) {
+				return false;
+			}
+		}
+		return checkpoints != null;
+	}
+	
+	/**
+	 * Sorts the root's codelist names and, unless the model is lazy, the
+	 * submission values of each codelist, keeping the indexes in the model. A
+	 * codelist name taken by an earlier codelist, ignoring case, stays with it.
+	 * 
+	 * @param root
+	 * 			A root in the model
+	 */
+	void sort(String root) {
+		if( model.getListingIndex(root) != null ) {
+			return;
+		}
+		RunMetrics.Timer timer = metrics.start("sort");
+		List<String> codelistConcepts = model.getCodelists(root);
+		HashSet<String> names = new HashSet<String>();
+		ArrayList<SortKey> keys = new ArrayList<SortKey>();
+		ArrayList<Integer> positions = new ArrayList<Integer>();
+		for( int i = 0; i < codelistConcepts.size(); i++ ) {
+			ConceptRecord codelist = model.getConcept(codelistConcepts.get(i));
+			String nciab = null;
+			for( Synonym synonym : codelist.getSynonyms() ) {
+				if( synonym.is("NCI", "AB") ) {
+					nciab = synonym.getName();
+				}
+				if( synonym.is("CDISC", "SY") ) {
+					SortKey key = model.getSortKey(synonym.getName());
+					if( names.add(key.getFolded()) ) {
+						keys.add(key);
+						positions.add(i);
+					}
+				}
+			}
+			//With -lazy the members are only read as each codelist is written, so each sorts then
+			if( !model.isLazy() ) {
+				CodelistExtractor.getSubmissionIndex(model, codelistConcepts.get(i), nciab);
+			}
 		}
+		model.setListingIndex(root, SortIndex.sort(keys, positions));
+		timer.stop();
+		metrics.count("sort", "codelists", codelistConcepts.size());
+		metrics.count("sort", "listings", keys.size());
+	}
+	
+	/**
+	 * @param root
+	 * @return true for the QRS roots, whose codelist submission values may be over 8 characters
+	 */
+	public static boolean isQrsRoot(String root) {
+		//TODO: This may become CDISC_COA_Terminology - which is now referred to as QRS (Preferred_Name change)
+		return root.equals("CDISC_Questionnaire_Terminology") || root.equals("CDISC_Functional_Test_Terminology") || 
+				root.equals("CDISC_Clinical_Classification_Terminology") || root.equals("CDISC_COA_Terminology");
+	}
+	
+	/**
+	 * Phases 1 and 2: reads the codelists under the root and lines up one
+	 * extractor per codelist listing, in report order.
+	 * 
+	 * @param root
+	 * 			The root concept to report on
+	 * @return the extractors, ready to run
+	 */
+	public ArrayList<CodelistExtractor> buildExtractors(String root) {
+		return buildExtractors(root, 0, -1);
+	}
+	
+	/**
+	 * Phases 1 and 2 for a range of the root's codelist listings, reading only
+	 * the records of the codelists listed in it, as a shard worker does.
+	 * 
+	 * @param root
+	 * 			The root concept to report on
+	 * @param from
+	 * 			The first listing, in report order
+	 * @param to
+	 * 			The listing after the last, or -1 for every listing from the first
+	 * @return the extractors of the listings in the range, ready to run
+	 */
+	public ArrayList<CodelistExtractor> buildExtractors(String root, int from, int to) {
+		extract(root);
 		
-		HashMap<String,String> codelist2NCIAB = new HashMap<String,String>();
-		HashMap<String,String> codelist2NCIPT = new HashMap<String,String>();
-		HashMap<String,String> codelist2CDISCPT = new HashMap<String,String>();
-		HashMap<String,String> codelist2CDISCSY = new HashMap<String,String>();
-		TreeMap<String,String> cdiscsy2Codelist = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER); 
-		HashMap<String,String> codelist2Extensible = new HashMap<String,String>();
-		HashMap<String,String> codelist2Code = new HashMap<String,String>();
-		HashMap<String,String> codelist2Def = new HashMap<String,String>();
-		HashMap<String,ArrayList<String>> codelist2Elements = new HashMap<String,ArrayList<String>>();
-		Vector<URI> codelistConcepts = kb.getAllDescendantsForConcept(rootURI);
+		//Reset per root, otherwise a QRS root earlier in a batch would switch the check off for the rest
+		checkShortNameLength = !isQrsRoot(root);
+		//Only worth a warning if one of the profiles being written has the limit
+		boolean profileChecks = false;
+		boolean internal = false;
+		for( ReportProfile profile : profiles ) {
+			profileChecks |= profile.getCheckShortNameLength();
+			internal |= profile.isInternal();
+		}
+		checkShortNameLength &= profileChecks;
 		
-		codelistConcepts.remove("Nothing");
+		//By the codelist's position under the root
+		List<String> codelistConcepts = model.getCodelists(root);
+		int codelistCount = codelistConcepts.size();
+		SortIndex cdiscsy2Codelist = model.getListingIndex(root);
+		if( to < 0 ) {
+			to = cdiscsy2Codelist.size();
+		}
+		boolean[] listed = new boolean[codelistCount];
+		int listedCount = 0;
+		for( int listing = from; listing < to; listing++ ) {
+			int i = cdiscsy2Codelist.getPosition(listing);
+			if( !listed[i] ) {
+				listed[i] = true;
+				listedCount++;
+			}
+		}
+		String[] codelist2NCIAB = new String[codelistCount];
+		String[] codelist2NCIPT = new String[codelistCount];
+		String[] codelist2CDISCPT = new String[codelistCount];
+		String[] codelist2CDISCSY = new String[codelistCount];
+		//Codelist names are unique ignoring case, see sort(root)
+		HashSet<String> cdiscsyNames = new HashSet<String>();
+		String[] codelist2Extensible = new String[codelistCount];
+		String[] codelist2Code = new String[codelistCount];
+		String[] codelist2Def = new String[codelistCount];
 		
-		for(URI codelistConcept : codelistConcepts ) {
-			// System.out.println(codelistConcept);
-//			Vector<String> synonyms = kb.getPropertyValues(codelistConcept, "FULL_SYN");
-			Vector<Property> synonyms = kb.getConcept(codelistConcept).getProperties("P90");
-			for( Property synonym : synonyms ) {
-				String termName = synonym.getValue();
-				String termSource = "";
-				String termGroup = "";
-				Vector<Qualifier> quals = synonym.getQualifiers();
-				for( Qualifier qual : quals ) {
-					if( qual.getName().equals("Term Source")) {
-						termSource = qual.getValue();
-					}
-					if( qual.getName().equals("Term Type")) {
-						termGroup = qual.getValue();
-					}
-				}
-				if( termSource.equals("NCI") && termGroup.equals("PT") ) {
-					codelist2NCIPT.put(codelistConcept.getFragment(), termName);
+		RunMetrics.Timer codelistTimer = metrics.start("codelists");
+		for( int i = 0; i < codelistCount; i++ ) {
+			if( !listed[i] ) {
+				continue;
+			}
+			String codelistConcept = codelistConcepts.get(i);
+			ConceptRecord codelist = model.getConcept(codelistConcept);
+			for( Synonym synonym : codelist.getSynonyms() ) {
+				String termName = synonym.getName();
+				if( synonym.is("NCI", "PT") ) {
+					codelist2NCIPT[i] = termName;
 				}
-				if( termSource.equals("NCI") && termGroup.equals("AB") ) {
-					codelist2NCIAB.put(codelistConcept.getFragment(), termName);
+				if( synonym.is("NCI", "AB") ) {
+					codelist2NCIAB[i] = termName;
 				}
-				if( termSource.equals("CDISC") && termGroup.equals("PT") ) {
-					codelist2CDISCPT.put(codelistConcept.getFragment(), termName);
+				if( synonym.is("CDISC", "PT") ) {
+					codelist2CDISCPT[i] = termName;
 					//Per Erin: codelist submission value cannot be more than 8 characters in length
 					if( checkShortNameLength && termName.length() > 8 ) {
-						System.out.println("Warning: Codelist Submission Value (CDISC PT) over 8 characters - " + codelistConcept + " (" + termName + ")");
+						System.out.println("Warning: Codelist Submission Value (CDISC PT) over 8 characters - " + createURI(codelistConcept) + " (" + termName + ")");
 					}
 				}
-				if( termSource.equals("CDISC") && termGroup.equals("SY") ) {
-					codelist2CDISCSY.put(codelistConcept.getFragment(), termName);
-					if( !cdiscsy2Codelist.containsKey(termName) ) {
-						cdiscsy2Codelist.put(termName, codelistConcept.getFragment());
-					}
-					else {
+				if( synonym.is("CDISC", "SY") ) {
+					codelist2CDISCSY[i] = termName;
+					if( !cdiscsyNames.add(model.getSortKey(termName).getFolded()) ) {
 						System.out.println("There was an issue adding synonym " + termName);
 					}
 				}				
 			}
 			
-			Vector<Property> exLists = kb.getConcept(codelistConcept).getProperties("P361");		
-			//Vector<String> exLists = kb.getPropertyValues(codelistConcept, "Extensible_List");
+			List<String> exLists = codelist.getExtensibleLists();		
 			if( exLists.size() == 0 ) {
-				System.out.println("No Extensible_List!\n\tCodelist concept: " + codelistConcept);
+				System.out.println("No Extensible_List!\n\tCodelist concept: " + createURI(codelistConcept));
 			}
 			else if( exLists.size() > 1 ) {
-				System.out.println("Multiple Extensible_List!\n\tCodelist concept: " + codelistConcept);
+				System.out.println("Multiple Extensible_List!\n\tCodelist concept: " + createURI(codelistConcept));
 			}
 			else {
-				codelist2Extensible.put(codelistConcept.getFragment(), exLists.elementAt(0).getValue());
+				codelist2Extensible[i] = exLists.get(0);
 			}
 			
-			boolean foundDef = false;
-			for( Property altDef : kb.getConcept(codelistConcept).getProperties("P325") ) {
-				Vector<Qualifier> quals = altDef.getQualifiers();
-				for( Qualifier qual : quals ) {
-					//def-source
-					if( qual.getName().equals("Definition Source") && qual.getValue().equals("CDISC")) {
-						codelist2Def.put(codelistConcept.getFragment(), altDef.getValue());
-						foundDef = true;
-					}
-				}
-//				if( altDef.contains("<ncicp:def-source>CDISC</ncicp:def-source>") ) {
-//					String cdiscDef = getQualVal(altDef, "ncicp:def-definition");
-//					codelist2Def.put(codelistConcept, cdiscDef);
-//					foundDef = true;
-//				}
+			if( codelist.getCdiscDefinition() != null ) {
+				codelist2Def[i] = codelist.getCdiscDefinition();
 			}
-			if( !foundDef ) {
-				System.out.println("No CDISC Definition!\n\tCodelist concept: " + codelistConcept);
+			else {
+				System.out.println("No CDISC Definition!\n\tCodelist concept: " + createURI(codelistConcept));
 			}
 			
-			codelist2Code.put(codelistConcept.getFragment(), kb.getConcept(codelistConcept).getCode());
-			
-
-			
-//			pw.print(codelist2Code.get(codelistConcept) + "\t");
-//			pw.print("" + "\t");
-//			pw.print(codelist2Extensible.get(codelistConcept) + "\t");
-//			pw.print(codelist2CDISCSY.get(codelistConcept) + "\t");
-//			pw.print(codelist2CDISCPT.get(codelistConcept) + "\t");
-//			pw.print(codelist2CDISCSY.get(codelistConcept) + "\t");
-//			pw.print(codelist2Def.get(codelistConcept) + "\t");
-//			pw.print(codelist2NCIPT.get(codelistConcept) + "\n");	
+			codelist2Code[i] = codelist.getCode();
 		}
 		
+		codelistTimer.stop();
+		metrics.count("codelists", "codelists", listedCount);
 		System.out.println("Done phase 1");
-
-//		URI testURI = null;
-//		try {
-//			testURI = new URI("http://ncicb.nci.nih.gov/xml/owl/EVS/Thesaurus.owl#C100000");
-//		} catch (URISyntaxException e2) {
-//			// TODO Auto-generated catch block
-//			e2.printStackTrace();
-//		}
-//		Vector<Association> assocs1 = kb.getAssociationsForSource(testURI);
-//		if( assocs1.size() > 0 ) {
-//			for( Association assoc1 : assocs1 ) {
-//				System.out.println(assoc1.getName() + " " + assoc1.getRelAndTarget() );
-//			}
-//		}
-//		else {
-//			System.out.println("No associations for " + testURI.getFragment());
-//		}
 		
-		HashMap<URI,ConceptProxy> concepts =  kb.getAllConcepts();
-		int m = 0;
-		for( URI concept : concepts.keySet()) {
-			m++;
-			if( m % 100 == 0 ) {
-//				System.out.println(m + " processed");
-			}
-//			System.out.println(concept.getFragment());
-			Vector<Association> assocs = kb.getAssociationsForSource(concept);
-			for(Relationship assoc : assocs ) {
-//				if( assoc.toString().contains("Concept_In_Subset") ) {
-//
-//					
-//					
-//					String[] vals = assoc.toString().split(" ");
-//					if( vals.length == 3 ) {
-//						String codelistId = vals[2];
-//						String element = vals[0];
-//						if( codelistConcepts.contains(codelistId) ) {
-//							if( codelist2Elements.containsKey(codelistId) ) {
-//								ArrayList<String> tmp = codelist2Elements.get(codelistId);
-//								if( !tmp.contains(element) ) {
-//									tmp.add(element);
-//								}
-//								codelist2Elements.put(codelistId, tmp);
-//							}
-//							else {
-//								ArrayList<String> tmp = new ArrayList<String>();
-//								tmp.add(element);
-//								codelist2Elements.put(codelistId, tmp);
-//							}
-//						}
-//					}
-//				} 
-//				String name = assoc.getName();
-				if (assoc.getName().equals("Concept_In_Subset")) {
-					String element = assoc.getSource().getCode();
-					String codelistId = assoc.getTarget().getCode();
-					URI codelistURI = createURI(codelistId);
-					if( codelistConcepts.contains(codelistURI) ) {
-						if( codelist2Elements.containsKey(codelistId) ) {
-							ArrayList<String> tmp = codelist2Elements.get(codelistId);
-							if( !tmp.contains(element) ) {
-								tmp.add(element);
-							}
-							codelist2Elements.put(codelistId, tmp);
-						}
-						else {
-							ArrayList<String> tmp = new ArrayList<String>();
-							tmp.add(element);							
-							codelist2Elements.put(codelistId, tmp);
-						}
-					}
-				}
+		ArrayList<CodelistExtractor> extractors = new ArrayList<CodelistExtractor>();
+		int[] codelist2Listings = new int[codelistCount];
+		for( int listing = 0; listing < to; listing++ ) {
+			String codelistName = cdiscsy2Codelist.getTerm(listing);
+			int i = cdiscsy2Codelist.getPosition(listing);
+			String codelistConcept = codelistConcepts.get(i);
+			//Counted from the first listing, which of the codelist's names this is decides the passes in call()
+			codelist2Listings[i]++;
+			if( listing < from ) {
+				continue;
 			}
+			
+			String[] codelistRow = CodelistBlock.row(codelist2Code[i], "", codelist2Extensible[i],
+					codelist2CDISCSY[i], codelist2CDISCPT[i], codelist2CDISCSY[i],
+					codelist2Def[i], codelist2NCIPT[i]);
+			CodelistExtractor extractor = new CodelistExtractor(model, codelistName, codelistConcept, codelist2Code[i],
+					codelist2NCIAB[i], codelistRow, new ArrayList<String>(model.getMembers(codelistConcept)), codelist2Listings[i]);
+			extractor.setInternal(internal);
+			extractors.add(extractor);
 		}
 		
 		System.out.println("Done phase 2");
-
-		
-//		HSSFWorkbook wb = new HSSFWorkbook();		
-//		String sheetName = root;
-//		Sheet sheet = wb.createSheet(sheetName);
-//		Row r = null;
-//		Cell c = null;
-//		HSSFCellStyle cs = wb.createCellStyle();
-//		HSSFCellStyle cs2 = wb.createCellStyle();
-//		HSSFCellStyle cs3 = wb.createCellStyle();
-//		Font f = wb.createFont();
-//		Font f2 = wb.createFont();
-//		Font f3 = wb.createFont();
-//		f.setFontHeightInPoints((short) 10);
-//		f2.setFontHeightInPoints((short) 10);
-//		f3.setBoldweight(Font.BOLDWEIGHT_BOLD);
-//		f3.setFontHeightInPoints((short) 10);		
-//		cs.setFont(f);
-//		cs2.setFont(f2);
-//		cs3.setFont(f3);
-//		cs2.setFillForegroundColor(IndexedColors.LIGHT_TURQUOISE.getIndex());
-//		cs2.setFillPattern(HSSFCellStyle.SOLID_FOREGROUND);	
-//		cs3.setFillForegroundColor(IndexedColors.LIGHT_YELLOW.getIndex());
-//		cs3.setFillPattern(HSSFCellStyle.SOLID_FOREGROUND);
-//		int rownum = 0;
-//		int cellnum = 0;
-//		r = sheet.createRow(rownum);
-		
-		String[] header = { "Code", "Codelist Code", "Codelist Extensible (Yes/No)", "Codelist Name", "CDISC Submission Value", "CDISC Synonym(s)", "CDISC Definition", "NCI Preferred Term"};
-		for( int i = 0; i < header.length; i++ ) {
-			pw.print(header[i]);
-			if( i + 1 < header.length ) pw.print("\t");
-			else pw.print("\n");
+		return extractors;
+	}
+	
+	/**
+	 * @param root
+	 * 			The root concept to report on
+	 */
+	public void generate(String root) {
+		if( checkpoints != null && checkpoints.isDone(root, Checkpoints.RENDER) ) {
+			//Only for the root name, read back from the checkpoints
+			extract(root);
+			System.out.println("The reports for " + root + " were written by the run being resumed");
+		}
+		else {
+			render(root);
+			checkpoint(root, Checkpoints.RENDER);
 		}
 		
-//		sheet.createFreezePane(0, 1, 0, 1);		
+		//The old two step conversion, kept as a fallback to compare against
+		if( useFormatter && formats.contains(ReportFormat.XLS) ) {
+			if( checkpoints != null && checkpoints.isDone(root, Checkpoints.EXCEL) ) {
+				System.out.println("The .xls for " + root + " were converted by the run being resumed");
+			}
+			else if( convert(model.getRootName(root)) ) {
+				checkpoint(root, Checkpoints.EXCEL);
+			}
+		}
 		
-		for( String codelistName : cdiscsy2Codelist.keySet() ) {
-			String codelistConcept = cdiscsy2Codelist.get(codelistName);
-			
-//			cellnum = 0;
-//			r = sheet.createRow(++rownum);
-//			
-//			c = r.createCell(cellnum++);
-//			c.setCellValue(codelist2Code.get(codelistConcept));
-//			c.setCellStyle(cs2);
-//			
-//			c = r.createCell(cellnum++);
-//			c.setCellValue("");
-//			c.setCellStyle(cs2);
-//			
-//			c = r.createCell(cellnum++);
-//			c.setCellValue(codelist2Extensible.get(codelistConcept));
-//			c.setCellStyle(cs2);	
-//			
-//			c = r.createCell(cellnum++);
-//			c.setCellValue(codelist2CDISCSY.get(codelistConcept));
-//			c.setCellStyle(cs2);
-//			
-//			c = r.createCell(cellnum++);
-//			c.setCellValue(codelist2CDISCPT.get(codelistConcept));
-//			c.setCellStyle(cs2);
-//			
-//			c = r.createCell(cellnum++);
-//			c.setCellValue(codelist2CDISCSY.get(codelistConcept));
-//			c.setCellStyle(cs2);	
-//			
-//			c = r.createCell(cellnum++);
-//			c.setCellValue(codelist2Def.get(codelistConcept));
-//			c.setCellStyle(cs2);			
-//			
-//			c = r.createCell(cellnum++);
-//			c.setCellValue(codelist2NCIPT.get(codelistConcept));
-//			c.setCellStyle(cs2);			
-			
-			pw.print(codelist2Code.get(codelistConcept) + "\t");
-			pw.print("" + "\t");
-			pw.print(codelist2Extensible.get(codelistConcept) + "\t");
-			pw.print(codelist2CDISCSY.get(codelistConcept) + "\t");
-			pw.print(codelist2CDISCPT.get(codelistConcept) + "\t");
-			pw.print(codelist2CDISCSY.get(codelistConcept) + "\t");
-			pw.print(codelist2Def.get(codelistConcept) + "\t");
-			pw.print(codelist2NCIPT.get(codelistConcept) + "\n");
-			
-			ArrayList<String> elements = codelist2Elements.get(codelistConcept);
-			
-			//Don't report retired elements
-			for( int i=0; i < elements.size(); i++ ) {
-				URI elementURI = null;
-				try {
-					elementURI = new URI(namespace + "#" + elements.get(i));
-				} catch (URISyntaxException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				if( kb.isDeprecated(elementURI) ) {
-					elements.remove(i);
+		if( bundle != null ) {
+			String rootName = model.getRootName(root);
+			for( ReportProfile profile : profiles ) {
+				for( ReportFormat format : formats ) {
+					bundle(format.getFile(outputDir, profile.getFileName(rootName)));
 				}
 			}
-			
-//			TreeMap<String,String> submission2Element = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
-			TreeMap<String,String> submission2Element = new TreeMap<String,String>();			
-			HashMap<String,String> element2Code = new HashMap<String,String>();
-			HashMap<String,String> element2CodelistCode = new HashMap<String,String>();
-			HashMap<String,ArrayList<String>> element2Synonyms = new HashMap<String,ArrayList<String>>();
-			HashMap<String,String> element2Definition = new HashMap<String,String>();
-			HashMap<String,String> element2PreferredName = new HashMap<String,String>();
-			
-			for( String element : elements ) {
-				URI elementConcept = null;
-				try {
-					elementConcept = new URI(namespace + "#" + element);
-				} catch (URISyntaxException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				}
-				element2Code.put(element, kb.getConcept(elementConcept).getCode());
-				element2CodelistCode.put(element, codelist2Code.get(codelistConcept));
-				element2PreferredName.put(element, kb.getConcept(elementConcept).getProperty("P108").getValue());
-				
-				Vector<Property> submissionValues = new Vector<Property>();
-				ArrayList<String> cdiscSynonyms = new ArrayList<String>();				
-				
-				Vector<Property> synonyms = kb.getConcept(elementConcept).getProperties("P90");
-				for( Property synonym : synonyms ) {
-					String cdiscSy = synonym.getValue();
-					String termSource = "";
-					String termGroup = "";
-					Vector<Qualifier> quals = synonym.getQualifiers();
-					for( Qualifier qual : quals ) {
-						if( qual.getName().equals("Term Source") ) {
-							termSource = qual.getValue();
-						}
-						if( qual.getName().equals("Term Type") ) {
-							termGroup = qual.getValue();
-						}
-					}
-					if( termSource.equals("CDISC") && termGroup.equals("PT") ) {
-						submissionValues.add(synonym);
-					}
-					if( termSource.equals("CDISC") && termGroup.equals("SY") ) {
-						cdiscSynonyms.add(cdiscSy);
-					}
-				}
-				
-				Collections.sort(cdiscSynonyms);				
-				element2Synonyms.put(element, cdiscSynonyms);
-				if( submissionValues.size() > 1 ) {
-					boolean found = false;
-					for( Property possibleSubmissionValue : submissionValues ) {
-						Vector<Qualifier> quals = possibleSubmissionValue.getQualifiers();
-						for( Qualifier qual : quals ) {
-							if( qual.getName().equals("Source Code") && qual.getValue().equals(codelist2NCIAB.get(codelistConcept)) ) {
-								submission2Element.put(possibleSubmissionValue.getValue(), element);
-								found = true;
-							}
-						}						
-//						if( possibleSubmissionValue.contains("<ncicp:source-code>" + codelist2NCIAB.get(codelistConcept) + "</ncicp:source-code>") ) {
-//							submission2Element.put(getQualVal(possibleSubmissionValue, "ncicp:term-name"), element);
-//							found = true;
-//						}
-					}
-					if( !found ) {
-						System.out.print("No submission value!\n\tCodelist concept: "+ codelistConcept + "\n\tElement concept: " + element + "\n");
+		}
+	}
+	
+	/**
+	 * Adds a finished file to the release bundle, if there is one.
+	 * 
+	 * @param file
+	 */
+	void bundle(File file) {
+		if( bundle == null ) {
+			return;
+		}
+		if( !file.isFile() ) {
+			System.out.println("Not bundling " + file + ", which wasn't written");
+			return;
+		}
+		bundle.add(file);
+	}
+	
+	/**
+	 * Writes every format of every profile for the root.
+	 * 
+	 * @param root
+	 */
+	private void render(String root) {
+		ArrayList<CodelistExtractor> extractors = buildExtractors(root);
+		String rootName = model.getRootName(root);
+		
+		//One pass over the codelists feeds every format of every profile
+		ArrayList<ReportSink> sinks = new ArrayList<ReportSink>();
+		try {
+			for( ReportProfile profile : profiles ) {
+				String fileName = profile.getFileName(rootName);
+				for( ReportFormat format : formats ) {
+					if( format == ReportFormat.XLS && useFormatter ) {
+						continue;
 					}
+					sinks.add(profile.wrap(format.open(outputDir, fileName, metrics)));
 				}
-				else try {
-					Property submissionValue = submissionValues.elementAt(0);
-					submission2Element.put(submissionValue.getValue(), element);
-				} catch (Exception e) {
-					System.out.print("No submission value!\n\tCodelist concept: "+ codelistConcept + "\n\tElement concept: " + element + "\n");
-				}
-				
-				
-				Vector<Property> definitions = kb.getConcept(elementConcept).getProperties("P325");
-				for( Property definition : definitions ) {
-					Vector<Qualifier> quals = definition.getQualifiers();
-					for( Qualifier qual : quals ) {
-						if( qual.getName().equals("Definition Source") && qual.getValue().equals("CDISC")) {
-							element2Definition.put(element, definition.getValue());
-						}
-					}
-//					if( definition.contains("<ncicp:def-source>CDISC</ncicp:def-source>") ) {
-//						element2Definition.put(element, getQualVal(definition, "ncicp:def-definition"));
-//					}
-				}								
 			}
-			
-			
-			ArrayList<String> keys = new ArrayList<String>();
-			keys.addAll(submission2Element.keySet());
-			Collections.sort(keys, String.CASE_INSENSITIVE_ORDER);
-			
-			for(String submission : keys ) {
-				ArrayList<String> cdiscSynonyms = element2Synonyms.get(submission2Element.get(submission));
-				String cellFormattedSynonyms = new String("");
-				for( int i=0; i < cdiscSynonyms.size(); i++ ) {
-					cellFormattedSynonyms = cellFormattedSynonyms.concat( cdiscSynonyms.get(i) );
-					if( i + 1 < cdiscSynonyms.size() ) cellFormattedSynonyms = cellFormattedSynonyms.concat("; ");
-				}
-				
-//				cellnum = 0;
-//				r = sheet.createRow(++rownum);
-//				
-//				c = r.createCell(cellnum++);
-//				c.setCellValue(element2Code.get(submission2Element.get(submission)));
-//				c.setCellStyle(cs);
-//				
-//				c = r.createCell(cellnum++);
-//				c.setCellValue(element2CodelistCode.get(submission2Element.get(submission)));
-//				c.setCellStyle(cs);				
-//				
-//				c = r.createCell(cellnum++);
-//				c.setCellValue("");
-//				c.setCellStyle(cs);
-//				
-//				c = r.createCell(cellnum++);
-//				c.setCellValue(codelistName);
-//				c.setCellStyle(cs);
-//				
-//				c = r.createCell(cellnum++);
-//				c.setCellValue(submission);
-//				c.setCellStyle(cs);
-//				
-//				c = r.createCell(cellnum++);
-//				c.setCellValue(cellFormattedSynonyms);
-//				c.setCellStyle(cs);					
-//				
-//				c = r.createCell(cellnum++);
-//				c.setCellValue(element2Definition.get(submission2Element.get(submission)));
-//				c.setCellStyle(cs);	
-//				
-//				c = r.createCell(cellnum++);
-//				c.setCellValue(element2PreferredName.get(submission2Element.get(submission)));
-//				c.setCellStyle(cs);				
-				
-//				if( element2Code.get(submission2Element.get(submission)).equals("C74924") ) {
-//				pw.print(element2Code.get(submission2Element.get(submission)) + "\t");
-//				pw.print(element2CodelistCode.get(submission2Element.get(submission)) + "\t");
-//				pw.print("" + "\t");
-//				pw.print(codelistName + "\t");
-//				pw.print(submission + "\t");
-// 				pw.print(cellFormattedSynonyms);
-//				pw.print("\t" + element2Definition.get(submission2Element.get(submission)) + "\t");
-//				pw.print(element2PreferredName.get(submission2Element.get(submission)) + "\n");
-//				}
-//				else {
-					pw.print(element2Code.get(submission2Element.get(submission)) + "\t");
-					pw.print(element2CodelistCode.get(submission2Element.get(submission)) + "\t");
-					pw.print("" + "\t");
-					pw.print(codelistName + "\t");
-					pw.print(submission + "\t");
-	 				pw.print(cellFormattedSynonyms);
-					pw.print("\t" + element2Definition.get(submission2Element.get(submission)) + "\t");
-					pw.print(element2PreferredName.get(submission2Element.get(submission)) + "\n");				
-//				}
+			for( ReportSink sink : sinks ) {
+				sink.header(HEADER);
 			}
-			
-//			File fil = new File(root + ".xls");
-//			try {
-//				FileOutputStream out = new FileOutputStream(fil);
-////				for( int i=0; i < 8; i++ ) sheet.autoSizeColumn(i);
-//				wb.write(out);
-//				out.close();				
-//			} catch (IOException e) {
-//				System.err.println("Couldn't create the Excel file. (Close if it is open.)");
-//				System.exit(0);
-//			}			
-			
-		}		
-
-//		for( String codelistConcept : codelistConcepts ) {
-//			System.out.println(codelistConcept);
-//			if( codelist2Elements.containsKey(codelistConcept) ) {
-//				ArrayList<String> tmp = codelist2Elements.get(codelistConcept);
-//				Collections.sort(tmp);
-//				System.out.print("\t");
-//				for( String element : tmp ) {
-//					System.out.print(element + "\t");
-//				}
-//				System.out.print("\n");
-//			}		
-//		}
-		
-		pw.close();
+			if( shards != null ) {
+				RunMetrics.Timer timer = metrics.start("merge");
+				shards.write(this, root, extractors.size(), sinks);
+				timer.stop();
+				metrics.count("merge", "codelists", extractors.size());
+			}
+			else {
+				write(root, extractors, sinks);
+			}
+		} catch (IOException e) {
+			//The files are left incomplete, but not open
+			close(sinks);
+			throw new RuntimeException("Couldn't write report " + rootName, e);
+		} catch (RuntimeException e) {
+			close(sinks);
+			throw e;
+		}
 		
-		AsciiToExcelFormatter formatter = new AsciiToExcelFormatter();
 		try {
-			formatter.convert(fil.toString(), "\t", fil.toString().replace(".txt", ".xls"));
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			for( ReportSink sink : sinks ) {
+				sink.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Couldn't write report " + rootName, e);
 		}
 		
-		
-		
-		
+		System.out.println("Done phase 3");
+	}
+	
+	/**
+	 * Closes the sinks of a report that failed, each even if another can't be.
+	 * 
+	 * @param sinks
+	 */
+	private static void close(ArrayList<ReportSink> sinks) {
+		for( ReportSink sink : sinks ) {
+			try {
+				sink.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Converts each profile's .txt to .xls with AsciiToExcelFormatter.
+	 * 
+	 * @param rootName
+	 * @return true if every file was converted
+	 */
+	private boolean convert(String rootName) {
+		boolean converted = true;
+		for( ReportProfile profile : profiles ) {
+			File txt = ReportFormat.TXT.getFile(outputDir, profile.getFileName(rootName));
+			AsciiToExcelFormatter formatter = new AsciiToExcelFormatter();
+			RunMetrics.Timer timer = metrics.start("excel");
+			try {
+				formatter.convert(txt.toString(), "\t", txt.toString().replace(".txt", ".xls"));
+			} catch (Exception e) {
+				System.out.println("Couldn't create the Excel file. (Close if it is open.)");
+				e.printStackTrace();
+				converted = false;
+			} finally {
+				timer.stop();
+			}
+			metrics.count("excel", "files", 1);
+		}
+		return converted;
+	}
+	
+	/**
+	 * @param root
+	 * @param stage
+	 * 			The stage the root has finished
+	 */
+	private void checkpoint(String root, String stage) {
+		if( checkpoints != null ) {
+			try {
+				checkpoints.done(root, stage);
+			} catch (IOException e) {
+				throw new RuntimeException("Couldn't checkpoint " + root + " in " + checkpoints.getDir(), e);
+			}
+		}
+	}
+
+	/**
+	 * @param root
+	 * 			The root being reported, for the metrics
+	 * @param extractors
+	 * 			One extractor per codelist listing, in report order
+	 * @param sinks
+	 * 			Where the blocks are written
+	 */
+	public void write(String root, ArrayList<CodelistExtractor> extractors, ArrayList<ReportSink> sinks) throws IOException {
+		ProgressLog progress = new ProgressLog("Wrote codelists for " + root, extractors.size());
+		for( CodelistExtractor extractor : extractors ) {
+			RunMetrics.Timer timer = metrics.start("render");
+			CodelistBlock block = null;
+			if( blockCache != null ) {
+				block = blockCache.get(extractor);
+			}
+			if( block == null ) {
+				block = extractor.call();
+				if( blockCache != null ) {
+					blockCache.put(extractor, block);
+				}
+			}
+			else {
+				metrics.count("render", "reused", 1);
+			}
+			long nanos = timer.stop();
+			metrics.codelist("render", root, block.getCodelistName(), nanos, block.getElementRows().size());
+			metrics.count("render", "elements", block.getElementRows().size());
+			write(root, block, sinks);
+			if( model.isLazy() ) {
+				//The members were read for this codelist only, let them go
+				conceptCache.release(model.getMembers(extractor.getCodelistConcept()));
+			}
+			progress.step();
+		}
+	}
+	
+	/**
+	 * @param root
+	 * 			The root being reported
+	 * @param block
+	 * 			The next block in report order, built here or by a worker
+	 * @param sinks
+	 */
+	void write(String root, CodelistBlock block, ArrayList<ReportSink> sinks) throws IOException {
+		for( String message : block.getMessages() ) {
+			System.out.println(message);
+		}
+		for( ReportSink sink : sinks ) {
+			sink.codelist(block);
+		}
+		if( lookup != null ) {
+			lookup.add(root, block);
+		}
+	}
+	
+	/**
+	 * @param threads
+	 * 			Number of codelists to extract from the KB at once
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	/**
+	 * @param cacheSize
+	 * 			Most concept records to cache per KB, 0 for no limit
+	 */
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+	
+	/**
+	 * @param lazy
+	 * 			Whether to read each codelist's members from the KB when it is written,
+	 * 			rather than index the whole KB and extract every member up front
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+	
+	public boolean isLazy() {
+		return lazy;
+	}
+	
+	/**
+	 * @param collation
+	 * 			How codelist names, submission values and synonyms are ordered
+	 */
+	public void setCollation(Collation collation) {
+		this.collation = collation;
+		model.setCollation(collation);
+	}
+	
+	/**
+	 * @param outputDir
+	 * 			Where the reports are written, null for the working directory
+	 */
+	public void setOutputDir(File outputDir) {
+		this.outputDir = outputDir;
+	}
+	
+	/**
+	 * @param profiles
+	 * 			The variants generate writes, each to its own files
+	 */
+	public void setProfiles(List<ReportProfile> profiles) {
+		this.profiles = new ArrayList<ReportProfile>(profiles);
+	}
+	
+	/**
+	 * @param formats
+	 * 			The files generate writes for each profile
+	 */
+	public void setFormats(List<ReportFormat> formats) {
+		this.formats = new ArrayList<ReportFormat>(formats);
+	}
+	
+	/**
+	 * @param useFormatter
+	 * 			Convert the .txt with AsciiToExcelFormatter after it is written,
+	 * 			instead of writing the .xls alongside it
+	 */
+	public void setUseFormatter(boolean useFormatter) {
+		this.useFormatter = useFormatter;
 	}
 
 	/**
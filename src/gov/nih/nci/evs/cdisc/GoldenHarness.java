@@ -0,0 +1,1031 @@
+/* Regression check of the report engines against the original report.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Vector;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+import gov.nih.nci.evs.owl.data.OWLKb;
+
+/**
+ * GoldenHarness [options] &lt;OWL file&gt; &lt;root&gt; [&lt;root&gt; ...]
+ * <p>
+ * Generates every root with {@link LegacyReport}, the report as it was first
+ * written, and then with each current engine, each into its own directory
+ * under the output directory:
+ * <ul>
+ * <li>owlkb : GenerateCDISC on the OWLKb with one thread</li>
+ * <li>parallel : GenerateCDISC on the OWLKb with -threads threads</li>
+ * <li>stream : GenerateCDISC on the model from {@link OwlStreamLoader}</li>
+ * <li>snapshot : GenerateCDISC on the model extracted from the OWLKb, saved by {@link SnapshotStore} and loaded
+ * again with its sort indexes, so it is written without sorting</li>
+ * <li>resume : GenerateCDISC resuming from the extraction {@link Checkpoints} of a run that stopped before writing</li>
+ * <li>watch : GenerateCDISC on the OWLKb after a first render from a model with one codelist's member edited,
+ * as -watch does for a new export, building that codelist again and taking every other block from the
+ * {@link BlockCache} of the first</li>
+ * <li>workers : GenerateCDISC with -workers {@value #WORKERS}, building the codelist blocks in worker JVMs that
+ * map a snapshot, started with this JVM's class path</li>
+ * </ul>
+ * The OWLKb is loaded once and shared, so its load time is reported on its
+ * own; the stream engine's time includes reading the file. Each engine's .txt
+ * and .xls are compared row by row and cell by cell with the legacy ones and
+ * the first differences printed. The report depends on the order of each
+ * root's codelists and each codelist's members, which engines without the
+ * OWLKb index rebuild their own way, so their models are also compared with
+ * the owlkb engine's in that order, along with the default collation's
+ * {@link SortIndex}es of codelist names and submission values.
+ * <p>
+ * With -cases, the features that write something other than the report are
+ * run on the fixture too, each into its own directory under cases in the
+ * output directory, and what they write is compared line by line with the
+ * expected files committed in &lt;cases dir&gt;/&lt;case&gt;/expected:
+ * <ul>
+ * <li>lazy : GenerateCDISC on the OWLKb with -lazy, reading members from {@link RootScope}. Its member order
+ * isn't the other engines', so it can differ from the legacy reports where the order matters.</li>
+ * <li>diff : {@link ReleaseDiff} of the fixture against &lt;cases dir&gt;/diff/previous.owl</li>
+ * <li>profiles : the public, internal and QRS {@link ReportProfile}s written in one pass</li>
+ * <li>server : the answers of a {@link ReportServer} on the fixture to a request of each kind, and the report
+ * written by its /generate</li>
+ * <li>validate : the findings of every {@link StandardRules} rule, as tab delimited text and as JSON</li>
+ * <li>formats : the ODM, NDJSON and CSV {@link ReportFormat}s of the public and internal profiles, with the ODM
+ * CreationDateTime taken out</li>
+ * <li>check : the {@link DatasetChecker} findings for &lt;cases dir&gt;/check/dm.csv with the variables in
+ * variables.map, and for lb.tsv with the variables named after codelists, with the count of each result</li>
+ * <li>bundle : every root's reports written into a {@link ReleaseBundle}, opened with {@link ZipFile} and its
+ * SHA256SUMS and .sha256 checked against the extracted entries, the written files and the archive</li>
+ * </ul>
+ * Exits with status 1 if there were any differences.
+ * <p>
+ * Options:
+ * <ul>
+ * <li>-out dir : where the engine directories are made (default: golden)</li>
+ * <li>-threads n : threads for the parallel engine (default: one per processor)</li>
+ * <li>-limit n : most differences to print per engine (default: 20)</li>
+ * <li>-cases dir : where the cases' inputs and expected files are; without it no case is run</li>
+ * <li>-update : write what the cases wrote as their expected files instead of comparing</li>
+ * </ul>
+ */
+public class GoldenHarness {
+
+	private static final String LEGACY = "legacy";
+	private static final String OWLKB = "owlkb";
+	//So the fixture's shards split the listings of C1000, whose retired members the second drops more of
+	private static final int WORKERS = 3;
+	private static final String CASES = "cases";
+	private static final String EXPECTED = "expected";
+
+	private final String owlFile;
+	private final Vector<String> roots;
+	private final File outputDir;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int limit = 20;
+	private File casesDir = null;
+	private boolean update = false;
+	private OWLKb kb = null;
+	private final LinkedHashMap<String,LinkedHashMap<String,Long>> timings = new LinkedHashMap<String,LinkedHashMap<String,Long>>();
+	private final LinkedHashMap<String,ReportDiff> diffs = new LinkedHashMap<String,ReportDiff>();
+	//What each engine or case was compared with
+	private final LinkedHashMap<String,String> references = new LinkedHashMap<String,String>();
+	private final LinkedHashMap<String,String> rootNames = new LinkedHashMap<String,String>();
+	private final LinkedHashMap<String,CdiscModel> models = new LinkedHashMap<String,CdiscModel>();
+
+	/**
+	 * @param args
+	 * 			Options, then the OWL file location followed by one or more report root concepts
+	 */
+	public static void main(String args[]) {
+		File outputDir = new File("golden");
+		int threads = Runtime.getRuntime().availableProcessors();
+		int limit = 20;
+		File casesDir = null;
+		boolean update = false;
+		int i = 0;
+		try {
+			for( ; i < args.length && args[i].startsWith("-"); i++ ) {
+				if( args[i].equals("-out") ) {
+					outputDir = new File(args[++i]);
+				}
+				else if( args[i].equals("-threads") ) {
+					threads = Integer.parseInt(args[++i]);
+				}
+				else if( args[i].equals("-limit") ) {
+					limit = Integer.parseInt(args[++i]);
+				}
+				else if( args[i].equals("-cases") ) {
+					casesDir = new File(args[++i]);
+				}
+				else if( args[i].equals("-update") ) {
+					update = true;
+				}
+				else {
+					usage("Unknown option " + args[i]);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			usage("Missing value for " + args[args.length - 1]);
+		} catch (NumberFormatException e) {
+			usage("Not a number: " + args[i]);
+		}
+		if( args.length - i < 2 ) {
+			usage(null);
+		}
+		Vector<String> roots = new Vector<String>();
+		for( int j = i + 1; j < args.length; j++ ) {
+			roots.add(args[j]);
+		}
+
+		GoldenHarness harness = new GoldenHarness(args[i], roots, outputDir);
+		harness.setThreads(Math.max(1, threads));
+		harness.setLimit(limit);
+		harness.setCases(casesDir, update);
+		boolean same = false;
+		try {
+			same = harness.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(same ? 0 : 1);
+	}
+
+	private static void usage(String message) {
+		if( message != null ) {
+			System.out.println(message);
+		}
+		System.out.println("Usage: GoldenHarness [options] <OWL file> <root> [<root> ...]");
+		System.out.println("  -out dir    where the engine directories are made (default: golden)");
+		System.out.println("  -threads n  threads for the parallel engine (default: one per processor)");
+		System.out.println("  -limit n    most differences to print per engine (default: 20)");
+		System.out.println("  -cases dir  where the cases' inputs and expected files are; without it no case is run");
+		System.out.println("  -update     write what the cases wrote as their expected files instead of comparing");
+		System.exit(0);
+	}
+
+	/**
+	 * @param owlFile
+	 * 			The fixture OWL file
+	 * @param roots
+	 * 			The roots to report on
+	 * @param outputDir
+	 * 			Where the engine directories are made
+	 */
+	public GoldenHarness(String owlFile, Vector<String> roots, File outputDir) {
+		this.owlFile = owlFile;
+		this.roots = roots;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * @param threads
+	 * 			Threads for the parallel engine
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @param limit
+	 * 			Most differences to keep per engine
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * @param casesDir
+	 * 			Where the cases' inputs and expected files are, or null to run no case
+	 * @param update
+	 * 			Whether to write the expected files instead of comparing with them
+	 */
+	public void setCases(File casesDir, boolean update) {
+		this.casesDir = casesDir;
+		this.update = update;
+	}
+
+	/**
+	 * Runs every engine and case, compares and prints the results.
+	 *
+	 * @return true if every engine matched the legacy reports and every case its expected files
+	 */
+	public boolean run() throws Exception {
+		long start = System.currentTimeMillis();
+		System.out.println("Initializing OWLKb...");
+		kb = new OWLKb(owlFile, new GenerateCDISC().getNamespace());
+		long kbLoad = System.currentTimeMillis() - start;
+
+		runLegacy();
+		runOwlKb(OWLKB, 1, false);
+		runOwlKb("parallel", threads, false);
+		runStream();
+		runSnapshot("snapshot");
+		runResume("resume");
+		runWatch("watch");
+		runWorkers("workers");
+
+		for( String engine : timings.keySet() ) {
+			if( engine.equals(LEGACY) ) continue;
+			ReportDiff diff = new ReportDiff(limit);
+			//First, as an order difference shows up all over the files
+			if( models.containsKey(engine) && !engine.equals(OWLKB) ) {
+				compareOrder(diff, models.get(OWLKB), models.get(engine));
+			}
+			for( String root : roots ) {
+				String name = rootNames.get(root);
+				diff.compareText(new File(dir(LEGACY), name + ".txt"), new File(dir(engine), name + ".txt"));
+				diff.compareExcel(new File(dir(LEGACY), name + ".xls"), new File(dir(engine), name + ".xls"));
+			}
+			diffs.put(engine, diff);
+			references.put(engine, LEGACY);
+		}
+
+		if( casesDir != null ) {
+			expect("lazy", runLazy("lazy"));
+			expect("diff", runDiff("diff"));
+			expect("profiles", runProfiles("profiles"));
+			expect("server", runServer("server"));
+			expect("validate", runValidate("validate"));
+			expect("formats", runFormats("formats"));
+			expect("check", runCheck("check"));
+			expect("bundle", runBundle("bundle"));
+		}
+
+		return report(kbLoad);
+	}
+
+	private void runLegacy() throws Exception {
+		File dir = dir(LEGACY);
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " with the legacy report...");
+			long start = System.currentTimeMillis();
+			File txt = new LegacyReport(kb, new GenerateCDISC().getNamespace()).generate(root, dir);
+			time(LEGACY, root, start);
+			rootNames.put(root, txt.getName().substring(0, txt.getName().length() - ".txt".length()));
+		}
+	}
+
+	private void runOwlKb(String engine, int engineThreads, boolean lazy) {
+		File dir = dir(engine);
+		GenerateCDISC report = new GenerateCDISC();
+		report.setThreads(engineThreads);
+		report.setLazy(lazy);
+		report.setOutputDir(dir);
+		report.init(kb);
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " with " + engine + "...");
+			long start = System.currentTimeMillis();
+			report.generate(root);
+			time(engine, root, start);
+		}
+		models.put(engine, report.getModel());
+	}
+
+	private void runStream() throws Exception {
+		String engine = "stream";
+		File dir = dir(engine);
+		long start = System.currentTimeMillis();
+		GenerateCDISC report = new GenerateCDISC();
+		report.setOutputDir(dir);
+		System.out.println("Streaming " + owlFile + "...");
+		report.load(new OwlStreamLoader(report.getNamespace()).load(owlFile, roots));
+		time(engine, "load", start);
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " with " + engine + "...");
+			start = System.currentTimeMillis();
+			report.generate(root);
+			time(engine, root, start);
+		}
+		models.put(engine, report.getModel());
+	}
+
+	/**
+	 * Extracts every root from the shared OWLKb and saves the model as a
+	 * snapshot in the engine's directory, then generates from the snapshot
+	 * loaded as a later run would.
+	 *
+	 * @param engine
+	 */
+	private void runSnapshot(String engine) throws Exception {
+		File dir = dir(engine);
+		GenerateCDISC extractor = new GenerateCDISC();
+		extractor.init(kb);
+		for( String root : roots ) {
+			extractor.extract(root);
+		}
+		SnapshotStore snapshot = new SnapshotStore(new File(dir, "model.snapshot"), owlFile);
+		snapshot.save(extractor.getModel());
+
+		long start = System.currentTimeMillis();
+		GenerateCDISC report = new GenerateCDISC();
+		report.setOutputDir(dir);
+		CdiscModel model = snapshot.load(roots);
+		if( model == null ) {
+			throw new IOException("Couldn't load the snapshot saved in " + dir);
+		}
+		//Otherwise generate sorts again and the saved order isn't what is checked
+		for( String root : roots ) {
+			if( model.hasRoot(root) && model.getListingIndex(root) == null ) {
+				throw new IOException("The snapshot saved in " + dir + " has no sort index for " + root);
+			}
+		}
+		report.load(model);
+		time(engine, "load", start);
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " with " + engine + "...");
+			start = System.currentTimeMillis();
+			report.generate(root);
+			time(engine, root, start);
+		}
+		models.put(engine, report.getModel());
+	}
+
+	/**
+	 * Extracts every root from the shared OWLKb with checkpoints in the
+	 * engine's directory, as a run that died before writing would have left
+	 * them, then resumes from them without the OWLKb and generates.
+	 *
+	 * @param engine
+	 */
+	private void runResume(String engine) throws Exception {
+		File dir = dir(engine);
+		File spill = new File(dir, "spill");
+		Checkpoints checkpoints = new Checkpoints(spill, owlFile, engine);
+		checkpoints.open(false);
+		GenerateCDISC extractor = new GenerateCDISC();
+		extractor.setCheckpoints(checkpoints);
+		extractor.init(kb);
+		for( String root : roots ) {
+			extractor.extract(root);
+		}
+
+		long start = System.currentTimeMillis();
+		checkpoints = new Checkpoints(spill, owlFile, engine);
+		GenerateCDISC report = new GenerateCDISC();
+		report.setOutputDir(dir);
+		report.setCheckpoints(checkpoints);
+		if( !checkpoints.open(true) || !report.isExtracted(roots) ) {
+			throw new IOException("Couldn't resume from the checkpoints in " + spill);
+		}
+		report.load(new CdiscModel());
+		time(engine, "load", start);
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " with " + engine + "...");
+			start = System.currentTimeMillis();
+			report.generate(root);
+			time(engine, root, start);
+		}
+		models.put(engine, report.getModel());
+	}
+
+	/**
+	 * Renders every root from a model of the shared OWLKb with the definition
+	 * of a member of only one codelist edited, then from an unedited model with
+	 * the same block cache, which has to build that codelist's listings again
+	 * and reuse every other block.
+	 *
+	 * @param engine
+	 */
+	private void runWatch(String engine) throws Exception {
+		File dir = dir(engine);
+		BlockCache blocks = new BlockCache();
+		GenerateCDISC first = new GenerateCDISC();
+		first.setOutputDir(dir(engine + File.separator + "first"));
+		first.setBlockCache(blocks);
+		first.init(kb);
+		for( String root : roots ) {
+			first.extract(root);
+		}
+		String edited = onlyMember(first.getModel());
+		ConceptRecord record = first.getModel().getConcept(edited);
+		record.setCdiscDefinition(record.getCdiscDefinition() + " (edited)");
+		for( String root : roots ) {
+			first.generate(root);
+		}
+		blocks.retainUsed();
+
+		GenerateCDISC report = new GenerateCDISC();
+		report.setOutputDir(dir);
+		report.setBlockCache(blocks);
+		report.init(kb);
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " with " + engine + "...");
+			long start = System.currentTimeMillis();
+			report.generate(root);
+			time(engine, root, start);
+		}
+		HashSet<String> listings = new HashSet<String>();
+		for( String root : roots ) {
+			List<String> codelists = report.getModel().getCodelists(root);
+			SortIndex index = report.getModel().getListingIndex(root);
+			for( int i = 0; i < index.size(); i++ ) {
+				if( report.getModel().getMembers(codelists.get(index.getPosition(i))).contains(edited) ) {
+					listings.add(index.getTerm(i));
+				}
+			}
+		}
+		List<String> built = blocks.getBuilt();
+		if( built.size() != listings.size() || !listings.containsAll(built) || blocks.getHits() == 0 ) {
+			throw new IOException("The second render built " + built + " instead of only the listings with " + edited + ", " + listings
+					+ " and reused " + blocks.getHits());
+		}
+		System.out.println("The second render built only " + built + " and reused " + blocks.getHits() + " blocks");
+		models.put(engine, report.getModel());
+	}
+
+	/**
+	 * @param model
+	 * 			A model with every root extracted
+	 * @return the first member, in report order, that is in only one codelist of all the roots
+	 */
+	private String onlyMember(CdiscModel model) throws IOException {
+		LinkedHashMap<String,HashSet<String>> codelists = new LinkedHashMap<String,HashSet<String>>();
+		for( String root : roots ) {
+			for( String codelist : model.getCodelists(root) ) {
+				for( String member : model.getMembers(codelist) ) {
+					HashSet<String> in = codelists.get(member);
+					if( in == null ) {
+						in = new HashSet<String>();
+						codelists.put(member, in);
+					}
+					in.add(codelist);
+				}
+			}
+		}
+		for( String member : codelists.keySet() ) {
+			if( codelists.get(member).size() == 1 ) {
+				return member;
+			}
+		}
+		throw new IOException("Every member is in more than one codelist, so none can be edited for the watch engine");
+	}
+
+	/**
+	 * Extracts every root from the shared OWLKb, saves the model as the
+	 * workers' snapshot and generates with the blocks built by the workers.
+	 *
+	 * @param engine
+	 */
+	private void runWorkers(String engine) throws Exception {
+		File dir = dir(engine);
+		GenerateCDISC report = new GenerateCDISC();
+		report.setOutputDir(dir);
+		report.init(kb);
+		for( String root : roots ) {
+			report.extract(root);
+		}
+		ShardCoordinator shards = new ShardCoordinator(WORKERS, null, false, new File(dir, "model.snapshot"));
+		try {
+			new SnapshotStore(shards.getSnapshot(), owlFile).save(report.getModel());
+			long start = System.currentTimeMillis();
+			report.releaseKb();
+			shards.start(report.getModel(), roots);
+			report.setShards(shards);
+			time(engine, "start", start);
+			for( String root : roots ) {
+				System.out.println("Generating " + root + " with " + engine + "...");
+				start = System.currentTimeMillis();
+				report.generate(root);
+				time(engine, root, start);
+			}
+			if( shards.getShardCount() == 0 ) {
+				throw new IOException("No shards were started for " + roots);
+			}
+		} finally {
+			shards.close();
+		}
+		models.put(engine, report.getModel());
+	}
+
+	/**
+	 * Writes the .txt of each root with -lazy.
+	 *
+	 * @param name
+	 * @return the files to compare
+	 */
+	private List<String> runLazy(String name) throws Exception {
+		File dir = dir(CASES + File.separator + name);
+		long start = System.currentTimeMillis();
+		GenerateCDISC report = new GenerateCDISC();
+		report.setLazy(true);
+		report.setOutputDir(dir);
+		report.setFormats(ReportFormat.parse("txt"));
+		report.init(kb);
+		ArrayList<String> files = new ArrayList<String>();
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " with " + name + "...");
+			report.generate(root);
+			files.add(report.getModel().getRootName(root) + ".txt");
+		}
+		time(name, "run", start);
+		return files;
+	}
+
+	/**
+	 * Writes the changes in each root from &lt;cases dir&gt;/diff/previous.owl
+	 * to the fixture.
+	 *
+	 * @param name
+	 * @return the files to compare
+	 */
+	private List<String> runDiff(String name) throws Exception {
+		File dir = dir(CASES + File.separator + name);
+		long start = System.currentTimeMillis();
+		GenerateCDISC previous = new GenerateCDISC();
+		previous.init(new File(new File(casesDir, name), "previous.owl").getPath());
+		GenerateCDISC current = new GenerateCDISC();
+		current.init(kb);
+		ArrayList<String> files = new ArrayList<String>();
+		for( String root : roots ) {
+			System.out.println("Comparing " + root + " with the previous release...");
+			ReleaseDiff diff = new ReleaseDiff(previous, current);
+			diff.write(root, dir);
+			files.add(current.getModel().getRootName(root) + " Changes.txt");
+		}
+		time(name, "run", start);
+		return files;
+	}
+
+	/**
+	 * Writes the .txt of every profile of each root in one pass.
+	 *
+	 * @param name
+	 * @return the files to compare
+	 */
+	private List<String> runProfiles(String name) throws Exception {
+		File dir = dir(CASES + File.separator + name);
+		long start = System.currentTimeMillis();
+		ArrayList<ReportProfile> profiles = ReportProfile.parse("public,internal,qrs");
+		GenerateCDISC report = new GenerateCDISC();
+		report.setOutputDir(dir);
+		report.setProfiles(profiles);
+		report.setFormats(ReportFormat.parse("txt"));
+		report.init(kb);
+		ArrayList<String> files = new ArrayList<String>();
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " with every profile...");
+			report.generate(root);
+			for( ReportProfile profile : profiles ) {
+				files.add(profile.getFileName(report.getModel().getRootName(root)) + ".txt");
+			}
+		}
+		time(name, "run", start);
+		return files;
+	}
+
+	/**
+	 * Runs every standard rule on each root with -threads threads and writes
+	 * the findings both ways -validate can.
+	 *
+	 * @param name
+	 * @return the files to compare
+	 */
+	private List<String> runValidate(String name) throws Exception {
+		File dir = dir(CASES + File.separator + name);
+		long start = System.currentTimeMillis();
+		GenerateCDISC report = new GenerateCDISC();
+		report.init(kb);
+		for( String root : roots ) {
+			report.extract(root);
+		}
+		System.out.println("Validating " + roots + "...");
+		ArrayList<Finding> findings = new Validator(StandardRules.all(), threads).validate(report.getModel(), roots);
+		ArrayList<String> files = new ArrayList<String>();
+		files.add("findings.txt");
+		files.add("findings.json");
+		for( String file : files ) {
+			Validator.write(findings, new File(dir, file));
+		}
+		time(name, "run", start);
+		return files;
+	}
+
+	/**
+	 * Writes each root in every format but .txt and .xls, for the public and
+	 * internal profiles.
+	 *
+	 * @param name
+	 * @return the files to compare
+	 */
+	private List<String> runFormats(String name) throws Exception {
+		File dir = dir(CASES + File.separator + name);
+		long start = System.currentTimeMillis();
+		ArrayList<ReportProfile> profiles = ReportProfile.parse("public,internal");
+		ArrayList<ReportFormat> formats = ReportFormat.parse("odm,ndjson,csv");
+		GenerateCDISC report = new GenerateCDISC();
+		report.setOutputDir(dir);
+		report.setProfiles(profiles);
+		report.setFormats(formats);
+		report.init(kb);
+		ArrayList<String> files = new ArrayList<String>();
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " in every format...");
+			report.generate(root);
+			for( ReportProfile profile : profiles ) {
+				for( ReportFormat format : formats ) {
+					File file = format.getFile(dir, profile.getFileName(report.getModel().getRootName(root)));
+					if( format == ReportFormat.ODM ) {
+						String xml = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+						xml = xml.replaceFirst("CreationDateTime=\"[^\"]*\"", "CreationDateTime=\"\"");
+						Files.write(file.toPath(), xml.getBytes("UTF-8"));
+					}
+					files.add(file.getName());
+				}
+			}
+		}
+		time(name, "run", start);
+		return files;
+	}
+
+	/**
+	 * Checks the case's datasets against the codelists of every root, as
+	 * -check does, once with its variable map and once without.
+	 *
+	 * @param name
+	 * @return the files to compare
+	 */
+	private List<String> runCheck(String name) throws Exception {
+		File dir = dir(CASES + File.separator + name);
+		File inputs = new File(casesDir, name);
+		long start = System.currentTimeMillis();
+		GenerateCDISC report = new GenerateCDISC();
+		report.init(kb);
+		CodelistLookup lookup = new CodelistLookup();
+		for( String root : roots ) {
+			lookup.addRoot(report, root);
+		}
+		ArrayList<String> files = new ArrayList<String>();
+		files.add("Dataset Findings.txt");
+		files.add("Unmapped Findings.txt");
+		files.add("summary.log");
+		Writer summary = new OutputStreamWriter(new FileOutputStream(new File(dir, "summary.log")), "UTF-8");
+		try {
+			String[][] runs = { { "dm.csv", "variables.map", files.get(0) }, { "lb.tsv", null, files.get(1) } };
+			for( String[] run : runs ) {
+				System.out.println("Checking " + run[0] + "...");
+				DatasetChecker checker = new DatasetChecker(lookup,
+						run[1] == null ? null : DatasetChecker.readVariables(new File(inputs, run[1])), threads);
+				Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, run[2])), "UTF-8");
+				try {
+					checker.header(out);
+					checker.check(new File(inputs, run[0]), out);
+				} finally {
+					out.close();
+				}
+				summary.write(run[0] + ": " + checker.getRecords() + " records, " + checker.getValues() + " values\n");
+				summary.write(checker.summary());
+			}
+		} finally {
+			summary.close();
+		}
+		time(name, "run", start);
+		return files;
+	}
+
+	/**
+	 * Generates every root into a {@link ReleaseBundle}, then opens it with
+	 * {@link ZipFile} and checks that SHA256SUMS lists every other entry, with
+	 * the digest of the entry as extracted and of the file written next to it,
+	 * and that &lt;bundle&gt;.sha256 is the digest of the archive. Fails on the
+	 * first mismatch; bundle.log lists the entries that were checked.
+	 *
+	 * @param name
+	 * @return the files to compare
+	 */
+	private List<String> runBundle(String name) throws Exception {
+		File dir = dir(CASES + File.separator + name);
+		long start = System.currentTimeMillis();
+		File zip = new File(dir, "release.zip");
+		ReleaseBundle bundle = new ReleaseBundle(zip);
+		GenerateCDISC report = new GenerateCDISC();
+		report.setOutputDir(dir);
+		report.setBundle(bundle);
+		report.init(kb);
+		for( String root : roots ) {
+			System.out.println("Generating " + root + " into " + zip + "...");
+			report.generate(root);
+		}
+		bundle.close();
+
+		Writer log = new OutputStreamWriter(new FileOutputStream(new File(dir, "bundle.log")), "UTF-8");
+		ZipFile archive = new ZipFile(zip);
+		try {
+			ZipEntry manifest = archive.getEntry(ReleaseBundle.MANIFEST);
+			if( manifest == null ) {
+				throw new IOException(zip + " has no " + ReleaseBundle.MANIFEST);
+			}
+			BufferedReader sums = new BufferedReader(new InputStreamReader(archive.getInputStream(manifest), "UTF-8"));
+			ArrayList<String> listed = new ArrayList<String>();
+			String line;
+			while( (line = sums.readLine()) != null ) {
+				String sum = line.substring(0, line.indexOf("  "));
+				String file = line.substring(sum.length() + 2);
+				ZipEntry entry = archive.getEntry(file);
+				if( entry == null ) {
+					throw new IOException(ReleaseBundle.MANIFEST + " lists " + file + ", which isn't in " + zip);
+				}
+				if( !sum.equals(sha256(archive.getInputStream(entry))) ) {
+					throw new IOException("The SHA-256 of " + file + " as extracted from " + zip + " isn't " + sum);
+				}
+				if( !sum.equals(sha256(new FileInputStream(new File(dir, file)))) ) {
+					throw new IOException("The SHA-256 of " + file + " as written isn't the bundle's " + sum);
+				}
+				listed.add(file);
+				log.write(file + ": matches " + ReleaseBundle.MANIFEST + "\n");
+			}
+			sums.close();
+			Enumeration<? extends ZipEntry> entries = archive.entries();
+			while( entries.hasMoreElements() ) {
+				String entry = entries.nextElement().getName();
+				if( !entry.equals(ReleaseBundle.MANIFEST) && !listed.contains(entry) ) {
+					throw new IOException(zip + " has " + entry + ", which isn't in " + ReleaseBundle.MANIFEST);
+				}
+			}
+			String archiveSum = new String(Files.readAllBytes(new File(zip.getPath() + ".sha256").toPath()), "UTF-8");
+			if( !archiveSum.equals(sha256(new FileInputStream(zip)) + "  " + zip.getName() + "\n") ) {
+				throw new IOException(zip + ".sha256 isn't the digest of " + zip);
+			}
+			log.write(zip.getName() + ": matches " + zip.getName() + ".sha256\n");
+		} finally {
+			archive.close();
+			log.close();
+		}
+		time(name, "run", start);
+		ArrayList<String> files = new ArrayList<String>();
+		files.add("bundle.log");
+		return files;
+	}
+
+	/**
+	 * @param in
+	 * 			Read to the end and closed
+	 * @return the SHA-256 of what was read, in hex
+	 */
+	private static String sha256(InputStream in) throws IOException {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[1 << 16];
+			int read;
+			while( (read = in.read(buffer)) >= 0 ) {
+				sha.update(buffer, 0, read);
+			}
+			return SnapshotStore.toHex(sha.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Serves the fixture on a free port and writes what each request is
+	 * answered to requests.log, with the paths and times that change from
+	 * run to run taken out. /stop is only tried with GET, since it exits.
+	 *
+	 * @param name
+	 * @return the files to compare
+	 */
+	private List<String> runServer(String name) throws Exception {
+		File dir = dir(CASES + File.separator + name);
+		long start = System.currentTimeMillis();
+		ArrayList<String> args = new ArrayList<String>();
+		args.add("-serve");
+		args.add("0");
+		args.add("-out");
+		args.add(dir.getPath());
+		args.add("-formats");
+		args.add("txt");
+		args.add(owlFile);
+		args.addAll(roots);
+		ReportServer server = new ReportServer(ReportOptions.parse(args.toArray(new String[args.size()])));
+		server.start();
+		String root = roots.get(0);
+		String code = models.get(OWLKB).getCodelists(root).get(0);
+		Writer log = new OutputStreamWriter(new FileOutputStream(new File(dir, "requests.log")), "UTF-8");
+		try {
+			String base = "http://localhost:" + server.getPort();
+			request(log, base, "GET", "/status", dir);
+			request(log, base, "GET", "/codelist?code=" + code, dir);
+			request(log, base, "GET", "/codelist?code=" + code + "&profile=internal", dir);
+			request(log, base, "GET", "/codelist?code=" + code + "&root=" + roots.get(roots.size() - 1), dir);
+			request(log, base, "GET", "/codelist?code=C0", dir);
+			request(log, base, "GET", "/codelist", dir);
+			request(log, base, "GET", "/generate?root=" + root, dir);
+			request(log, base, "POST", "/generate?root=" + root, dir);
+			request(log, base, "POST", "/reload", dir);
+			//Until the reload is swapped in
+			for( int i = 0; i < 600 && request(null, base, "GET", "/status", dir).contains("reloading\ttrue"); i++ ) {
+				Thread.sleep(100);
+			}
+			request(log, base, "GET", "/status", dir);
+			request(log, base, "GET", "/codelist?code=" + code, dir);
+			request(log, base, "GET", "/stop", dir);
+		} finally {
+			log.close();
+			server.close();
+		}
+		time(name, "run", start);
+		ArrayList<String> files = new ArrayList<String>();
+		files.add("requests.log");
+		files.add(models.get(OWLKB).getRootName(root) + ".txt");
+		return files;
+	}
+
+	/**
+	 * @param log
+	 * 			Where the request and its answer are written, or null
+	 * @param base
+	 * 			The server's URL
+	 * @param method
+	 * @param path
+	 * 			The path and query
+	 * @param dir
+	 * 			The server's output directory, left out of the answer
+	 * @return the answer
+	 */
+	private String request(Writer log, String base, String method, String path, File dir) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+		connection.setRequestMethod(method);
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		StringBuilder body = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			String line;
+			while( (line = reader.readLine()) != null ) {
+				//Only what doesn't change from run to run
+				if( line.startsWith("owlFile\t") || line.startsWith("loadedAt\t") || line.startsWith("loadSeconds\t") ) {
+					continue;
+				}
+				line = line.replace(dir.getAbsolutePath() + File.separator, "").replace(owlFile, "<OWL file>");
+				body.append(line.replaceAll(" in \\d+ ms$", " in <n> ms")).append("\n");
+			}
+		} finally {
+			reader.close();
+		}
+		if( log != null ) {
+			log.write(method + " " + path + " " + status + "\n" + body + "\n");
+		}
+		return body.toString();
+	}
+
+	/**
+	 * Compares what a case wrote with its expected files, or with -update
+	 * writes them.
+	 *
+	 * @param name
+	 * 			The case
+	 * @param files
+	 * 			The files it wrote to compare, relative to its directory
+	 */
+	private void expect(String name, List<String> files) throws IOException {
+		File dir = dir(CASES + File.separator + name);
+		File expected = new File(new File(casesDir, name), EXPECTED);
+		ReportDiff diff = new ReportDiff(limit);
+		for( String file : files ) {
+			if( update ) {
+				expected.mkdirs();
+				Files.copy(new File(dir, file).toPath(), new File(expected, file).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			else if( file.endsWith(".txt") ) {
+				diff.compareText(new File(expected, file), new File(dir, file));
+			}
+			else {
+				diff.compareLines(new File(expected, file), new File(dir, file));
+			}
+		}
+		diffs.put(name, diff);
+		references.put(name, expected.getPath());
+	}
+
+	/**
+	 * Compares the order of each root's codelists and each codelist's members,
+	 * and of the sort indexes the engines both have.
+	 *
+	 * @param diff
+	 * @param expected
+	 * 			The model of the owlkb engine
+	 * @param actual
+	 */
+	private void compareOrder(ReportDiff diff, CdiscModel expected, CdiscModel actual) {
+		for( String root : roots ) {
+			if( !expected.hasRoot(root) || !actual.hasRoot(root) ) {
+				continue;
+			}
+			diff.compareOrder(root + " codelists", expected.getCodelists(root), actual.getCodelists(root));
+			compareIndex(diff, root + " listings", expected.getListingIndex(root), actual.getListingIndex(root));
+			for( String codelist : expected.getCodelists(root) ) {
+				diff.compareOrder(root + " " + codelist + " members", expected.getMembers(codelist), actual.getMembers(codelist));
+				compareIndex(diff, root + " " + codelist + " submission values", expected.getSubmissionIndex(codelist),
+						actual.getSubmissionIndex(codelist));
+			}
+		}
+	}
+
+	/**
+	 * @param diff
+	 * @param what
+	 * @param expected
+	 * @param actual
+	 * 			Either index may be null, as with -lazy, which sorts submission values while writing
+	 */
+	private static void compareIndex(ReportDiff diff, String what, SortIndex expected, SortIndex actual) {
+		if( expected == null || actual == null ) {
+			return;
+		}
+		diff.compareOrder(what, entries(expected), entries(actual));
+	}
+
+	/**
+	 * @return each term of the index with the position it sorts, in index order
+	 */
+	private static List<String> entries(SortIndex index) {
+		ArrayList<String> entries = new ArrayList<String>(index.size());
+		for( int i = 0; i < index.size(); i++ ) {
+			entries.add(index.getTerm(i) + " @" + index.getPosition(i));
+		}
+		return entries;
+	}
+
+	private boolean report(long kbLoad) {
+		boolean same = true;
+		System.out.println();
+		System.out.println("OWLKb load: " + seconds(kbLoad) + " s (shared by every engine but stream)");
+		for( String engine : timings.keySet() ) {
+			LinkedHashMap<String,Long> engineTimings = timings.get(engine);
+			StringBuilder sb = new StringBuilder(engine + ":");
+			long total = 0;
+			for( String step : engineTimings.keySet() ) {
+				sb.append(" " + step + " " + seconds(engineTimings.get(step)) + " s,");
+				total += engineTimings.get(step);
+			}
+			sb.append(" total " + seconds(total) + " s");
+			ReportDiff diff = diffs.get(engine);
+			if( diff != null ) {
+				sb.append(", " + diff.getDifferences() + " differences");
+				same &= diff.getDifferences() == 0;
+			}
+			System.out.println(sb);
+		}
+		for( String engine : diffs.keySet() ) {
+			ArrayList<String> messages = new ArrayList<String>(diffs.get(engine).getMessages());
+			if( messages.isEmpty() ) continue;
+			System.out.println();
+			System.out.println("Differences from " + references.get(engine) + " in " + engine + ":");
+			for( String message : messages ) {
+				System.out.println("\t" + message);
+			}
+			int more = diffs.get(engine).getDifferences() - messages.size();
+			if( more > 0 ) {
+				System.out.println("\t... and " + more + " more");
+			}
+		}
+		System.out.println();
+		if( update ) {
+			System.out.println("Wrote the expected files of every case in " + casesDir + ".");
+		}
+		String what = casesDir != null ? "the legacy reports and expected files" : "the legacy reports";
+		System.out.println(same ? "All engines match " + what + "." : "Engines differ from " + what + ".");
+		return same;
+	}
+
+	private File dir(String engine) {
+		File dir = new File(outputDir, engine);
+		dir.mkdirs();
+		return dir;
+	}
+
+	private void time(String engine, String step, long start) {
+		if( !timings.containsKey(engine) ) {
+			timings.put(engine, new LinkedHashMap<String,Long>());
+		}
+		timings.get(engine).put(step, System.currentTimeMillis() - start);
+	}
+
+	private static String seconds(long millis) {
+		return String.format("%.3f", millis / 1000.0);
+	}
+}
@@ -0,0 +1,199 @@
+/* Extracts the CDISC model for a root from an OWLKb.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+import gov.nih.nci.evs.owl.data.OWLKb;
+
+/**
+ * Reads the codelists under a root, their members from the {@link SubsetIndex}
+ * and a {@link ConceptRecord} for each of them into a {@link CdiscModel}. The
+ * codelists are independent of each other, so their concepts are resolved on
+ * a pool of threads. Records come from the KB's {@link ConceptCache}, so a
+ * concept shared by several codelists or roots is only read from the KB once.
+ * With -lazy the members come from a {@link RootScope}, in its order rather
+ * than the index's, and only the root and codelist records are read; the model
+ * reads the members as they are written.
+ * With {@link Checkpoints} the codelists found and each codelist extracted are
+ * checkpointed as they are done, and those already checkpointed are read back
+ * instead of from the KB.
+ */
+public class ModelExtractor {
+
+	private final GenerateCDISC report;
+	private final OWLKb kb;
+	private final int threads;
+	
+	/**
+	 * @param report
+	 * 			The report, for its KB, namespace, subset index and concept cache
+	 * @param threads
+	 * 			Number of codelists to resolve at once
+	 */
+	public ModelExtractor(GenerateCDISC report, int threads) {
+		this.report = report;
+		this.kb = report.kb;
+		this.threads = threads;
+	}
+	
+	/**
+	 * @param root
+	 * 			The root concept to extract
+	 * @param model
+	 * 			The model to add it to
+	 */
+	public void extract(String root, CdiscModel model) {
+		RunMetrics metrics = report.getMetrics();
+		Checkpoints checkpoints = report.getCheckpoints();
+		try {
+			List<String> codelists = checkpoints != null ? checkpoints.readCodelists(root, model) : null;
+			if( codelists == null ) {
+				codelists = discover(root, model);
+				if( checkpoints != null ) {
+					checkpoints.writeCodelists(root, model.getConcept(root), codelists);
+				}
+			}
+			Set<String> extracted = checkpoints != null ? checkpoints.readExtracted(root, model) : Collections.<String>emptySet();
+			try {
+				extract(root, model, codelists, extracted);
+			} finally {
+				if( checkpoints != null ) {
+					checkpoints.close(root);
+				}
+			}
+			if( !extracted.isEmpty() ) {
+				metrics.count("extraction", "checkpointed", extracted.size());
+			}
+			model.addRoot(root, codelists);
+		} catch (IOException e) {
+			throw new RuntimeException("Couldn't checkpoint " + root + " in " + checkpoints.getDir(), e);
+		}
+	}
+	
+	/**
+	 * @return the codes of the codelists under the root, in KB order, having added the root's record to the model
+	 */
+	private List<String> discover(String root, CdiscModel model) {
+		RunMetrics metrics = report.getMetrics();
+		model.addConcept(root, report.getConceptCache().get(root));
+		RunMetrics.Timer discovery = metrics.start("discovery");
+		Vector<URI> codelistConcepts = kb.getAllDescendantsForConcept(report.createURI(root));
+		ArrayList<String> codelists = new ArrayList<String>();
+		for( URI codelistConcept : codelistConcepts ) {
+			codelists.add(codelistConcept.getFragment());
+		}
+		discovery.stop();
+		metrics.count("discovery", "codelists", codelists.size());
+		return codelists;
+	}
+	
+	/**
+	 * @param extracted
+	 * 			Codelists already in the model, read back from their checkpoints
+	 */
+	private void extract(final String root, final CdiscModel model, List<String> codelists, Set<String> extracted) {
+		final RunMetrics metrics = report.getMetrics();
+		final ConceptCache cache = report.getConceptCache();
+		final Checkpoints checkpoints = report.getCheckpoints();
+		ArrayList<String> remaining = new ArrayList<String>();
+		for( String codelist : codelists ) {
+			if( !extracted.contains(codelist) ) {
+				remaining.add(codelist);
+			}
+		}
+		
+		//Membership comes from the KB-wide Concept_In_Subset index, built on first use and shared by every root,
+		//or with -lazy from the codelist's own associations, leaving the member records in the KB until they are written
+		final RootScope scope = report.isLazy() && !remaining.isEmpty() ? report.getRootScope() : null;
+		SubsetIndex index = !report.isLazy() && !remaining.isEmpty() ? report.getSubsetIndex() : null;
+		//Inline, the work is on this thread and already in the extraction timer
+		final boolean pooled = threads > 1;
+		final ProgressLog progress = new ProgressLog("Extracted codelists for " + root, remaining.size());
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for( final String codelist : remaining ) {
+			if( index != null ) {
+				model.setMembers(codelist, new ArrayList<String>(index.getMembers(codelist)));
+			}
+			tasks.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					RunMetrics.Timer work = pooled ? metrics.startWork("extraction") : null;
+					long start = System.nanoTime();
+					model.addConcept(codelist, cache.get(codelist));
+					if( scope != null ) {
+						model.setMembers(codelist, scope.getMembers(codelist));
+					}
+					List<String> members = model.getMembers(codelist);
+					if( scope == null ) {
+						for( String member : members ) {
+							model.addConcept(member, cache.get(member));
+						}
+					}
+					if( checkpoints != null ) {
+						checkpoints.extracted(root, codelist, model);
+					}
+					if( work != null ) {
+						work.stop();
+					}
+					metrics.codelist("extraction", root, codelist, System.nanoTime() - start, members.size());
+					metrics.count("extraction", "elements", members.size());
+					progress.step();
+					return null;
+				}
+			});
+		}
+		RunMetrics.Timer extraction = metrics.start("extraction");
+		try {
+			run(tasks);
+		} finally {
+			extraction.stop();
+		}
+		metrics.count("extraction", "codelists", remaining.size());
+	}
+	
+	private void run(List<Callable<Void>> tasks) {
+		if( threads <= 1 ) {
+			try {
+				for( Callable<Void> task : tasks ) {
+					task.call();
+				}
+			} catch (Exception e) {
+				throw new RuntimeException("Couldn't extract codelist", e);
+			}
+			return;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for( Callable<Void> task : tasks ) {
+				futures.add(pool.submit(task));
+			}
+			for( Future<Void> future : futures ) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted extracting codelists", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Couldn't extract codelist", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
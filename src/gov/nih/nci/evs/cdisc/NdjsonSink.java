@@ -0,0 +1,109 @@
+/* Writes a CDISC report as newline delimited JSON.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * The &lt;root name&gt;.ndjson report: one line per codelist, a JSON object with
+ * the codelist row and a "terms" array of its element rows, written as each
+ * codelist arrives. Keys are the column headings in lower camel case
+ * ("CDISC Submission Value" is cdiscSubmissionValue), the CDISC Synonym(s)
+ * become an array, and a "null" cell is null.
+ */
+public class NdjsonSink implements ReportSink {
+
+	private final File file;
+	private final PrintWriter pw;
+	private String[] keys = new String[0];
+	private int synonymColumn = -1;
+
+	/**
+	 * @param file
+	 * 			The file to write
+	 */
+	public NdjsonSink(File file) throws IOException {
+		this.file = file;
+		this.pw = new PrintWriter(file, "UTF-8");
+	}
+
+	public void header(String[] header) {
+		keys = new String[header.length];
+		for( int i = 0; i < header.length; i++ ) {
+			keys[i] = key(header[i]);
+			if( header[i].equals(GenerateCDISC.HEADER[5]) ) {
+				synonymColumn = i;
+			}
+		}
+	}
+
+	public void codelist(CodelistBlock block) {
+		pw.print("{");
+		printFields(block.getCodelistRow());
+		pw.print(", \"terms\": [");
+		for( int i = 0; i < block.getElementRows().size(); i++ ) {
+			if( i > 0 ) pw.print(", ");
+			pw.print("{");
+			printFields(block.getElementRows().get(i));
+			pw.print("}");
+		}
+		pw.print("]}\n");
+	}
+
+	public void close() throws IOException {
+		pw.close();
+		if( pw.checkError() ) {
+			throw new IOException("Couldn't write " + file);
+		}
+	}
+
+	private void printFields(String[] row) {
+		for( int i = 0; i < keys.length && i < row.length; i++ ) {
+			if( i > 0 ) pw.print(", ");
+			pw.print(RunMetrics.quote(keys[i]));
+			pw.print(": ");
+			String value = ReportFormat.value(row[i]);
+			if( value == null ) {
+				pw.print(i == synonymColumn ? "[]" : "null");
+			}
+			else if( i == synonymColumn ) {
+				String[] synonyms = value.split("; ");
+				pw.print("[");
+				for( int j = 0; j < synonyms.length; j++ ) {
+					if( j > 0 ) pw.print(", ");
+					pw.print(RunMetrics.quote(synonyms[j]));
+				}
+				pw.print("]");
+			}
+			else {
+				pw.print(RunMetrics.quote(value));
+			}
+		}
+	}
+
+	/**
+	 * @param heading
+	 * 			A column heading
+	 * @return the heading in lower camel case, without anything in parentheses
+	 */
+	static String key(String heading) {
+		StringBuilder key = new StringBuilder();
+		for( String word : heading.replaceAll("\\(.*?\\)", " ").split("[^A-Za-z0-9]+") ) {
+			if( word.length() == 0 ) {
+				continue;
+			}
+			if( key.length() == 0 ) {
+				key.append(word.toLowerCase());
+			}
+			else {
+				key.append(word.substring(0, 1).toUpperCase()).append(word.substring(1).toLowerCase());
+			}
+		}
+		return key.toString();
+	}
+}
@@ -0,0 +1,248 @@
+/* Writes a CDISC report as CDISC ODM controlled terminology.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * The &lt;root name&gt;.odm.xml report, laid out like the CT-ODM files NCI EVS
+ * publishes: a CodeList per codelist row with its ExtCodeID, extensible flag,
+ * CDISC definition, submission value, synonym and preferred term, and an
+ * EnumeratedItem per element row. Written with an XMLStreamWriter as the
+ * codelists arrive, so only the codelist being written is held. Columns after
+ * the public ones, such as the internal profile's, are written as Alias
+ * elements named by their heading.
+ */
+public class OdmSink implements ReportSink {
+
+	public static final String ODM_NS = "http://www.cdisc.org/ns/odm/v1.3";
+	public static final String NCIODM_NS = "http://ncicb.nci.nih.gov/xml/odm/EVS/CDISC";
+
+	private static final int CODE = 0;
+	private static final int EXTENSIBLE = 2;
+	private static final int NAME = 3;
+	private static final int SUBMISSION_VALUE = 4;
+	private static final int SYNONYMS = 5;
+	private static final int DEFINITION = 6;
+	private static final int PREFERRED_TERM = 7;
+
+	private final File file;
+	private final String studyName;
+	private final OutputStream out;
+	private final XMLStreamWriter xml;
+	private final HashSet<String> oids = new HashSet<String>();
+	private String[] header = new String[0];
+
+	/**
+	 * @param file
+	 * 			The file to write
+	 * @param studyName
+	 * 			Name for the terminology, e.g. the root name
+	 */
+	public OdmSink(File file, String studyName) throws IOException {
+		this.file = file;
+		this.studyName = studyName;
+		this.out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			this.xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+		} catch (XMLStreamException e) {
+			out.close();
+			throw new IOException("Couldn't write " + file, e);
+		}
+	}
+
+	public void header(String[] header) throws IOException {
+		this.header = header;
+		String oid = "CDISC_CT." + studyName.replaceAll("[^A-Za-z0-9_.-]", "_");
+		try {
+			xml.writeStartDocument("UTF-8", "1.0");
+			newline(0);
+			xml.setDefaultNamespace(ODM_NS);
+			xml.setPrefix("nciodm", NCIODM_NS);
+			xml.writeStartElement("ODM");
+			xml.writeDefaultNamespace(ODM_NS);
+			xml.writeNamespace("nciodm", NCIODM_NS);
+			xml.writeAttribute("ODMVersion", "1.3.2");
+			xml.writeAttribute("FileOID", oid);
+			xml.writeAttribute("FileType", "Snapshot");
+			xml.writeAttribute("Granularity", "Metadata");
+			xml.writeAttribute("CreationDateTime", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date()));
+			xml.writeAttribute("SourceSystem", "NCI Thesaurus");
+			newline(1);
+			xml.writeStartElement("Study");
+			xml.writeAttribute("OID", oid);
+			newline(2);
+			xml.writeStartElement("GlobalVariables");
+			element(3, "StudyName", studyName);
+			element(3, "StudyDescription", studyName);
+			element(3, "ProtocolName", studyName);
+			newline(2);
+			xml.writeEndElement();
+			newline(2);
+			xml.writeStartElement("MetaDataVersion");
+			xml.writeAttribute("OID", oid + ".MetaDataVersion");
+			xml.writeAttribute("Name", studyName);
+		} catch (XMLStreamException e) {
+			throw new IOException("Couldn't write " + file, e);
+		}
+	}
+
+	public void codelist(CodelistBlock block) throws IOException {
+		String[] row = block.getCodelistRow();
+		try {
+			newline(3);
+			xml.writeStartElement("CodeList");
+			xml.writeAttribute("OID", oid(row));
+			xml.writeAttribute("Name", text(cell(row, NAME)));
+			xml.writeAttribute("DataType", "text");
+			xml.writeAttribute(NCIODM_NS, "ExtCodeID", text(cell(row, CODE)));
+			if( cell(row, EXTENSIBLE) != null ) {
+				xml.writeAttribute(NCIODM_NS, "CodeListExtensible", text(cell(row, EXTENSIBLE)));
+			}
+			if( cell(row, DEFINITION) != null ) {
+				newline(4);
+				xml.writeStartElement("Description");
+				newline(5);
+				xml.writeStartElement("TranslatedText");
+				xml.writeAttribute("xml", XMLConstants.XML_NS_URI, "lang", "en");
+				xml.writeCharacters(text(cell(row, DEFINITION)));
+				xml.writeEndElement();
+				newline(4);
+				xml.writeEndElement();
+			}
+			for( String[] element : block.getElementRows() ) {
+				newline(4);
+				xml.writeStartElement("EnumeratedItem");
+				xml.writeAttribute("CodedValue", text(cell(element, SUBMISSION_VALUE)));
+				xml.writeAttribute(NCIODM_NS, "ExtCodeID", text(cell(element, CODE)));
+				if( cell(element, SYNONYMS) != null ) {
+					for( String synonym : cell(element, SYNONYMS).split("; ") ) {
+						nciElement(5, "CDISCSynonym", synonym);
+					}
+				}
+				nciElement(5, "CDISCDefinition", cell(element, DEFINITION));
+				nciElement(5, "PreferredTerm", cell(element, PREFERRED_TERM));
+				aliases(5, element);
+				newline(4);
+				xml.writeEndElement();
+			}
+			nciElement(4, "CDISCSubmissionValue", cell(row, SUBMISSION_VALUE));
+			nciElement(4, "CDISCSynonym", cell(row, SYNONYMS));
+			nciElement(4, "PreferredTerm", cell(row, PREFERRED_TERM));
+			aliases(4, row);
+			newline(3);
+			xml.writeEndElement();
+		} catch (XMLStreamException e) {
+			throw new IOException("Couldn't write " + file, e);
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			newline(2);
+			xml.writeEndElement();
+			newline(1);
+			xml.writeEndElement();
+			newline(0);
+			xml.writeEndElement();
+			xml.writeEndDocument();
+			xml.writeCharacters("\n");
+			xml.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Couldn't write " + file, e);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return an OID for the codelist unique in the file, as CT-ODM names them:
+	 * 			CL.&lt;code&gt;.&lt;submission value&gt;
+	 */
+	private String oid(String[] row) {
+		String oid = "CL." + cell(row, CODE) + "." + String.valueOf(cell(row, SUBMISSION_VALUE)).replaceAll("[^A-Za-z0-9_.-]", "_");
+		//A codelist listed under several names gets an OID per listing
+		String unique = oid;
+		for( int listing = 2; !oids.add(unique); listing++ ) {
+			unique = oid + "." + listing;
+		}
+		return unique;
+	}
+
+	private void aliases(int depth, String[] row) throws XMLStreamException {
+		for( int i = GenerateCDISC.HEADER.length; i < header.length && i < row.length; i++ ) {
+			if( cell(row, i) != null ) {
+				newline(depth);
+				xml.writeEmptyElement("Alias");
+				xml.writeAttribute("Context", header[i]);
+				xml.writeAttribute("Name", text(cell(row, i)));
+			}
+		}
+	}
+
+	private void nciElement(int depth, String name, String value) throws XMLStreamException {
+		if( value == null ) {
+			return;
+		}
+		newline(depth);
+		xml.writeStartElement(NCIODM_NS, name);
+		xml.writeCharacters(text(value));
+		xml.writeEndElement();
+	}
+
+	private void element(int depth, String name, String value) throws XMLStreamException {
+		newline(depth);
+		xml.writeStartElement(name);
+		xml.writeCharacters(text(value));
+		xml.writeEndElement();
+	}
+
+	private void newline(int depth) throws XMLStreamException {
+		StringBuilder sb = new StringBuilder("\n");
+		for( int i = 0; i < depth; i++ ) {
+			sb.append("  ");
+		}
+		xml.writeCharacters(sb.toString());
+	}
+
+	private static String cell(String[] row, int column) {
+		return column < row.length ? ReportFormat.value(row[column]) : null;
+	}
+
+	/**
+	 * @return the value without the characters XML 1.0 can't hold, "" for null
+	 */
+	private static String text(String value) {
+		if( value == null ) {
+			return "";
+		}
+		StringBuilder sb = null;
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			boolean legal = c == '\t' || c == '\n' || c == '\r' || (c >= 0x20 && c <= 0xD7FF) || (c >= 0xE000 && c <= 0xFFFD)
+					|| Character.isSurrogate(c);
+			if( !legal && sb == null ) {
+				sb = new StringBuilder(value.substring(0, i));
+			}
+			else if( legal && sb != null ) {
+				sb.append(c);
+			}
+		}
+		return sb == null ? value : sb.toString();
+	}
+}
@@ -0,0 +1,60 @@
+/* Logs how far a long phase has got.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts finished items, such as codelists, and logs the count through log4j
+ * at most once per interval, plus once at the end. Safe to step from several
+ * threads.
+ */
+public class ProgressLog {
+
+	private static final Logger log = Logger.getLogger(ProgressLog.class);
+	private static long intervalMillis = 10000;
+
+	private final String what;
+	private final int total;
+	private final long start = System.currentTimeMillis();
+	private final AtomicInteger done = new AtomicInteger();
+	private final AtomicLong lastLogged = new AtomicLong(start);
+
+	/**
+	 * @param what
+	 * 			What is being counted, e.g. "Extracted codelists for C_SDTM"
+	 * @param total
+	 * 			Number of items expected
+	 */
+	public ProgressLog(String what, int total) {
+		this.what = what;
+		this.total = total;
+	}
+
+	/**
+	 * @param seconds
+	 * 			Least time between progress messages
+	 */
+	public static void setInterval(int seconds) {
+		intervalMillis = seconds * 1000L;
+	}
+
+	/**
+	 * One more item is done.
+	 */
+	public void step() {
+		int count = done.incrementAndGet();
+		long now = System.currentTimeMillis();
+		long last = lastLogged.get();
+		if( count == total || (now - last >= intervalMillis && lastLogged.compareAndSet(last, now)) ) {
+			log.info(what + ": " + count + " of " + total + " after " + (now - start) / 1000 + " seconds");
+		}
+	}
+}
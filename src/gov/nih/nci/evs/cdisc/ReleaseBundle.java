@@ -0,0 +1,208 @@
+/* Packages the report files into a zip release bundle as they are written.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A zip of the report files, filled while the reports are still being
+ * generated. As soon as a file is finished, a single writer thread streams it
+ * through a {@link ZipOutputStream} over the archive's FileChannel, reading it
+ * once and taking its SHA-256 in the same pass, so the entries are in the
+ * order they were added and only a read buffer is held per file, however big
+ * it is. Nothing is staged on disk.
+ * <p>
+ * On close the bundle gets a SHA256SUMS entry with the digest of every file in
+ * it, in the format sha256sum -c checks, and the digest of the archive itself
+ * is written next to it as &lt;bundle&gt;.sha256.
+ */
+public class ReleaseBundle {
+
+	/** The manifest entry in the bundle. */
+	public static final String MANIFEST = "SHA256SUMS";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final FileChannel channel;
+	private final MessageDigest digest;
+	private final ZipOutputStream zip;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+	private final ArrayList<Future<String>> written = new ArrayList<Future<String>>();
+	private final LinkedHashSet<String> names = new LinkedHashSet<String>();
+	private long offset = 0;
+	private long bytes = 0;
+
+	/**
+	 * @param file
+	 * 			The zip to write, replacing any there
+	 */
+	public ReleaseBundle(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.digest = sha256();
+		OutputStream out = new DigestOutputStream(Channels.newOutputStream(channel), digest);
+		this.zip = new ZipOutputStream(new BufferedOutputStream(out, 1 << 16), UTF8);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Appends the file in the background, after the files added before it.
+	 * The file mustn't change until the bundle is closed.
+	 *
+	 * @param source
+	 * 			A finished report file
+	 */
+	public synchronized void add(final File source) {
+		final String name = source.getName();
+		if( !names.add(name) ) {
+			//Only for a root given twice, which writes the same files again
+			return;
+		}
+		written.add(writer.submit(new Callable<String>() {
+			public String call() throws IOException {
+				return append(name, source) + "  " + name;
+			}
+		}));
+	}
+
+	/**
+	 * Waits for every file to be appended, then writes the manifests and
+	 * finishes the archive.
+	 */
+	public void close() throws IOException {
+		ArrayList<Future<String>> appended;
+		synchronized( this ) {
+			appended = new ArrayList<Future<String>>(written);
+		}
+		try {
+			StringBuilder manifest = new StringBuilder();
+			for( Future<String> sum : appended ) {
+				manifest.append(sum.get()).append("\n");
+			}
+			writer.shutdown();
+			ZipEntry sums = new ZipEntry(MANIFEST);
+			sums.setTime(System.currentTimeMillis());
+			zip.putNextEntry(sums);
+			zip.write(manifest.toString().getBytes(UTF8));
+			zip.closeEntry();
+			zip.finish();
+			zip.flush();
+			synchronized( this ) {
+				offset = channel.position();
+			}
+			channel.force(false);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while bundling " + file, e);
+		} catch (ExecutionException e) {
+			if( e.getCause() instanceof IOException ) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Couldn't bundle " + file, e.getCause());
+		} finally {
+			writer.shutdownNow();
+			zip.close();
+		}
+		PrintWriter pw = new PrintWriter(new File(file.getPath() + ".sha256"), "UTF-8");
+		try {
+			pw.print(SnapshotStore.toHex(digest.digest()) + "  " + file.getName() + "\n");
+		} finally {
+			pw.close();
+		}
+	}
+
+	/**
+	 * @return the number of files added
+	 */
+	public synchronized int size() {
+		return names.size();
+	}
+
+	/**
+	 * @return bytes written to the archive so far
+	 */
+	public synchronized long getBytes() {
+		return offset;
+	}
+
+	/**
+	 * @return bytes of the files appended so far, before compression
+	 */
+	public synchronized long getUncompressedBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Streams the file into a new entry. Only called on the writer thread.
+	 *
+	 * @param name
+	 * 			The entry name
+	 * @param source
+	 * @return the file's SHA-256, in hex
+	 */
+	private String append(String name, File source) throws IOException {
+		FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+		try {
+			ZipEntry entry = new ZipEntry(name);
+			entry.setTime(source.lastModified());
+			zip.putNextEntry(entry);
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			MessageDigest sha = sha256();
+			long size = 0;
+			while( in.read(buffer) >= 0 ) {
+				buffer.flip();
+				int length = buffer.remaining();
+				sha.update(buffer.array(), 0, length);
+				zip.write(buffer.array(), 0, length);
+				size += length;
+				buffer.clear();
+			}
+			zip.closeEntry();
+			zip.flush();
+			synchronized( this ) {
+				offset = channel.position();
+				bytes += size;
+			}
+			return SnapshotStore.toHex(sha.digest());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
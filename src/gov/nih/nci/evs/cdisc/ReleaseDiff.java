@@ -0,0 +1,267 @@
+/* Changes in a CDISC report from one release to the next.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+/**
+ * Compares the report for a root from two releases, each loaded in its own
+ * GenerateCDISC from an OWL file or a snapshot. Both sides go through
+ * buildExtractors and {@link CodelistExtractor}, the same code that writes the
+ * release, so the changes can't disagree with it. A codelist whose extractors
+ * {@link CodelistExtractor#hasSameInputs} on both sides is skipped without being
+ * rendered; the others are rendered and compared by codelist and element code.
+ * <p>
+ * The changes are written as &lt;root name&gt; Changes.txt and .xls next to the
+ * report: one block per codelist that changed, the codelist row saying how,
+ * then a row per added, removed, retired or changed term or attribute.
+ */
+public class ReleaseDiff {
+
+	/** The columns of the changes file. */
+	public static final String[] HEADER = { "Change Type", "NCI Code", "Codelist Code", "Codelist Name", "Attribute", "Original", "New" };
+
+	//Report columns compared for codelists and for terms
+	private static final int[] CODELIST_COLUMNS = { 2, 3, 4, 5, 6, 7 };
+	private static final int[] TERM_COLUMNS = { 4, 5, 6, 7 };
+
+	private final GenerateCDISC previous;
+	private final GenerateCDISC current;
+	private int compared = 0;
+	private int unchanged = 0;
+	private int changes = 0;
+
+	/**
+	 * @param previous
+	 * 			The earlier release, with its KB or model loaded
+	 * @param current
+	 * 			The release being made
+	 */
+	public ReleaseDiff(GenerateCDISC previous, GenerateCDISC current) {
+		this.previous = previous;
+		this.current = current;
+	}
+
+	/**
+	 * @param root
+	 * 			The root concept to compare
+	 * @return a block for each codelist that changed, in the current report order
+	 * 			followed by the codelists that are gone
+	 */
+	public ArrayList<CodelistBlock> diff(String root) {
+		RunMetrics metrics = current.getMetrics();
+		LinkedHashMap<String,ArrayList<CodelistExtractor>> before = byCodelist(previous.buildExtractors(root));
+		LinkedHashMap<String,ArrayList<CodelistExtractor>> after = byCodelist(current.buildExtractors(root));
+
+		RunMetrics.Timer timer = metrics.start("diff");
+		LinkedHashSet<String> codelists = new LinkedHashSet<String>(after.keySet());
+		codelists.addAll(before.keySet());
+		ArrayList<CodelistBlock> blocks = new ArrayList<CodelistBlock>();
+		for( String codelist : codelists ) {
+			compared++;
+			ArrayList<CodelistExtractor> was = before.get(codelist);
+			ArrayList<CodelistExtractor> is = after.get(codelist);
+			CodelistBlock block;
+			if( was == null ) {
+				block = added(is);
+			}
+			else if( is == null ) {
+				block = removed(was);
+			}
+			else if( sameInputs(was, is) ) {
+				unchanged++;
+				continue;
+			}
+			else {
+				block = changed(was, is);
+			}
+			if( block != null ) {
+				changes += block.getElementRows().size();
+				blocks.add(block);
+			}
+		}
+		timer.stop();
+		metrics.count("diff", "codelists", compared);
+		metrics.count("diff", "unchanged", unchanged);
+		metrics.count("diff", "changes", changes);
+		return blocks;
+	}
+
+	/**
+	 * Writes &lt;root name&gt; Changes.txt and .xls.
+	 *
+	 * @param root
+	 * 			The root concept to compare
+	 * @param dir
+	 * 			Where to write, or null for the working directory
+	 */
+	public void write(String root, File dir) throws IOException {
+		ArrayList<CodelistBlock> blocks = diff(root);
+		String name = current.getModel().getRootName(root) + " Changes";
+		ArrayList<ReportSink> sinks = new ArrayList<ReportSink>();
+		sinks.add(new TabDelimitedSink(new File(dir, name + ".txt")));
+		sinks.add(new ExcelSink(new File(dir, name + ".xls"), name));
+		for( ReportSink sink : sinks ) {
+			sink.header(HEADER);
+			for( CodelistBlock block : blocks ) {
+				sink.codelist(block);
+			}
+			sink.close();
+		}
+		System.out.println("Compared " + compared + " codelists for " + root + ": " + unchanged + " unchanged, "
+				+ blocks.size() + " changed, " + changes + " changes");
+	}
+
+	public int getCompared() {
+		return compared;
+	}
+
+	public int getUnchanged() {
+		return unchanged;
+	}
+
+	public int getChanges() {
+		return changes;
+	}
+
+	private static LinkedHashMap<String,ArrayList<CodelistExtractor>> byCodelist(ArrayList<CodelistExtractor> extractors) {
+		LinkedHashMap<String,ArrayList<CodelistExtractor>> codelists = new LinkedHashMap<String,ArrayList<CodelistExtractor>>();
+		for( CodelistExtractor extractor : extractors ) {
+			ArrayList<CodelistExtractor> listings = codelists.get(extractor.getCodelistConcept());
+			if( listings == null ) {
+				listings = new ArrayList<CodelistExtractor>();
+				codelists.put(extractor.getCodelistConcept(), listings);
+			}
+			listings.add(extractor);
+		}
+		return codelists;
+	}
+
+	private static boolean sameInputs(ArrayList<CodelistExtractor> was, ArrayList<CodelistExtractor> is) {
+		if( was.size() != is.size() ) {
+			return false;
+		}
+		for( int i = 0; i < was.size(); i++ ) {
+			if( !was.get(i).hasSameInputs(is.get(i)) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private CodelistBlock added(ArrayList<CodelistExtractor> is) {
+		CodelistBlock block = is.get(0).call();
+		String[] row = block.getCodelistRow();
+		changes++;
+		CodelistBlock result = new CodelistBlock(block.getCodelistName(), CodelistBlock.row("Added Codelist", row[0], "", block.getCodelistName(), "", "", row[4]));
+		for( String[] term : block.getElementRows() ) {
+			result.addElementRow(CodelistBlock.row("Added Term", term[0], term[1], term[3], "", "", term[4]));
+		}
+		return result;
+	}
+
+	private CodelistBlock removed(ArrayList<CodelistExtractor> was) {
+		CodelistBlock block = was.get(0).call();
+		String[] row = block.getCodelistRow();
+		String type = isRetired(row[0]) ? "Retired Codelist" : "Removed Codelist";
+		changes++;
+		CodelistBlock result = new CodelistBlock(block.getCodelistName(), CodelistBlock.row(type, row[0], "", block.getCodelistName(), "", row[4], ""));
+		for( String[] term : block.getElementRows() ) {
+			result.addElementRow(CodelistBlock.row(type.replace("Codelist", "Term"), term[0], term[1], term[3], "", term[4], ""));
+		}
+		return result;
+	}
+
+	private CodelistBlock changed(ArrayList<CodelistExtractor> was, ArrayList<CodelistExtractor> is) {
+		CodelistBlock before = was.get(0).call();
+		CodelistBlock after = is.get(0).call();
+		String[] row = after.getCodelistRow();
+		String name = after.getCodelistName();
+		CodelistBlock result = new CodelistBlock(name, CodelistBlock.row("Changed Codelist", row[0], "", name, "", "", ""));
+
+		String[] wasRow = before.getCodelistRow();
+		for( int column : CODELIST_COLUMNS ) {
+			if( !wasRow[column].equals(row[column]) ) {
+				result.addElementRow(CodelistBlock.row("Changed Codelist", row[0], "", name, GenerateCDISC.HEADER[column], wasRow[column], row[column]));
+			}
+		}
+		String wasNames = listingNames(was);
+		String isNames = listingNames(is);
+		if( !wasNames.equals(isNames) ) {
+			result.addElementRow(CodelistBlock.row("Changed Codelist", row[0], "", name, "Listed As", wasNames, isNames));
+		}
+
+		LinkedHashMap<String,String[]> wasTerms = byCode(before);
+		LinkedHashMap<String,String[]> isTerms = byCode(after);
+		for( String code : isTerms.keySet() ) {
+			String[] term = isTerms.get(code);
+			String[] wasTerm = wasTerms.get(code);
+			if( wasTerm == null ) {
+				result.addElementRow(CodelistBlock.row("Added Term", term[0], term[1], name, "", "", term[4]));
+				continue;
+			}
+			for( int column : TERM_COLUMNS ) {
+				if( !wasTerm[column].equals(term[column]) ) {
+					result.addElementRow(CodelistBlock.row("Changed Term", term[0], term[1], name, GenerateCDISC.HEADER[column], wasTerm[column], term[column]));
+				}
+			}
+		}
+		for( String code : wasTerms.keySet() ) {
+			if( !isTerms.containsKey(code) ) {
+				String[] term = wasTerms.get(code);
+				String type = isRetired(term[0]) ? "Retired Term" : "Removed Term";
+				result.addElementRow(CodelistBlock.row(type, term[0], term[1], name, "", term[4], ""));
+			}
+		}
+
+		//The content changed without changing the rows, e.g. a retired member was dropped again
+		if( result.getElementRows().isEmpty() ) {
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * @param code
+	 * @return true if the concept is still in the current model but deprecated
+	 */
+	private boolean isRetired(String code) {
+		ConceptRecord record = current.getModel().getConcept(code);
+		return record != null && record.isDeprecated();
+	}
+
+	private static String listingNames(ArrayList<CodelistExtractor> listings) {
+		TreeSet<String> names = new TreeSet<String>();
+		for( CodelistExtractor listing : listings ) {
+			names.add(listing.getCodelistName());
+		}
+		StringBuilder sb = new StringBuilder();
+		for( String name : names ) {
+			if( sb.length() > 0 ) sb.append("; ");
+			sb.append(name);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param block
+	 * @return the element rows by element code. An element reported under
+	 * 			several submission values is keyed by code and value after the first.
+	 */
+	private static LinkedHashMap<String,String[]> byCode(CodelistBlock block) {
+		LinkedHashMap<String,String[]> terms = new LinkedHashMap<String,String[]>();
+		for( String[] term : block.getElementRows() ) {
+			String key = terms.containsKey(term[0]) ? term[0] + " " + term[4] : term[0];
+			terms.put(key, term);
+		}
+		return terms;
+	}
+}
@@ -0,0 +1,269 @@
+/* Compares two runs of a CDISC report.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFFont;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+
+/**
+ * Row by row, cell by cell comparison of an expected report against an actual
+ * one. The .txt is compared on values, naming the column from the expected
+ * header and the row by its code; the .xls also on what AsciiToExcelFormatter
+ * sets: fill, bold, wrapping, alignment, row heights and column widths. Other
+ * text is compared line by line. Every difference is counted, only the first
+ * few are kept as messages.
+ */
+public class ReportDiff {
+
+	private final int limit;
+	private final ArrayList<String> messages = new ArrayList<String>();
+	private int differences = 0;
+
+	/**
+	 * @param limit
+	 * 			Most difference messages to keep
+	 */
+	public ReportDiff(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * @param expected
+	 * 			The .txt of the reference run
+	 * @param actual
+	 * 			The .txt to check against it
+	 */
+	public void compareText(File expected, File actual) throws IOException {
+		if( !exists(expected, actual) ) {
+			return;
+		}
+		ArrayList<String[]> left = readRows(expected);
+		ArrayList<String[]> right = readRows(actual);
+		String[] header = left.isEmpty() ? new String[0] : left.get(0);
+		String name = expected.getName();
+
+		for( int r = 0; r < Math.max(left.size(), right.size()); r++ ) {
+			if( r >= left.size() ) {
+				add(name + ": row " + (r + 1) + " only in actual: " + join(right.get(r)));
+				continue;
+			}
+			if( r >= right.size() ) {
+				add(name + ": row " + (r + 1) + " only in expected: " + join(left.get(r)));
+				continue;
+			}
+			String[] p = left.get(r);
+			String[] q = right.get(r);
+			if( p.length != q.length ) {
+				add(name + ": row " + (r + 1) + " (" + p[0] + ") has " + p.length + " cells, actual " + q.length);
+			}
+			for( int c = 0; c < Math.min(p.length, q.length); c++ ) {
+				if( !p[c].equals(q[c]) ) {
+					String column = c < header.length ? header[c] : "column " + (c + 1);
+					add(name + ": row " + (r + 1) + " (" + p[0] + ") " + column + ": \"" + p[c] + "\" vs \"" + q[c] + "\"");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compares UTF-8 text that isn't in rows, such as XML or JSON, line by
+	 * line.
+	 *
+	 * @param expected
+	 * 			The file of the reference run
+	 * @param actual
+	 * 			The file to check against it
+	 */
+	public void compareLines(File expected, File actual) throws IOException {
+		if( !exists(expected, actual) ) {
+			return;
+		}
+		ArrayList<String> left = readLines(expected);
+		ArrayList<String> right = readLines(actual);
+		String name = expected.getName();
+		for( int l = 0; l < Math.max(left.size(), right.size()); l++ ) {
+			String p = l < left.size() ? left.get(l) : "<none>";
+			String q = l < right.size() ? right.get(l) : "<none>";
+			if( !p.equals(q) ) {
+				add(name + ": line " + (l + 1) + ": \"" + p + "\" vs \"" + q + "\"");
+			}
+		}
+	}
+
+	/**
+	 * @param expected
+	 * 			The .xls of the reference run
+	 * @param actual
+	 * 			The .xls to check against it
+	 */
+	public void compareExcel(File expected, File actual) throws IOException {
+		if( !exists(expected, actual) ) {
+			return;
+		}
+		HSSFWorkbook x = readWorkbook(expected);
+		HSSFWorkbook y = readWorkbook(actual);
+		HSSFSheet s = x.getSheetAt(0);
+		HSSFSheet t = y.getSheetAt(0);
+		String name = expected.getName();
+
+		if( !x.getSheetName(0).equals(y.getSheetName(0)) ) {
+			add(name + ": sheet \"" + x.getSheetName(0) + "\" vs \"" + y.getSheetName(0) + "\"");
+		}
+		if( s.getLastRowNum() != t.getLastRowNum() ) {
+			add(name + ": " + (s.getLastRowNum() + 1) + " rows vs " + (t.getLastRowNum() + 1));
+		}
+		int columns = 0;
+		for( int r = 0; r <= Math.min(s.getLastRowNum(), t.getLastRowNum()); r++ ) {
+			HSSFRow p = s.getRow(r);
+			HSSFRow q = t.getRow(r);
+			if( p == null || q == null ) {
+				if( p != q ) {
+					add(name + ": row " + (r + 1) + " missing in " + (p == null ? "expected" : "actual"));
+				}
+				continue;
+			}
+			if( p.getHeightInPoints() != q.getHeightInPoints() ) {
+				add(name + ": row " + (r + 1) + " height " + p.getHeightInPoints() + " vs " + q.getHeightInPoints());
+			}
+			int cells = Math.max(p.getLastCellNum(), q.getLastCellNum());
+			columns = Math.max(columns, cells);
+			for( int c = 0; c < cells; c++ ) {
+				String u = describe(x, p.getCell(c));
+				String v = describe(y, q.getCell(c));
+				if( !u.equals(v) ) {
+					add(name + ": row " + (r + 1) + " cell " + (c + 1) + ": " + u + " vs " + v);
+				}
+			}
+		}
+		for( int c = 0; c < columns; c++ ) {
+			if( s.getColumnWidth(c) != t.getColumnWidth(c) ) {
+				add(name + ": column " + (c + 1) + " width " + s.getColumnWidth(c) + " vs " + t.getColumnWidth(c));
+			}
+		}
+	}
+
+	/**
+	 * Compares two orderings, such as a root's codelists or a codelist's
+	 * members, counting the first place they part as the difference.
+	 *
+	 * @param what
+	 * 			What is ordered, for the message
+	 * @param expected
+	 * 			The order of the reference run
+	 * @param actual
+	 * 			The order to check against it
+	 */
+	public void compareOrder(String what, List<String> expected, List<String> actual) {
+		for( int i = 0; i < Math.max(expected.size(), actual.size()); i++ ) {
+			String left = i < expected.size() ? expected.get(i) : "<none>";
+			String right = i < actual.size() ? actual.get(i) : "<none>";
+			if( !left.equals(right) ) {
+				add(what + ": position " + (i + 1) + " " + left + " vs " + right);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return how many differences were found
+	 */
+	public int getDifferences() {
+		return differences;
+	}
+
+	/**
+	 * @return the first differences, up to the limit
+	 */
+	public List<String> getMessages() {
+		return messages;
+	}
+
+	private boolean exists(File expected, File actual) {
+		if( !expected.exists() || !actual.exists() ) {
+			add((expected.exists() ? actual : expected) + " was not written");
+			return false;
+		}
+		return true;
+	}
+
+	private void add(String message) {
+		if( differences++ < limit ) {
+			messages.add(message);
+		}
+	}
+
+	private static String describe(HSSFWorkbook wb, HSSFCell cell) {
+		if( cell == null ) {
+			return "<none>";
+		}
+		HSSFCellStyle style = cell.getCellStyle();
+		HSSFFont font = style.getFont(wb);
+		String value = cell.getCellType() == HSSFCell.CELL_TYPE_BLANK ? "<blank>" : "\"" + cell.getRichStringCellValue().getString() + "\"";
+		return value + " [fill " + style.getFillForegroundColor() + "/" + style.getFillPattern()
+				+ ", align " + style.getAlignment() + ", wrap " + style.getWrapText() + ", bold " + font.getBoldweight() + "]";
+	}
+
+	private static ArrayList<String[]> readRows(File file) throws IOException {
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while( (line = reader.readLine()) != null ) {
+				rows.add(line.split("\t", -1));
+			}
+		} finally {
+			reader.close();
+		}
+		return rows;
+	}
+
+	private static ArrayList<String> readLines(File file) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while( (line = reader.readLine()) != null ) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static HSSFWorkbook readWorkbook(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return new HSSFWorkbook(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String join(String[] cells) {
+		StringBuilder sb = new StringBuilder();
+		for( int i = 0; i < cells.length; i++ ) {
+			if( i > 0 ) sb.append(" | ");
+			sb.append(cells[i]);
+		}
+		return sb.toString();
+	}
+}
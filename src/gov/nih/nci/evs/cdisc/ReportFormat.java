@@ -0,0 +1,150 @@
+/* The file formats a CDISC report can be written in.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * One kind of file written for every {@link ReportProfile}, all from the same
+ * pass over the codelists:
+ * <ul>
+ * <li>txt : tab delimited, &lt;file name&gt;.txt</li>
+ * <li>xls : Excel workbook, &lt;file name&gt;.xls</li>
+ * <li>odm : CDISC ODM 1.3.2 controlled terminology, &lt;file name&gt;.odm.xml</li>
+ * <li>ndjson : one JSON object per codelist, with its terms, &lt;file name&gt;.ndjson</li>
+ * <li>csv : comma separated, quoted as RFC 4180, &lt;file name&gt;.csv</li>
+ * </ul>
+ */
+public abstract class ReportFormat {
+
+	public static final ReportFormat TXT = new ReportFormat("txt", ".txt", "write") {
+		ReportSink open(File file, String fileName) throws IOException {
+			return new TabDelimitedSink(file);
+		}
+	};
+	public static final ReportFormat XLS = new ReportFormat("xls", ".xls", "excel") {
+		ReportSink open(File file, String fileName) {
+			return new ExcelSink(file, fileName);
+		}
+	};
+	public static final ReportFormat ODM = new ReportFormat("odm", ".odm.xml", "odm") {
+		ReportSink open(File file, String fileName) throws IOException {
+			return new OdmSink(file, fileName);
+		}
+	};
+	public static final ReportFormat NDJSON = new ReportFormat("ndjson", ".ndjson", "ndjson") {
+		ReportSink open(File file, String fileName) throws IOException {
+			return new NdjsonSink(file);
+		}
+	};
+	public static final ReportFormat CSV = new ReportFormat("csv", ".csv", "csv") {
+		ReportSink open(File file, String fileName) throws IOException {
+			return new CsvSink(file);
+		}
+	};
+
+	private final String name;
+	private final String extension;
+	private final String phase;
+
+	/**
+	 * @param name
+	 * 			What -formats calls it
+	 * @param extension
+	 * 			Added to the file name
+	 * @param phase
+	 * 			The {@link RunMetrics} phase its writing is timed under
+	 */
+	private ReportFormat(String name, String extension, String phase) {
+		this.name = name;
+		this.extension = extension;
+		this.phase = phase;
+	}
+
+	/**
+	 * @param file
+	 * 			The file to write
+	 * @param fileName
+	 * 			The file name without its extension, for the formats that name what is inside
+	 * @return a sink writing the file
+	 */
+	abstract ReportSink open(File file, String fileName) throws IOException;
+
+	/**
+	 * @param names
+	 * 			Comma separated format names
+	 * @return the formats, in the order given
+	 * @throws IllegalArgumentException if a name isn't a format
+	 */
+	public static ArrayList<ReportFormat> parse(String names) {
+		ArrayList<ReportFormat> formats = new ArrayList<ReportFormat>();
+		for( String name : names.split(",") ) {
+			ReportFormat format = null;
+			for( ReportFormat known : new ReportFormat[] { TXT, XLS, ODM, NDJSON, CSV } ) {
+				if( known.name.equalsIgnoreCase(name.trim()) ) {
+					format = known;
+				}
+			}
+			if( format == null ) {
+				throw new IllegalArgumentException("Unknown format " + name);
+			}
+			if( !formats.contains(format) ) {
+				formats.add(format);
+			}
+		}
+		return formats;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	/**
+	 * @param dir
+	 * 			Where to write, null for the working directory
+	 * @param fileName
+	 * 			The file name without its extension
+	 * @return the file this format writes
+	 */
+	public File getFile(File dir, String fileName) {
+		return new File(dir, fileName + extension);
+	}
+
+	/**
+	 * @param dir
+	 * 			Where to write, null for the working directory
+	 * @param fileName
+	 * 			The file name without its extension
+	 * @param metrics
+	 * 			Where the time spent writing is added
+	 * @return a sink writing the file, timed
+	 */
+	public ReportSink open(File dir, String fileName, RunMetrics metrics) throws IOException {
+		return new TimedSink(open(getFile(dir, fileName), fileName), metrics, phase);
+	}
+
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @param cell
+	 * 			A cell as the report writes it
+	 * @return the value, or null where the report has "null" or nothing
+	 */
+	static String value(String cell) {
+		if( cell == null || cell.length() == 0 || cell.equals("null") ) {
+			return null;
+		}
+		return cell;
+	}
+}
@@ -0,0 +1,477 @@
+/* Command line options for GenerateCDISC.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Vector;
+
+/**
+ * GenerateCDISC [options] &lt;OWL file&gt; &lt;root&gt; [&lt;root&gt; ...]
+ * <p>
+ * A root of the form @file names a manifest with one root per line; blank lines
+ * and lines starting with # are ignored.
+ * <p>
+ * Options:
+ * <ul>
+ * <li>-threads n : number of codelists to extract at once (default: one per processor)</li>
+ * <li>-out dir : write the reports to dir instead of the working directory</li>
+ * <li>-xls-formatter : build the .xls from the finished .txt with AsciiToExcelFormatter</li>
+ * <li>-snapshot file : reuse the model extracted from the same OWL file, or save it there</li>
+ * <li>-cache-size n : most concept records to cache per KB, least recently used first out (default: no limit)</li>
+ * <li>-metrics file : write phase timings and counters to file as JSON</li>
+ * <li>-progress seconds : least time between progress messages (default: 10)</li>
+ * <li>-lazy : read each codelist's members when it is written, from the codelist's associations, instead of indexing the whole KB</li>
+ * <li>-stream : read the OWL file with {@link OwlStreamLoader} instead of loading an OWLKb</li>
+ * <li>-profiles list : comma separated {@link ReportProfile}s to write, public, internal and qrs (default: public)</li>
+ * <li>-formats list : comma separated {@link ReportFormat}s to write for each profile, txt, xls, odm, ndjson and csv (default: txt,xls)</li>
+ * <li>-serve port : keep the KB loaded and answer requests on localhost:port with {@link ReportServer}</li>
+ * <li>-diff previous : also write the changes since the release in previous, an OWL file or snapshot, with {@link ReleaseDiff}</li>
+ * <li>-validate file : run the {@link Validator} rules and write the findings to file, JSON if it ends in .json, else tab delimited</li>
+ * <li>-rules list : comma separated rules for -validate, {@link StandardRules} names or class names (default: all standard rules)</li>
+ * <li>-no-report : don't write the reports, for instance to only validate</li>
+ * <li>-spill dir : checkpoint each stage of the run in dir with {@link Checkpoints}</li>
+ * <li>-resume : with -spill, start at the first stage the checkpoints in dir don't have</li>
+ * <li>-watch : write the reports, then write them again for each new export of the OWL file with {@link ReportWatcher}</li>
+ * <li>-check dataset : check a dataset, CSV or tab delimited, against the codelists with {@link DatasetChecker}; may be given more than once</li>
+ * <li>-check-map file : the codelist of each dataset variable to check (default: the variables named after a codelist)</li>
+ * <li>-check-findings file : where the -check findings are written (default: Dataset Findings.txt in the out dir)</li>
+ * <li>-bundle file : add each root's files to the zip file as they are generated, with SHA-256 manifests, with {@link ReleaseBundle}</li>
+ * <li>-workers n : build the codelists in n worker JVMs sharing the model snapshot, with {@link ShardCoordinator}; the KB is still loaded and extracted in this JVM (default: 0, all in this JVM)</li>
+ * <li>-worker-heap size : the -Xmx of each worker, such as 2g (default: the JVM's)</li>
+ * <li>-collation locale : order codelist names, submission values and synonyms by the locale's {@link Collation} (default: case insensitive, as always)</li>
+ * </ul>
+ */
+public class ReportOptions {
+
+	private String owlFile = null;
+	private Vector<String> roots = new Vector<String>();
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean useFormatter = false;
+	private File outputDir = null;
+	private String snapshot = null;
+	private boolean stream = false;
+	private boolean lazy = false;
+	private int cacheSize = 0;
+	private String metrics = null;
+	private int progress = 10;
+	private String diff = null;
+	private int serve = -1;
+	private ArrayList<ReportFormat> formats = new ArrayList<ReportFormat>(Arrays.asList(ReportFormat.TXT, ReportFormat.XLS));
+	private String validate = null;
+	private ArrayList<ValidationRule> rules = StandardRules.all();
+	private boolean noReport = false;
+	private Collation collation = Collation.DEFAULT;
+	private String spill = null;
+	private boolean resume = false;
+	private boolean watch = false;
+	private Vector<String> checks = new Vector<String>();
+	private String checkMap = null;
+	private File checkFindings = null;
+	private File bundle = null;
+	private int workers = 0;
+	private String workerHeap = null;
+	private ArrayList<ReportProfile> profiles = new ArrayList<ReportProfile>(Collections.singletonList(ReportProfile.PUBLIC));
+	
+	/**
+	 * @param args
+	 * 			Command line arguments
+	 * @return the parsed options. Prints usage and exits if they can't be parsed.
+	 */
+	public static ReportOptions parse(String[] args) {
+		ReportOptions options = new ReportOptions();
+		int i = 0;
+		try {
+			for( ; i < args.length && args[i].startsWith("-"); i++ ) {
+				String option = args[i];
+				if( option.equals("-threads") ) {
+					options.threads = Integer.parseInt(args[++i]);
+					if( options.threads < 1 ) usage("-threads must be at least 1");
+				}
+				else if( option.equals("-out") ) {
+					options.outputDir = new File(args[++i]);
+					if( !options.outputDir.isDirectory() ) usage("Not a directory: " + options.outputDir);
+				}
+				else if( option.equals("-xls-formatter") ) {
+					options.useFormatter = true;
+				}
+				else if( option.equals("-snapshot") ) {
+					options.snapshot = args[++i];
+				}
+				else if( option.equals("-cache-size") ) {
+					options.cacheSize = Integer.parseInt(args[++i]);
+					if( options.cacheSize < 0 ) usage("-cache-size can't be negative");
+				}
+				else if( option.equals("-metrics") ) {
+					options.metrics = args[++i];
+				}
+				else if( option.equals("-progress") ) {
+					options.progress = Integer.parseInt(args[++i]);
+					if( options.progress < 0 ) usage("-progress can't be negative");
+				}
+				else if( option.equals("-lazy") ) {
+					options.lazy = true;
+				}
+				else if( option.equals("-stream") ) {
+					options.stream = true;
+				}
+				else if( option.equals("-profiles") ) {
+					try {
+						options.profiles = ReportProfile.parse(args[++i]);
+					} catch (IllegalArgumentException e) {
+						usage(e.getMessage());
+					}
+				}
+				else if( option.equals("-formats") ) {
+					try {
+						options.formats = ReportFormat.parse(args[++i]);
+					} catch (IllegalArgumentException e) {
+						usage(e.getMessage());
+					}
+				}
+				else if( option.equals("-serve") ) {
+					options.serve = Integer.parseInt(args[++i]);
+					if( options.serve < 0 || options.serve > 65535 ) usage("-serve needs a port number");
+				}
+				else if( option.equals("-diff") ) {
+					options.diff = args[++i];
+				}
+				else if( option.equals("-validate") ) {
+					options.validate = args[++i];
+				}
+				else if( option.equals("-rules") ) {
+					try {
+						options.rules = Validator.parseRules(args[++i]);
+					} catch (IllegalArgumentException e) {
+						usage(e.getMessage());
+					}
+				}
+				else if( option.equals("-no-report") ) {
+					options.noReport = true;
+				}
+				else if( option.equals("-spill") ) {
+					options.spill = args[++i];
+				}
+				else if( option.equals("-resume") ) {
+					options.resume = true;
+				}
+				else if( option.equals("-watch") ) {
+					options.watch = true;
+				}
+				else if( option.equals("-check") ) {
+					options.checks.add(args[++i]);
+				}
+				else if( option.equals("-check-map") ) {
+					options.checkMap = args[++i];
+				}
+				else if( option.equals("-check-findings") ) {
+					options.checkFindings = new File(args[++i]);
+				}
+				else if( option.equals("-bundle") ) {
+					options.bundle = new File(args[++i]);
+				}
+				else if( option.equals("-workers") ) {
+					options.workers = Integer.parseInt(args[++i]);
+					if( options.workers < 1 ) usage("-workers must be at least 1");
+				}
+				else if( option.equals("-worker-heap") ) {
+					options.workerHeap = args[++i];
+					if( !options.workerHeap.matches("[0-9]+[kKmMgG]?") ) usage("-worker-heap needs a size such as 2g");
+				}
+				else if( option.equals("-collation") ) {
+					try {
+						options.collation = Collation.forName(args[++i]);
+					} catch (IllegalArgumentException e) {
+						usage(e.getMessage());
+					}
+				}
+				else {
+					usage("Unknown option " + option);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			usage("Missing value for " + args[args.length - 1]);
+		} catch (NumberFormatException e) {
+			usage("Not a number: " + args[i]);
+		}
+		if( args.length - i < 2 ) {
+			usage(null);
+		}
+		if( options.lazy && options.snapshot != null ) {
+			usage("-lazy leaves the members out of the model, so it can't be saved with -snapshot");
+		}
+		if( options.resume && options.spill == null ) {
+			usage("-resume needs the -spill directory of the run to resume");
+		}
+		if( options.spill != null && (options.snapshot != null || options.lazy || options.stream) ) {
+			usage("-spill checkpoints the stages of an OWLKb run, so it can't be combined with -snapshot, -lazy or -stream");
+		}
+		if( options.watch && options.lazy ) {
+			usage("-watch compares each export's records with the last one's, which -lazy leaves in the KB, so they can't be combined");
+		}
+		if( options.watch && (options.serve >= 0 || options.snapshot != null || options.spill != null || options.diff != null
+				|| options.validate != null || options.noReport || options.checks.size() > 0) ) {
+			usage("-watch only writes the reports, so it can't be combined with -serve, -snapshot, -spill, -diff, -validate, -check or -no-report");
+		}
+		if( options.bundle != null && (options.noReport || options.watch || options.serve >= 0) ) {
+			usage("-bundle packages the reports of a batch run, so it can't be combined with -no-report, -watch or -serve");
+		}
+		if( options.workers > 0 && (options.lazy || options.spill != null || options.serve >= 0 || options.watch) ) {
+			usage("-workers share an extracted model with the coordinator, so it can't be combined with -lazy, -spill, -serve or -watch");
+		}
+		if( options.workerHeap != null && options.workers == 0 ) {
+			usage("-worker-heap needs -workers");
+		}
+		if( options.checks.isEmpty() && (options.checkMap != null || options.checkFindings != null) ) {
+			usage("-check-map and -check-findings need a -check dataset");
+		}
+		for( String check : options.checks ) {
+			if( !new File(check).isFile() ) usage("No dataset " + check);
+		}
+		if( options.useFormatter && !options.formats.contains(ReportFormat.TXT) ) {
+			usage("-xls-formatter builds the .xls from the .txt, so -formats needs txt");
+		}
+		options.owlFile = args[i];
+		options.roots = readRoots(args, i + 1);
+		return options;
+	}
+	
+	/**
+	 * @param message
+	 * 			What was wrong with the arguments, or null
+	 */
+	public static void usage(String message) {
+		if( message != null ) {
+			System.out.println(message);
+		}
+		System.out.println("Usage: GenerateCDISC [options] <OWL file> <root> [<root> ...]");
+		System.out.println("       GenerateCDISC [options] <OWL file> @<manifest file>");
+		System.out.println("Options:");
+		System.out.println("  -threads <n>    Number of codelists to extract at once");
+		System.out.println("  -out <dir>      Write the reports to dir (default: the working directory)");
+		System.out.println("  -xls-formatter  Convert the .txt to .xls afterwards instead of writing both at once");
+		System.out.println("  -snapshot <f>   Reuse the model snapshot in f if it matches the OWL file, else save one there");
+		System.out.println("  -cache-size <n> Most concept records to cache per KB, least recently used evicted first (default: 0, no limit)");
+		System.out.println("  -metrics <f>    Write phase timings and counters to f as JSON");
+		System.out.println("  -progress <s>   Log progress at most every s seconds (default: 10)");
+		System.out.println("  -lazy           Read each codelist's members from the KB as it is written instead of indexing the whole KB");
+		System.out.println("  -stream         Stream the OWL file for just what the report needs instead of loading an OWLKb");
+		System.out.println("  -profiles <p,..> Variants to write: public, internal (NCI AB, Source Code, retired elements), qrs (no 8 character check)");
+		System.out.println("  -formats <f,..> Files to write for each profile: txt, xls, odm (CDISC ODM XML), ndjson, csv (default: txt,xls)");
+		System.out.println("  -serve <port>   Keep the KB loaded and answer /generate, /codelist, /reload, /status and /stop on localhost:port");
+		System.out.println("  -diff <f>       Also write the changes since the release in f, an OWL file or snapshot");
+		System.out.println("  -validate <f>   Run the validation rules and write the findings to f (.json for JSON, else tab delimited)");
+		System.out.println("  -rules <r,..>   Rules for -validate (default: all of them)");
+		System.out.println("  -no-report      Don't write the reports");
+		System.out.println("  -spill <dir>    Checkpoint each stage of the run in dir");
+		System.out.println("  -resume         Start at the first stage that isn't checkpointed in the -spill dir");
+		System.out.println("  -watch          Write the reports again each time the OWL file changes, rebuilding only the changed codelists");
+		System.out.println("  -check <f>      Check the codelist values of dataset f, CSV or tab delimited (.tsv, .txt); may be repeated");
+		System.out.println("  -check-map <f>  Variable and codelist code, submission value or name per line (default: variables named after a codelist)");
+		System.out.println("  -check-findings <f> Write the -check findings to f (default: Dataset Findings.txt in the out dir)");
+		System.out.println("  -bundle <f>     Zip each root's files into f as they are generated, with SHA-256 manifests");
+		System.out.println("  -workers <n>    Build the codelists in n worker JVMs that map the model snapshot (default: 0, in this JVM)");
+		System.out.println("  -worker-heap <s> Heap of each worker, such as 2g (default: the JVM's)");
+		System.out.println("  -collation <l>  Order codelists, submission values and synonyms for locale l, e.g. en (default: case insensitive)");
+		System.exit(0);
+	}
+	
+	/**
+	 * @param args Command line arguments
+	 * @param from Index of the first root argument
+	 * @return the roots to report on, with any @manifest arguments expanded
+	 */
+	public static Vector<String> readRoots(String[] args, int from) {
+		Vector<String> roots = new Vector<String>();
+		for( int i = from; i < args.length; i++ ) {
+			Vector<String> listed = new Vector<String>();
+			if( args[i].startsWith("@") ) {
+				listed.addAll(readManifest(args[i].substring(1)));
+			}
+			else {
+				listed.add(args[i]);
+			}
+			for( String root : listed ) {
+				if( !roots.contains(root) ) roots.add(root);
+			}
+		}
+		return roots;
+	}
+	
+	/**
+	 * @param filename Manifest of roots, one per line. Blank lines and lines starting with # are ignored.
+	 * @return the roots listed in the manifest
+	 */
+	public static Vector<String> readManifest(String filename) {
+		Vector<String> roots = new Vector<String>();
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new FileReader(filename));
+			String line;
+			while( (line = br.readLine()) != null ) {
+				line = line.trim();
+				if( line.length() == 0 || line.startsWith("#") ) continue;
+				roots.add(line);
+			}
+		} catch (IOException e) {
+			System.out.println("Couldn't read manifest " + filename);
+			System.exit(0);
+		} finally {
+			if( br != null ) {
+				try {
+					br.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return roots;
+	}
+	
+	public String getOwlFile() {
+		return owlFile;
+	}
+	
+	public Vector<String> getRoots() {
+		return roots;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	public File getOutputDir() {
+		return outputDir;
+	}
+	
+	public boolean getUseFormatter() {
+		return useFormatter;
+	}
+	
+	public String getSnapshot() {
+		return snapshot;
+	}
+	
+	public int getCacheSize() {
+		return cacheSize;
+	}
+	
+	public String getMetrics() {
+		return metrics;
+	}
+	
+	public int getProgress() {
+		return progress;
+	}
+	
+	public boolean getStream() {
+		return stream;
+	}
+	
+	public boolean getLazy() {
+		return lazy;
+	}
+	
+	public ArrayList<ReportProfile> getProfiles() {
+		return profiles;
+	}
+	
+	public ArrayList<ReportFormat> getFormats() {
+		return formats;
+	}
+	
+	/**
+	 * @return the port to serve on, or -1 to run as a batch
+	 */
+	public int getServe() {
+		return serve;
+	}
+	
+	public String getDiff() {
+		return diff;
+	}
+	
+	public String getValidate() {
+		return validate;
+	}
+	
+	public ArrayList<ValidationRule> getRules() {
+		return rules;
+	}
+	
+	public boolean getNoReport() {
+		return noReport;
+	}
+	
+	public Collation getCollation() {
+		return collation;
+	}
+	
+	public String getSpill() {
+		return spill;
+	}
+	
+	public boolean getResume() {
+		return resume;
+	}
+	
+	public boolean getWatch() {
+		return watch;
+	}
+	
+	/**
+	 * @return the datasets to check against the codelists, in the order given
+	 */
+	public Vector<String> getChecks() {
+		return checks;
+	}
+	
+	/**
+	 * @return the zip the reports are packaged in, or null
+	 */
+	public File getBundle() {
+		return bundle;
+	}
+	
+	/**
+	 * @return the number of worker JVMs to build the codelists in, or 0 to build them in this one
+	 */
+	public int getWorkers() {
+		return workers;
+	}
+	
+	/**
+	 * @return the maximum heap of each worker, or null
+	 */
+	public String getWorkerHeap() {
+		return workerHeap;
+	}
+	
+	public String getCheckMap() {
+		return checkMap;
+	}
+	
+	/**
+	 * @return where the -check findings go
+	 */
+	public File getCheckFindings() {
+		return checkFindings != null ? checkFindings : new File(outputDir, "Dataset Findings.txt");
+	}
+	
+	/**
+	 * @return the options the report files depend on, so checkpointed reports
+	 * 			are only reused by a run that would write the same ones
+	 */
+	public String getReportSettings() {
+		return "profiles=" + profiles + " formats=" + formats + " xls-formatter=" + useFormatter + " collation=" + collation
+				+ " out=" + (outputDir == null ? new File("").getAbsolutePath() : outputDir.getAbsolutePath());
+	}
+}
@@ -0,0 +1,151 @@
+/* The release variants a CDISC report can be written as.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * One layout of the report, written to its own files from the same
+ * {@link CodelistBlock}s as every other profile of the run:
+ * <ul>
+ * <li>public : the 8 column release, &lt;root name&gt;.txt</li>
+ * <li>internal : the public columns plus the NCI AB, the Source Code of the
+ * submission value and the Status, listing retired elements too,
+ * &lt;root name&gt; Internal.txt</li>
+ * <li>qrs : the public columns for QRS/COA releases, whose codelist submission
+ * values may be over 8 characters, &lt;root name&gt; QRS.txt</li>
+ * </ul>
+ */
+public class ReportProfile {
+
+	/** Columns added by the internal profile. */
+	public static final String[] INTERNAL_COLUMNS = { "NCI AB", "Source Code", "Status" };
+
+	public static final ReportProfile PUBLIC = new ReportProfile("public", "", GenerateCDISC.HEADER, false, true);
+	public static final ReportProfile INTERNAL = new ReportProfile("internal", " Internal", internalHeader(), true, true);
+	public static final ReportProfile QRS = new ReportProfile("qrs", " QRS", GenerateCDISC.HEADER, false, false);
+
+	private final String name;
+	private final String suffix;
+	private final String[] header;
+	private final boolean internal;
+	private final boolean checkShortNameLength;
+
+	/**
+	 * @param name
+	 * 			What -profiles calls it
+	 * @param suffix
+	 * 			Added to the root name to name its files
+	 * @param header
+	 * 			Column headings
+	 * @param internal
+	 * 			Whether it is written from the internal rows
+	 * @param checkShortNameLength
+	 * 			Whether codelist submission values over 8 characters are reported
+	 */
+	private ReportProfile(String name, String suffix, String[] header, boolean internal, boolean checkShortNameLength) {
+		this.name = name;
+		this.suffix = suffix;
+		this.header = header;
+		this.internal = internal;
+		this.checkShortNameLength = checkShortNameLength;
+	}
+
+	/**
+	 * @param names
+	 * 			Comma separated profile names
+	 * @return the profiles, in the order given
+	 * @throws IllegalArgumentException if a name isn't a profile
+	 */
+	public static ArrayList<ReportProfile> parse(String names) {
+		ArrayList<ReportProfile> profiles = new ArrayList<ReportProfile>();
+		for( String name : names.split(",") ) {
+			ReportProfile profile = null;
+			for( ReportProfile known : new ReportProfile[] { PUBLIC, INTERNAL, QRS } ) {
+				if( known.name.equalsIgnoreCase(name.trim()) ) {
+					profile = known;
+				}
+			}
+			if( profile == null ) {
+				throw new IllegalArgumentException("Unknown profile " + name);
+			}
+			if( !profiles.contains(profile) ) {
+				profiles.add(profile);
+			}
+		}
+		return profiles;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String[] getHeader() {
+		return header;
+	}
+
+	public boolean isInternal() {
+		return internal;
+	}
+
+	public boolean getCheckShortNameLength() {
+		return checkShortNameLength;
+	}
+
+	/**
+	 * @param rootName
+	 * 			The Preferred_Name of the root
+	 * @return the file name without its extension
+	 */
+	public String getFileName(String rootName) {
+		return rootName + suffix;
+	}
+
+	/**
+	 * @param block
+	 * 			A block built by {@link CodelistExtractor}
+	 * @return the rows of the block this profile writes
+	 */
+	public CodelistBlock select(CodelistBlock block) {
+		if( internal ) {
+			return block.getInternal();
+		}
+		return block;
+	}
+
+	/**
+	 * @param sink
+	 * 			Where this profile's rows go
+	 * @return a sink that writes this profile's header and rows to it
+	 */
+	public ReportSink wrap(final ReportSink sink) {
+		return new ReportSink() {
+			public void header(String[] ignored) throws IOException {
+				sink.header(header);
+			}
+
+			public void codelist(CodelistBlock block) throws IOException {
+				sink.codelist(select(block));
+			}
+
+			public void close() throws IOException {
+				sink.close();
+			}
+		};
+	}
+
+	public String toString() {
+		return name;
+	}
+
+	private static String[] internalHeader() {
+		String[] header = new String[GenerateCDISC.HEADER.length + INTERNAL_COLUMNS.length];
+		System.arraycopy(GenerateCDISC.HEADER, 0, header, 0, GenerateCDISC.HEADER.length);
+		System.arraycopy(INTERNAL_COLUMNS, 0, header, GenerateCDISC.HEADER.length, INTERNAL_COLUMNS.length);
+		return header;
+	}
+}
@@ -0,0 +1,358 @@
+/* Serves CDISC reports from a KB kept loaded between requests.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * GenerateCDISC -serve port [options] &lt;OWL file&gt; &lt;root&gt; [&lt;root&gt; ...]
+ * <p>
+ * Loads the OWL file once, extracts the roots given, and answers on
+ * http://localhost:port/ until stopped:
+ * <ul>
+ * <li>POST /generate?root=C_SDTM : writes the reports for the root, as the batch run does</li>
+ * <li>/codelist?code=C66742[&amp;root=C_SDTM][&amp;profile=internal] : the rows of one
+ * codelist as tab delimited text, without writing anything</li>
+ * <li>POST /reload[?owl=file] : loads the OWL file again, or another one, in the background</li>
+ * <li>/status : what is loaded and whether a reload is running</li>
+ * <li>POST /stop : stops the server</li>
+ * </ul>
+ * The requests that write files or change the server only answer POST, 405
+ * otherwise, so a page in a browser on the same machine can't set them off
+ * with a link or an image.
+ * A reload builds a new GenerateCDISC, KB, subset index, cache and model, extracts
+ * the roots the old one had, and only then swaps it in. Requests hold on to the
+ * release they started with, so the ones in flight finish against the old KB;
+ * allow heap for two KBs while reloading. Requests against the same release
+ * take turns, as GenerateCDISC isn't meant to run two reports at once.
+ */
+public class ReportServer {
+
+	private static final String UTF8 = "UTF-8";
+
+	/**
+	 * A loaded OWL file and when it was loaded.
+	 */
+	private static class Release {
+		final GenerateCDISC report;
+		final String owlFile;
+		final long loadedAt = System.currentTimeMillis();
+		final long loadMillis;
+
+		Release(GenerateCDISC report, String owlFile, long loadMillis) {
+			this.report = report;
+			this.owlFile = owlFile;
+			this.loadMillis = loadMillis;
+		}
+	}
+
+	private final ReportOptions options;
+	private final AtomicReference<Release> current = new AtomicReference<Release>();
+	private final AtomicBoolean reloading = new AtomicBoolean(false);
+	private final ExecutorService reloader = Executors.newSingleThreadExecutor();
+	private volatile String lastError = null;
+	private HttpServer server = null;
+	private ExecutorService requests = null;
+
+	/**
+	 * @param options
+	 * 			The command line, with the OWL file, the roots to keep extracted and the port
+	 */
+	public ReportServer(ReportOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Loads the OWL file and starts answering requests.
+	 */
+	public void start() throws IOException {
+		current.set(load(options.getOwlFile(), options.getRoots()));
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), options.getServe()), 0);
+		server.createContext("/generate", new Handler(true) {
+			String handle(Map<String,String> params, Release release) throws Exception {
+				return generate(release, required(params, "root"));
+			}
+		});
+		server.createContext("/codelist", new Handler() {
+			String handle(Map<String,String> params, Release release) throws Exception {
+				return codelist(release, required(params, "code"), params.get("root"), params.get("profile"));
+			}
+		});
+		server.createContext("/reload", new Handler(true) {
+			String handle(Map<String,String> params, Release release) {
+				return reload(params.containsKey("owl") ? params.get("owl") : release.owlFile);
+			}
+		});
+		server.createContext("/status", new Handler() {
+			String handle(Map<String,String> params, Release release) {
+				return status(release);
+			}
+		});
+		server.createContext("/stop", new Handler(true) {
+			String handle(Map<String,String> params, Release release) {
+				stop();
+				return "Stopping\n";
+			}
+		});
+		requests = Executors.newCachedThreadPool();
+		server.setExecutor(requests);
+		server.start();
+		System.out.println("Serving reports for " + options.getOwlFile() + " on http://localhost:" + getPort() + "/");
+	}
+
+	/**
+	 * @return the port answered on, which is chosen by the system if -serve was 0
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stops answering, letting the requests in flight finish.
+	 */
+	public void stop() {
+		new Thread() {
+			public void run() {
+				close();
+				System.out.println("Stopped serving reports.");
+				//The request threads aren't daemons
+				System.exit(0);
+			}
+		}.start();
+	}
+
+	/**
+	 * Stops answering, as /stop does, but leaves the JVM running.
+	 */
+	void close() {
+		server.stop(1);
+		reloader.shutdownNow();
+		requests.shutdown();
+	}
+
+	/**
+	 * @param owlFile
+	 * @param roots
+	 * 			Roots to extract before the release is used
+	 * @return the loaded release
+	 */
+	private Release load(String owlFile, Iterable<String> roots) throws IOException {
+		long start = System.currentTimeMillis();
+		LinkedHashSet<String> wanted = new LinkedHashSet<String>();
+		for( String root : roots ) {
+			wanted.add(root);
+		}
+		GenerateCDISC report = GenerateCDISC.open(owlFile, options, wanted);
+		for( String root : wanted ) {
+			try {
+				report.extract(root);
+			} catch (Exception e) {
+				System.out.println("Couldn't extract " + root + " from " + owlFile);
+				e.printStackTrace();
+			}
+		}
+		long millis = System.currentTimeMillis() - start;
+		System.out.println("Loaded " + owlFile + " in " + millis / 1000 + " seconds.");
+		return new Release(report, owlFile, millis);
+	}
+
+	private String generate(Release release, String root) {
+		GenerateCDISC report = release.report;
+		long start = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder();
+		synchronized( report ) {
+			report.generate(root);
+			String rootName = report.getModel().getRootName(root);
+			for( ReportProfile profile : report.profiles ) {
+				for( ReportFormat format : report.formats ) {
+					sb.append(format.getFile(report.outputDir, profile.getFileName(rootName)).getAbsolutePath()).append("\n");
+				}
+			}
+		}
+		sb.append("Generated " + root + " in " + (System.currentTimeMillis() - start) + " ms\n");
+		return sb.toString();
+	}
+
+	private String codelist(Release release, String code, String root, String profileName) throws IOException {
+		GenerateCDISC report = release.report;
+		ReportProfile profile = profileName == null ? ReportProfile.PUBLIC : ReportProfile.parse(profileName).get(0);
+		StringWriter out = new StringWriter();
+		synchronized( report ) {
+			if( root == null ) {
+				for( String extracted : report.getModel().getRoots() ) {
+					if( root == null && report.getModel().getCodelists(extracted).contains(code) ) {
+						root = extracted;
+					}
+				}
+				if( root == null ) {
+					throw new IllegalArgumentException("No root loaded has codelist " + code + ", give one with root=");
+				}
+			}
+			ArrayList<CodelistBlock> blocks = new ArrayList<CodelistBlock>();
+			for( CodelistExtractor extractor : report.buildExtractors(root) ) {
+				if( extractor.getCodelistConcept().equals(code) ) {
+					if( profile.isInternal() ) {
+						extractor.setInternal(true);
+					}
+					blocks.add(extractor.call());
+				}
+			}
+			if( blocks.isEmpty() ) {
+				throw new IllegalArgumentException(root + " doesn't report codelist " + code);
+			}
+			ReportSink sink = profile.wrap(new TabDelimitedSink(out));
+			sink.header(GenerateCDISC.HEADER);
+			for( CodelistBlock block : blocks ) {
+				sink.codelist(block);
+			}
+			sink.close();
+		}
+		return out.toString();
+	}
+
+	private String reload(final String owlFile) {
+		if( !reloading.compareAndSet(false, true) ) {
+			return "Already reloading\n";
+		}
+		final Release old = current.get();
+		reloader.submit(new Runnable() {
+			public void run() {
+				try {
+					LinkedHashSet<String> roots = new LinkedHashSet<String>(options.getRoots());
+					roots.addAll(old.report.getModel().getRoots());
+					current.set(load(owlFile, roots));
+					lastError = null;
+					System.out.println("Swapped in " + owlFile);
+				} catch (Throwable e) {
+					//Keep serving the old release
+					lastError = e.toString();
+					System.out.println("Couldn't reload " + owlFile);
+					e.printStackTrace();
+				} finally {
+					reloading.set(false);
+				}
+			}
+		});
+		return "Reloading " + owlFile + "\n";
+	}
+
+	private String status(Release release) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("owlFile\t" + release.owlFile + "\n");
+		sb.append("loadedAt\t" + new Date(release.loadedAt) + "\n");
+		sb.append("loadSeconds\t" + release.loadMillis / 1000 + "\n");
+		sb.append("roots\t" + release.report.getModel().getRoots() + "\n");
+		sb.append("reloading\t" + reloading.get() + "\n");
+		if( lastError != null ) {
+			sb.append("lastReloadError\t" + lastError + "\n");
+		}
+		return sb.toString();
+	}
+
+	private static String required(Map<String,String> params, String name) {
+		String value = params.get(name);
+		if( value == null || value.length() == 0 ) {
+			throw new IllegalArgumentException("Missing " + name + "=");
+		}
+		return value;
+	}
+
+	private static Map<String,String> parseQuery(String query) throws UnsupportedEncodingException {
+		HashMap<String,String> params = new HashMap<String,String>();
+		if( query == null ) {
+			return params;
+		}
+		for( String pair : query.split("&") ) {
+			int eq = pair.indexOf('=');
+			if( eq < 0 ) {
+				params.put(URLDecoder.decode(pair, UTF8), "");
+			}
+			else {
+				params.put(URLDecoder.decode(pair.substring(0, eq), UTF8), URLDecoder.decode(pair.substring(eq + 1), UTF8));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Answers one kind of request against the release current when it arrived,
+	 * as plain text: 200 with the result, 400 if the request was wrong, 405 if it
+	 * should have been a POST, 500 if the report failed.
+	 */
+	private abstract class Handler implements HttpHandler {
+
+		private final boolean post;
+
+		Handler() {
+			this(false);
+		}
+
+		/**
+		 * @param post
+		 * 			Whether the request changes something, so only POST is answered
+		 */
+		Handler(boolean post) {
+			this.post = post;
+		}
+
+		abstract String handle(Map<String,String> params, Release release) throws Exception;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			long start = System.currentTimeMillis();
+			int status = 200;
+			String body;
+			try {
+				if( post && !exchange.getRequestMethod().equals("POST") ) {
+					status = 405;
+					body = "Use POST for " + exchange.getRequestURI().getPath() + "\n";
+					exchange.getResponseHeaders().set("Allow", "POST");
+				}
+				else {
+					body = handle(parseQuery(exchange.getRequestURI().getRawQuery()), current.get());
+				}
+			} catch (IllegalArgumentException e) {
+				status = 400;
+				body = e.getMessage() + "\n";
+			} catch (Exception e) {
+				status = 500;
+				body = e + "\n";
+				e.printStackTrace();
+			}
+			byte[] bytes = body.getBytes(UTF8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=" + UTF8);
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+			System.out.println(exchange.getRequestURI() + " " + status + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/* Destination for the rows of a CDISC report.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.IOException;
+
+/**
+ * Receives a report in a single pass: the header once, then every codelist block
+ * in report order, then close. Several sinks can be fed from the same pass, so
+ * each output format is written without re-reading another.
+ */
+public interface ReportSink {
+
+	/**
+	 * @param header
+	 * 			Column headings
+	 */
+	public void header(String[] header) throws IOException;
+	
+	/**
+	 * @param block
+	 * 			The codelist row and its element rows
+	 */
+	public void codelist(CodelistBlock block) throws IOException;
+	
+	/**
+	 * Finishes the output and releases the file.
+	 */
+	public void close() throws IOException;
+}
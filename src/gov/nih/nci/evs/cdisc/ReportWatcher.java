@@ -0,0 +1,177 @@
+/* Regenerates CDISC reports each time the OWL file is exported again.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * GenerateCDISC -watch [options] &lt;OWL file&gt; &lt;root&gt; [&lt;root&gt; ...]
+ * <p>
+ * Writes the reports for the roots, then watches the OWL file's directory with
+ * a {@link WatchService} and writes them again each time the file is replaced
+ * or rewritten, until stopped. A new export is only read once its size and
+ * timestamp have stayed the same for {@link #QUIET_MILLIS}, so a file still
+ * being written isn't loaded.
+ * <p>
+ * Each export is loaded and extracted as the batch run does, then its model
+ * is compared with the last export's through the {@link BlockCache}, which
+ * keeps the last render's blocks with the extractors, and so the model, they
+ * were built from: only the codelists whose own properties, members or
+ * members' records changed are built again, and the rest are spliced back into
+ * the files as they were. The previous export's KB is let go before the next
+ * is loaded; its model is let go once the new render has replaced its blocks.
+ */
+public class ReportWatcher {
+
+	/** How long the OWL file must stay unchanged before it is loaded. */
+	public static final long QUIET_MILLIS = 2000;
+
+	private final ReportOptions options;
+	private final File owlFile;
+	private final BlockCache blocks = new BlockCache();
+	private long length = -1;
+	private long lastModified = -1;
+
+	/**
+	 * @param options
+	 * 			The command line, with the OWL file to watch and the roots to report
+	 */
+	public ReportWatcher(ReportOptions options) {
+		this.options = options;
+		this.owlFile = new File(options.getOwlFile()).getAbsoluteFile();
+	}
+
+	/**
+	 * Writes the reports, then regenerates them for each new export. Only
+	 * returns if the watch can't go on.
+	 */
+	public void start() throws IOException {
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		Path dir = owlFile.getParentFile().toPath();
+		dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		try {
+			generate();
+			while( true ) {
+				System.out.println("Watching " + owlFile + " for a new export...");
+				boolean changed = false;
+				while( !changed ) {
+					WatchKey key = watcher.take();
+					for( WatchEvent<?> event : key.pollEvents() ) {
+						//An overflow may have lost the event for the OWL file
+						if( event.kind() == StandardWatchEventKinds.OVERFLOW
+								|| owlFile.getName().equals(String.valueOf(event.context())) ) {
+							changed = true;
+						}
+					}
+					if( !key.reset() ) {
+						System.out.println("Can't watch " + dir + " any more");
+						return;
+					}
+				}
+				awaitQuiet(watcher);
+				if( owlFile.length() == length && owlFile.lastModified() == lastModified ) {
+					System.out.println(owlFile + " is the export already reported");
+					continue;
+				}
+				generate();
+			}
+		} catch (InterruptedException e) {
+			System.out.println("Stopped watching " + owlFile);
+		} finally {
+			watcher.close();
+		}
+	}
+
+	/**
+	 * Waits until the OWL file exists and its size and timestamp haven't
+	 * changed for {@link #QUIET_MILLIS}, dropping the events it raised meanwhile.
+	 *
+	 * @param watcher
+	 */
+	private void awaitQuiet(WatchService watcher) throws InterruptedException {
+		long size = -1;
+		long modified = -1;
+		while( !owlFile.isFile() || owlFile.length() != size || owlFile.lastModified() != modified ) {
+			size = owlFile.length();
+			modified = owlFile.lastModified();
+			Thread.sleep(QUIET_MILLIS);
+			WatchKey key = watcher.poll();
+			while( key != null ) {
+				key.pollEvents();
+				key.reset();
+				key = watcher.poll();
+			}
+		}
+	}
+
+	/**
+	 * Loads the OWL file as it is now and writes the reports for every root,
+	 * building only the blocks that aren't in the cache.
+	 */
+	private void generate() {
+		long start = System.currentTimeMillis();
+		length = owlFile.length();
+		lastModified = owlFile.lastModified();
+		Vector<String> roots = options.getRoots();
+		GenerateCDISC report;
+		try {
+			report = GenerateCDISC.open(owlFile.getPath(), options, roots);
+		} catch (Exception e) {
+			System.out.println("Couldn't load " + owlFile + ", waiting for the next export");
+			e.printStackTrace();
+			return;
+		}
+		report.setBlockCache(blocks);
+		RunMetrics metrics = report.getMetrics();
+		metrics.setInfo("owlFile", owlFile.getPath());
+		metrics.setInfo("roots", roots);
+		metrics.setInfo("watch", true);
+
+		Vector<String> failed = new Vector<String>();
+		for( String root : roots ) {
+			long reportStart = System.currentTimeMillis();
+			int hits = blocks.getHits();
+			int built = blocks.getBuilt().size();
+			try {
+				report.generate(root);
+			} catch (Exception e) {
+				e.printStackTrace();
+				failed.add(root);
+				continue;
+			}
+			List<String> changed = blocks.getBuilt();
+			changed = changed.subList(built, changed.size());
+			System.out.println("Finished " + root + " in " + (System.currentTimeMillis() - reportStart) / 1000 + " seconds, "
+					+ changed.size() + " codelists built and " + (blocks.getHits() - hits) + " reused"
+					+ (changed.isEmpty() || changed.size() > 20 ? "" : ": " + changed));
+		}
+		metrics.count("watch", "built", blocks.getBuilt().size());
+		metrics.count("watch", "reused", blocks.getHits());
+		blocks.retainUsed();
+		if( options.getMetrics() != null ) {
+			try {
+				metrics.write(new File(options.getMetrics()));
+			} catch (IOException e) {
+				System.out.println("Couldn't write metrics to " + options.getMetrics());
+				e.printStackTrace();
+			}
+		}
+		if( failed.size() > 0 ) {
+			System.out.println("Failed to generate: " + failed);
+		}
+		System.out.println("Regenerated " + (roots.size() - failed.size()) + " of " + roots.size() + " reports in "
+				+ (System.currentTimeMillis() - start) / 1000 + " seconds.");
+	}
+}
@@ -0,0 +1,87 @@
+/* Root-scoped, on demand view of the subsets in an OWLKb.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import gov.nih.nci.evs.owl.data.OWLKb;
+import gov.nih.nci.evs.owl.entity.Association;
+import gov.nih.nci.evs.owl.proxy.ConceptProxy;
+
+/**
+ * Finds the members of a codelist when it is asked for, from the
+ * Concept_In_Subset associations that target the codelist, instead of walking
+ * every concept and association in the KB as {@link SubsetIndex} does. Only the
+ * codelists under the roots being reported are ever looked at, and no proxy is
+ * made for a concept outside them.
+ * <p>
+ * Members are in the order the KB gives the codelist's associations, each
+ * once. That isn't the index's order, which is the order of the KB's whole
+ * concept map and can't be had without walking it. The report depends on
+ * member order in two places: which retired element the old removal loop
+ * steps past, and which of two elements with one submission value is kept.
+ * Where a codelist has either, -lazy can report it differently from the
+ * other engines.
+ */
+public class RootScope {
+
+	private final OWLKb kb;
+	private final String namespace;
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong associations = new AtomicLong();
+
+	/**
+	 * @param kb
+	 * 			The KB to read from
+	 * @param namespace
+	 * 			The namespace of the concept URIs
+	 */
+	public RootScope(OWLKb kb, String namespace) {
+		this.kb = kb;
+		this.namespace = namespace;
+	}
+
+	/**
+	 * @param codelist
+	 * 			Code of the subset (codelist) concept
+	 * @return the member codes in the order of the subset's associations, empty if it has none
+	 */
+	public List<String> getMembers(String codelist) {
+		lookups.incrementAndGet();
+		ConceptProxy subset = kb.getConcept(URI.create(namespace + "#" + codelist));
+		if( subset == null ) {
+			return Collections.emptyList();
+		}
+		LinkedHashSet<String> members = new LinkedHashSet<String>();
+		for( Association assoc : kb.getAssociationsForTarget(subset) ) {
+			associations.incrementAndGet();
+			if( assoc.getName().equals(SubsetIndex.CONCEPT_IN_SUBSET) ) {
+				members.add(assoc.getSource().getCode());
+			}
+		}
+		return new ArrayList<String>(members);
+	}
+
+	/**
+	 * @return number of codelists whose members were looked up
+	 */
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return number of associations read while looking up members
+	 */
+	public long getAssociationCount() {
+		return associations.get();
+	}
+}
@@ -0,0 +1,375 @@
+/* Timings and counters for each phase of a run.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects, per phase (KB load, subset scan, codelist discovery, extraction,
+ * rendering, writing, Excel conversion), the wall time, the CPU time and bytes
+ * allocated by the threads doing the work, the time spent collecting garbage,
+ * named counters, and the slowest codelists. Phases may be timed from several
+ * threads at once. The whole lot is written as JSON, with the peak heap, so
+ * runs against different Thesaurus releases can be compared.
+ */
+public class RunMetrics {
+
+	/** Number of slowest codelists kept per phase. */
+	public static final int SLOWEST = 10;
+
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	private final long started = System.currentTimeMillis();
+	private final LinkedHashMap<String,String> info = new LinkedHashMap<String,String>();
+	private final LinkedHashMap<String,Phase> phases = new LinkedHashMap<String,Phase>();
+
+	/** Totals for one phase. */
+	public static class Phase {
+		private final String name;
+		private final AtomicLong wallNanos = new AtomicLong();
+		private final AtomicLong cpuNanos = new AtomicLong();
+		private final AtomicLong allocatedBytes = new AtomicLong();
+		private final AtomicLong gcMillis = new AtomicLong();
+		private final LinkedHashMap<String,AtomicLong> counters = new LinkedHashMap<String,AtomicLong>();
+		private final ArrayList<String[]> slowest = new ArrayList<String[]>();
+		private final ArrayList<Long> slowestNanos = new ArrayList<Long>();
+
+		Phase(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getWallNanos() {
+			return wallNanos.get();
+		}
+
+		public long getCpuNanos() {
+			return cpuNanos.get();
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes.get();
+		}
+
+		/**
+		 * @return milliseconds the JVM spent collecting garbage while the phase was timed
+		 */
+		public long getGcMillis() {
+			return gcMillis.get();
+		}
+
+		/**
+		 * @param counter
+		 * @return the counter's value, 0 if nothing was counted
+		 */
+		public synchronized long getCount(String counter) {
+			AtomicLong count = counters.get(counter);
+			return count == null ? 0 : count.get();
+		}
+
+		synchronized void count(String counter, long n) {
+			AtomicLong count = counters.get(counter);
+			if( count == null ) {
+				count = new AtomicLong();
+				counters.put(counter, count);
+			}
+			count.addAndGet(n);
+		}
+
+		synchronized void codelist(String root, String codelist, long nanos, int elements) {
+			int i = slowestNanos.size();
+			while( i > 0 && slowestNanos.get(i - 1) < nanos ) {
+				i--;
+			}
+			if( i >= SLOWEST ) {
+				return;
+			}
+			slowestNanos.add(i, nanos);
+			slowest.add(i, new String[] { root, codelist, String.valueOf(elements) });
+			if( slowest.size() > SLOWEST ) {
+				slowestNanos.remove(SLOWEST);
+				slowest.remove(SLOWEST);
+			}
+		}
+	}
+
+	/**
+	 * Measures one piece of work in a phase, on the thread that started it.
+	 */
+	public class Timer {
+		private final Phase phase;
+		private final boolean wall;
+		private final long startNanos = System.nanoTime();
+		private final long startCpu = threadCpu();
+		private final long startAllocated = threadAllocated();
+		private final long startGc;
+
+		Timer(Phase phase, boolean wall) {
+			this.phase = phase;
+			this.wall = wall;
+			this.startGc = wall ? gcMillis() : -1;
+		}
+
+		/**
+		 * Adds the time, CPU and allocation since the timer started to the phase.
+		 *
+		 * @return the wall time in nanoseconds
+		 */
+		public long stop() {
+			long nanos = System.nanoTime() - startNanos;
+			if( wall ) {
+				phase.wallNanos.addAndGet(nanos);
+			}
+			if( startGc >= 0 ) {
+				phase.gcMillis.addAndGet(gcMillis() - startGc);
+			}
+			if( startCpu >= 0 ) {
+				phase.cpuNanos.addAndGet(threadCpu() - startCpu);
+			}
+			if( startAllocated >= 0 ) {
+				phase.allocatedBytes.addAndGet(threadAllocated() - startAllocated);
+			}
+			return nanos;
+		}
+	}
+
+	/**
+	 * @param phase
+	 * @return a timer adding wall time, CPU and allocation to the phase
+	 */
+	public Timer start(String phase) {
+		return new Timer(getPhase(phase), true);
+	}
+
+	/**
+	 * For work on a pool thread, whose wall time is already covered by the
+	 * timer on the thread waiting for the pool.
+	 *
+	 * @param phase
+	 * @return a timer adding only CPU and allocation to the phase
+	 */
+	public Timer startWork(String phase) {
+		return new Timer(getPhase(phase), false);
+	}
+
+	/**
+	 * @param phase
+	 * @param counter
+	 * 			e.g. concepts, associations, codelists or elements
+	 * @param n
+	 * 			Amount to add
+	 */
+	public void count(String phase, String counter, long n) {
+		getPhase(phase).count(counter, n);
+	}
+
+	/**
+	 * Records the time one codelist took, keeping the slowest per phase.
+	 *
+	 * @param phase
+	 * @param root
+	 * @param codelist
+	 * @param nanos
+	 * @param elements
+	 */
+	public void codelist(String phase, String root, String codelist, long nanos, int elements) {
+		getPhase(phase).codelist(root, codelist, nanos, elements);
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * 			Something about the run, such as the OWL file or the thread count
+	 */
+	public synchronized void setInfo(String key, Object value) {
+		info.put(key, String.valueOf(value));
+	}
+
+	public synchronized Phase getPhase(String name) {
+		Phase phase = phases.get(name);
+		if( phase == null ) {
+			phase = new Phase(name);
+			phases.put(name, phase);
+		}
+		return phase;
+	}
+
+	/**
+	 * @param json
+	 * 			The file to write the metrics to
+	 */
+	public synchronized void write(File json) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(json), "UTF-8"));
+		try {
+			MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+			out.print("{\n  \"started\": " + started);
+			out.print(",\n  \"wallMillis\": " + (System.currentTimeMillis() - started));
+			out.print(",\n  \"heapUsedBytes\": " + heap.getUsed());
+			out.print(",\n  \"heapMaxBytes\": " + heap.getMax());
+			out.print(",\n  \"heapPeakBytes\": " + heapPeak());
+			out.print(",\n  \"gcMillis\": " + gcMillis());
+			out.print(",\n  \"info\": {");
+			String separator = "\n";
+			for( String key : info.keySet() ) {
+				out.print(separator + "    " + quote(key) + ": " + quote(info.get(key)));
+				separator = ",\n";
+			}
+			out.print("\n  },\n  \"phases\": [");
+			separator = "\n";
+			for( Phase phase : phases.values() ) {
+				out.print(separator);
+				writePhase(out, phase);
+				separator = ",\n";
+			}
+			out.print("\n  ]\n}\n");
+		} finally {
+			out.close();
+		}
+		if( out.checkError() ) {
+			throw new IOException("Couldn't write " + json);
+		}
+	}
+
+	private static void writePhase(PrintWriter out, Phase phase) {
+		synchronized( phase ) {
+			out.print("    {\n      \"name\": " + quote(phase.getName()));
+			out.print(",\n      \"wallMillis\": " + phase.getWallNanos() / 1000000);
+			out.print(",\n      \"cpuMillis\": " + phase.getCpuNanos() / 1000000);
+			out.print(",\n      \"allocatedBytes\": " + phase.getAllocatedBytes());
+			out.print(",\n      \"gcMillis\": " + phase.getGcMillis());
+			out.print(",\n      \"counters\": {");
+			String separator = "";
+			for( Map.Entry<String,AtomicLong> counter : phase.counters.entrySet() ) {
+				out.print(separator + " " + quote(counter.getKey()) + ": " + counter.getValue().get());
+				separator = ",";
+			}
+			out.print(" }");
+			if( phase.slowest.size() > 0 ) {
+				out.print(",\n      \"slowestCodelists\": [");
+				separator = "\n";
+				for( int i = 0; i < phase.slowest.size(); i++ ) {
+					String[] codelist = phase.slowest.get(i);
+					out.print(separator + "        { \"root\": " + quote(codelist[0]) + ", \"codelist\": " + quote(codelist[1])
+							+ ", \"elements\": " + codelist[2] + ", \"millis\": " + phase.slowestNanos.get(i) / 1000000.0 + " }");
+					separator = ",\n";
+				}
+				out.print("\n      ]");
+			}
+			out.print("\n    }");
+		}
+	}
+
+	/**
+	 * @return one line per phase, for the end of the log
+	 */
+	public synchronized String summary() {
+		StringBuilder summary = new StringBuilder();
+		ArrayList<Phase> sorted = new ArrayList<Phase>(phases.values());
+		Collections.sort(sorted, new Comparator<Phase>() {
+			public int compare(Phase a, Phase b) {
+				return Long.valueOf(b.getWallNanos()).compareTo(a.getWallNanos());
+			}
+		});
+		for( Phase phase : sorted ) {
+			//Phases that only count things, like the cache, have no time to show
+			if( phase.getWallNanos() == 0 && phase.getCpuNanos() == 0 ) {
+				continue;
+			}
+			summary.append(String.format("%-18s %8d ms wall %8d ms cpu %12d bytes%n", phase.getName(),
+					phase.getWallNanos() / 1000000, phase.getCpuNanos() / 1000000, phase.getAllocatedBytes()));
+		}
+		return summary.toString();
+	}
+
+	static String quote(String value) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			if( c == '"' || c == '\\' ) {
+				quoted.append('\\').append(c);
+			}
+			else if( c == '\n' ) {
+				quoted.append("\\n");
+			}
+			else if( c == '\t' ) {
+				quoted.append("\\t");
+			}
+			else if( c < 0x20 ) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * @return CPU nanoseconds used by this thread, -1 if the JVM can't tell
+	 */
+	static long threadCpu() {
+		if( !threadBean.isCurrentThreadCpuTimeSupported() ) {
+			return -1;
+		}
+		return threadBean.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * @return milliseconds spent in garbage collection since the JVM started, by every collector
+	 */
+	static long gcMillis() {
+		long millis = 0;
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	/**
+	 * @return the most heap each heap pool has held since the JVM started, added up
+	 */
+	static long heapPeak() {
+		long bytes = 0;
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+			if( pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null ) {
+				bytes += pool.getPeakUsage().getUsed();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return bytes allocated by this thread, -1 if the JVM can't tell
+	 */
+	static long threadAllocated() {
+		if( threadBean instanceof com.sun.management.ThreadMXBean ) {
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threadBean;
+			if( hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled() ) {
+				return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
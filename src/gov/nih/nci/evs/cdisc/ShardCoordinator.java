@@ -0,0 +1,348 @@
+/* Splits report generation across worker JVMs.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the codelist blocks of each root in worker JVMs instead of this one.
+ * Only the blocks: the KB is still loaded and extracted here, or the model
+ * loaded from a -snapshot, before the shards start. The extracted model is
+ * saved once as a snapshot, which every worker maps read-only, so no worker
+ * loads a KB and the OS shares the snapshot's pages between them. Each root's codelist listings are split into contiguous
+ * ranges of about the same number of members, one per worker, and every
+ * shard of every root is started up front on a pool of that many workers.
+ * Generate then writes a root's blocks shard by shard in listing order, which
+ * is the report order, as each shard and the ones before it finish, so the
+ * files are the same as from one JVM.
+ * <p>
+ * A worker that exits with an error, or without writing its blocks, is
+ * started again up to {@link #RETRIES} times; after that its root fails as it
+ * would in one JVM. Each worker's output goes to a log in the work directory,
+ * which is deleted at the end unless a shard failed. Workers still running
+ * then are asked to exit, killed if they haven't within {@link #STOP_SECONDS},
+ * and waited for before anything is deleted.
+ */
+public class ShardCoordinator {
+
+	/** Times a shard is run again after its worker fails. */
+	public static final int RETRIES = 2;
+
+	/** Seconds a worker has to exit once asked to stop, before it is killed. */
+	public static final int STOP_SECONDS = 10;
+
+	private final int workers;
+	private final String heap;
+	private final boolean internal;
+	private final File dir;
+	private final File snapshot;
+	private final boolean ownSnapshot;
+	private final ExecutorService pool;
+	private final HashMap<String,ArrayList<Future<File>>> shards = new HashMap<String,ArrayList<Future<File>>>();
+	private final AtomicInteger retries = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final HashSet<Process> processes = new HashSet<Process>();
+	private boolean closed = false;
+	private int shardCount = 0;
+
+	/**
+	 * @param workers
+	 * 			Number of worker JVMs to run at once, and of shards per root
+	 * @param heap
+	 * 			The -Xmx of each worker, such as 2g, or null for the JVM's default
+	 * @param internal
+	 * 			Whether the internal profile's rows are built as well
+	 * @param snapshot
+	 * 			The snapshot to share with the workers, or null for one in the work directory
+	 */
+	public ShardCoordinator(int workers, String heap, boolean internal, File snapshot) throws IOException {
+		this.workers = workers;
+		this.heap = heap;
+		this.internal = internal;
+		this.dir = Files.createTempDirectory("cdisc-shards").toFile();
+		this.ownSnapshot = snapshot == null;
+		this.snapshot = snapshot == null ? new File(dir, "model.snapshot") : snapshot;
+		this.pool = Executors.newFixedThreadPool(workers);
+	}
+
+	/**
+	 * @return the snapshot the workers map, which has to be saved before {@link #start(CdiscModel, Collection)}
+	 */
+	public File getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Splits each root of the model into shards and starts them, in root order.
+	 *
+	 * @param model
+	 * 			The model saved in the snapshot, with the roots sorted
+	 * @param roots
+	 * 			The roots to be generated; those the model hasn't are left out
+	 */
+	public synchronized void start(CdiscModel model, Collection<String> roots) {
+		for( final String root : roots ) {
+			SortIndex listings = model.getListingIndex(root);
+			if( shards.containsKey(root) || listings == null ) {
+				continue;
+			}
+			List<String> codelists = model.getCodelists(root);
+			long[] weights = new long[listings.size()];
+			for( int i = 0; i < weights.length; i++ ) {
+				weights[i] = model.getMembers(codelists.get(listings.getPosition(i))).size() + 1;
+			}
+			ArrayList<Future<File>> futures = new ArrayList<Future<File>>();
+			int[] bounds = split(weights, workers);
+			for( int i = 0; i + 1 < bounds.length; i++ ) {
+				final int shard = i;
+				final int from = bounds[i];
+				final int to = bounds[i + 1];
+				futures.add(pool.submit(new Callable<File>() {
+					public File call() throws Exception {
+						return run(root, shard, from, to);
+					}
+				}));
+			}
+			shards.put(root, futures);
+			shardCount += futures.size();
+		}
+	}
+
+	/**
+	 * @param weights
+	 * 			The weight of each listing
+	 * @param parts
+	 * @return the bounds of up to parts contiguous, non-empty ranges of about the same weight,
+	 * 			from 0 to the number of listings
+	 */
+	static int[] split(long[] weights, int parts) {
+		long total = 0;
+		for( long weight : weights ) {
+			total += weight;
+		}
+		int[] bounds = new int[Math.max(1, Math.min(parts, weights.length)) + 1];
+		int bound = 1;
+		long sum = 0;
+		for( int i = 0; i < weights.length && bound + 1 < bounds.length; i++ ) {
+			sum += weights[i];
+			//Cut once this range has its share, leaving a listing for each range still to come
+			if( sum * (bounds.length - 1) >= total * bound && weights.length - (i + 1) >= bounds.length - 1 - bound ) {
+				bounds[bound++] = i + 1;
+			}
+		}
+		bounds[bound] = weights.length;
+		return Arrays.copyOf(bounds, bound + 1);
+	}
+
+	/**
+	 * Runs a worker for the shard until it finishes or has failed too often.
+	 *
+	 * @return the blocks file it wrote
+	 */
+	private File run(String root, int shard, int from, int to) throws IOException, InterruptedException {
+		String name = root.replaceAll("[^A-Za-z0-9_.-]", "_") + "." + shard;
+		File blocks = new File(dir, name + ".blocks");
+		File log = new File(dir, name + ".log");
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		if( heap != null ) {
+			command.add("-Xmx" + heap);
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ShardWorker.class.getName());
+		command.addAll(Arrays.asList(snapshot.getPath(), root, String.valueOf(from), String.valueOf(to),
+				String.valueOf(internal), blocks.getPath()));
+		for( int attempt = 0; ; attempt++ ) {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+			Process process;
+			synchronized( processes ) {
+				if( closed ) {
+					throw new IOException("Shard " + shard + " of " + root + " was stopped");
+				}
+				process = builder.start();
+				processes.add(process);
+			}
+			int status;
+			boolean stopped;
+			try {
+				status = process.waitFor();
+			} catch (InterruptedException e) {
+				stop(process);
+				throw e;
+			} finally {
+				synchronized( processes ) {
+					processes.remove(process);
+					stopped = closed;
+				}
+			}
+			if( status == 0 && blocks.isFile() ) {
+				return blocks;
+			}
+			if( stopped ) {
+				throw new IOException("Shard " + shard + " of " + root + " was stopped");
+			}
+			if( attempt == RETRIES ) {
+				failures.incrementAndGet();
+				throw new IOException("Shard " + shard + " of " + root + " (codelists " + from + " to " + to + ") failed "
+						+ (RETRIES + 1) + " times, see " + log);
+			}
+			retries.incrementAndGet();
+			System.out.println("Shard " + shard + " of " + root + " failed with status " + status + ", running it again");
+		}
+	}
+
+	/**
+	 * Asks the worker to exit, kills it if it hasn't within {@link #STOP_SECONDS},
+	 * and waits until it has.
+	 *
+	 * @param process
+	 */
+	private static void stop(Process process) {
+		process.destroy();
+		try {
+			if( !process.waitFor(STOP_SECONDS, TimeUnit.SECONDS) ) {
+				process.destroyForcibly().waitFor();
+			}
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes the root's blocks in listing order, each shard as soon as it has finished.
+	 *
+	 * @param report
+	 * 			The report the blocks are written for
+	 * @param root
+	 * @param listings
+	 * 			The number of listings the report has for the root
+	 * @param sinks
+	 */
+	public void write(GenerateCDISC report, String root, int listings, ArrayList<ReportSink> sinks) throws IOException {
+		ArrayList<Future<File>> futures;
+		synchronized( this ) {
+			futures = shards.get(root);
+		}
+		if( futures == null ) {
+			throw new IllegalStateException(root + " wasn't split into shards");
+		}
+		ProgressLog progress = new ProgressLog("Merged shards for " + root, futures.size());
+		int written = 0;
+		for( Future<File> future : futures ) {
+			File file;
+			try {
+				file = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the shards of " + root, e);
+			} catch (ExecutionException e) {
+				if( e.getCause() instanceof IOException ) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Couldn't run the shards of " + root, e.getCause());
+			}
+			DataInputStream in = ShardWorker.open(file);
+			try {
+				int size = in.readInt();
+				for( int i = 0; i < size; i++ ) {
+					report.write(root, ShardWorker.readBlock(in), sinks);
+				}
+				written += size;
+			} finally {
+				in.close();
+			}
+			file.delete();
+			progress.step();
+		}
+		if( written != listings ) {
+			throw new IOException("The shards of " + root + " have " + written + " codelists, not " + listings);
+		}
+	}
+
+	/**
+	 * Stops the workers still running, waits for them to exit and deletes the
+	 * work directory, unless a shard failed and its log is worth keeping.
+	 */
+	public void close() {
+		ArrayList<Process> running;
+		synchronized( processes ) {
+			closed = true;
+			running = new ArrayList<Process>(processes);
+		}
+		pool.shutdownNow();
+		//Asked all at once, so they have the time to exit together
+		for( Process process : running ) {
+			process.destroy();
+		}
+		for( Process process : running ) {
+			stop(process);
+		}
+		try {
+			//The shards' threads stop their own workers too, and write nothing once they are done
+			if( !pool.awaitTermination(STOP_SECONDS, TimeUnit.SECONDS) ) {
+				System.out.println("Shard threads are still running, keeping " + dir);
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if( failures.get() > 0 ) {
+			System.out.println("The logs of the failed shards are in " + dir);
+			return;
+		}
+		File[] files = dir.listFiles();
+		if( files != null ) {
+			for( File file : files ) {
+				if( ownSnapshot || !file.equals(snapshot) ) {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * @return the number of shards started
+	 */
+	public synchronized int getShardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * @return the number of times a shard was run again
+	 */
+	public int getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return the number of shards that failed every time
+	 */
+	public int getFailures() {
+		return failures.get();
+	}
+}
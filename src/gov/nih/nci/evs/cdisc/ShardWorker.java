@@ -0,0 +1,157 @@
+/* Builds the blocks of one shard of a report in a worker JVM.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * ShardWorker &lt;snapshot&gt; &lt;root&gt; &lt;from&gt; &lt;to&gt; &lt;internal&gt; &lt;blocks file&gt;
+ * <p>
+ * Started by {@link ShardCoordinator}, one JVM per shard. Maps the model
+ * snapshot the coordinator saved, lines up the root's codelist listings from
+ * (inclusive) to to (exclusive) as generate does, reading only the records of
+ * the codelists listed there and their members, builds their blocks, the
+ * internal profile's rows too if internal is true, and writes them to the
+ * blocks file for the coordinator to merge. Loading the OWL file and extracting
+ * the model stay with the coordinator; the workers only build blocks. The file is written
+ * under another name and moved into place, so it is only there if the shard
+ * finished. Exits with status 1 if it didn't.
+ */
+public class ShardWorker {
+
+	private static final String MAGIC = "GenerateCDISC shard blocks";
+	private static final int VERSION = 1;
+
+	/**
+	 * @param args
+	 * 			The snapshot, root, listing range, whether to build internal rows and the blocks file
+	 */
+	public static void main(String args[]) {
+		if( args.length != 6 ) {
+			System.out.println("Usage: ShardWorker <snapshot> <root> <from> <to> <internal> <blocks file>");
+			System.exit(1);
+		}
+		try {
+			long start = System.currentTimeMillis();
+			CdiscModel model = SnapshotStore.map(new File(args[0]));
+			if( model == null ) {
+				throw new IOException(args[0] + " isn't a snapshot from this version");
+			}
+			String root = args[1];
+			int from = Integer.parseInt(args[2]);
+			int to = Integer.parseInt(args[3]);
+			boolean internal = Boolean.parseBoolean(args[4]);
+
+			GenerateCDISC report = new GenerateCDISC();
+			//Sorted as the coordinator's model is
+			report.setCollation(model.getCollation());
+			report.load(model);
+			List<CodelistExtractor> extractors = report.buildExtractors(root, from, to);
+			for( CodelistExtractor extractor : extractors ) {
+				extractor.setInternal(internal);
+			}
+			write(extractors, new File(args[5]));
+			System.out.println("Built " + extractors.size() + " codelists of " + root + " in "
+			        + (System.currentTimeMillis() - start) + " ms");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Builds each block and writes it out before building the next.
+	 *
+	 * @param extractors
+	 * 			The shard's extractors, in listing order
+	 * @param file
+	 * 			Where the blocks go, by way of a temporary file
+	 */
+	static void write(List<CodelistExtractor> extractors, File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(extractors.size());
+			for( CodelistExtractor extractor : extractors ) {
+				writeBlock(out, extractor.call());
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @param file
+	 * 			A blocks file a worker finished
+	 * @return the file, at the number of blocks in it, each to be read with {@link #readBlock(DataInputStream)}
+	 */
+	static DataInputStream open(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		if( !MAGIC.equals(in.readUTF()) || in.readInt() != VERSION ) {
+			in.close();
+			throw new IOException(file + " isn't a blocks file from this version");
+		}
+		return in;
+	}
+
+	private static void writeBlock(DataOutputStream out, CodelistBlock block) throws IOException {
+		SnapshotStore.writeString(out, block.getCodelistName());
+		writeRow(out, block.getCodelistRow());
+		out.writeInt(block.getElementRows().size());
+		for( String[] row : block.getElementRows() ) {
+			writeRow(out, row);
+		}
+		SnapshotStore.writeList(out, block.getMessages());
+		out.writeBoolean(block.getInternal() != null);
+		if( block.getInternal() != null ) {
+			writeBlock(out, block.getInternal());
+		}
+	}
+
+	static CodelistBlock readBlock(DataInputStream in) throws IOException {
+		CodelistBlock block = new CodelistBlock(SnapshotStore.readString(in), readRow(in));
+		int rows = in.readInt();
+		for( int i = 0; i < rows; i++ ) {
+			block.addElementRow(readRow(in));
+		}
+		for( String message : SnapshotStore.readList(in) ) {
+			block.addMessage(message);
+		}
+		if( in.readBoolean() ) {
+			block.setInternal(readBlock(in));
+		}
+		return block;
+	}
+
+	private static void writeRow(DataOutputStream out, String[] row) throws IOException {
+		out.writeInt(row.length);
+		for( String cell : row ) {
+			SnapshotStore.writeString(out, cell);
+		}
+	}
+
+	private static String[] readRow(DataInputStream in) throws IOException {
+		String[] row = new String[in.readInt()];
+		for( int i = 0; i < row.length; i++ ) {
+			row[i] = SnapshotStore.readString(in);
+		}
+		return row;
+	}
+}
@@ -0,0 +1,554 @@
+/* Saves and loads extracted CDISC models as binary snapshots.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot holds a {@link CdiscModel} together with the length, modification
+ * time and SHA-256 of the OWL file it was extracted from. It is used only while
+ * the OWL file still matches: if the length and time agree it is taken as is,
+ * otherwise the file is hashed, so an export that was only touched still reuses
+ * the snapshot while a changed one is detected and rebuilt. A touched export
+ * gets its new time written into the snapshot, so it is only hashed once.
+ */
+public class SnapshotStore {
+
+	private static final String MAGIC = "GenerateCDISC model snapshot";
+	private static final int VERSION = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final File snapshot;
+	private final File owl;
+	private long owlLength = -1;
+	private long owlModified = -1;
+	private String owlHash = null;
+	
+	/**
+	 * @param snapshot
+	 * 			The snapshot file
+	 * @param owlLocation
+	 * 			The OWL file the model comes from, as given to OWLKb
+	 */
+	public SnapshotStore(File snapshot, String owlLocation) {
+		this.snapshot = snapshot;
+		this.owl = toFile(owlLocation);
+		if( owl != null ) {
+			//Taken before the KB is loaded, so an export that changes mid-run isn't mistaken for the one we read
+			owlLength = owl.length();
+			owlModified = owl.lastModified();
+		}
+	}
+	
+	/**
+	 * @param owlLocation
+	 * 			A path or file: URI
+	 * @return the local file, or null if the location isn't one
+	 */
+	public static File toFile(String owlLocation) {
+		try {
+			if( owlLocation.startsWith("file:") ) {
+				return new File(new URI(owlLocation));
+			}
+		} catch (Exception e) {
+			return null;
+		}
+		if( owlLocation.contains("://") ) {
+			return null;
+		}
+		return new File(owlLocation);
+	}
+	
+	public File getFile() {
+		return snapshot;
+	}
+	
+	/**
+	 * @param roots
+	 * 			Roots the snapshot has to cover
+	 * @return the snapshot's model, or null if there is no usable snapshot
+	 */
+	public CdiscModel load(Collection<String> roots) {
+		if( owl == null || !owl.isFile() ) {
+			System.out.println("Snapshots need a local OWL file, not using " + snapshot);
+			return null;
+		}
+		if( !snapshot.isFile() ) {
+			System.out.println("No snapshot at " + snapshot);
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+			if( !MAGIC.equals(in.readUTF()) || in.readInt() != VERSION ) {
+				System.out.println("Snapshot " + snapshot + " is from another version, rebuilding");
+				return null;
+			}
+			long length = in.readLong();
+			long modified = in.readLong();
+			String hash = in.readUTF();
+			if( length != owlLength || (modified != owlModified && !hash.equals(getOwlHash())) ) {
+				System.out.println("Snapshot " + snapshot + " is stale, rebuilding");
+				return null;
+			}
+			CdiscModel model = readModel(in);
+			for( String root : roots ) {
+				if( !model.hasRoot(root) ) {
+					System.out.println("Snapshot " + snapshot + " doesn't have " + root + ", rebuilding");
+					return null;
+				}
+			}
+			if( modified != owlModified ) {
+				setModified(owlModified);
+			}
+			return model;
+		} catch (IOException e) {
+			System.out.println("Couldn't read snapshot " + snapshot + ", rebuilding");
+			e.printStackTrace();
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+	
+	/**
+	 * Reads a snapshot without checking it against an OWL file, so the model of
+	 * an earlier release can be used after its export is gone.
+	 * 
+	 * @param snapshot
+	 * 			The snapshot file
+	 * @return the model, or null if the file isn't a snapshot from this version
+	 */
+	public static CdiscModel read(File snapshot) throws IOException {
+		return read(new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot))));
+	}
+	
+	/**
+	 * Reads a snapshot as {@link #read(File)} does, straight from the file
+	 * mapped into memory, so processes reading the same snapshot share its
+	 * pages in the OS cache instead of each copying it through a buffer.
+	 * 
+	 * @param snapshot
+	 * 			The snapshot file
+	 * @return the model, or null if the file isn't a snapshot from this version
+	 */
+	public static CdiscModel map(File snapshot) throws IOException {
+		FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+		try {
+			return read(new DataInputStream(new MappedInputStream(channel)));
+		} finally {
+			close(channel);
+		}
+	}
+	
+	private static CdiscModel read(DataInputStream in) throws IOException {
+		try {
+			try {
+				if( !MAGIC.equals(in.readUTF()) || in.readInt() != VERSION ) {
+					return null;
+				}
+			} catch (IOException e) {
+				//An OWL file, say, rather than a snapshot
+				return null;
+			}
+			in.readLong();
+			in.readLong();
+			in.readUTF();
+			return readModel(in);
+		} finally {
+			close(in);
+		}
+	}
+	
+	/**
+	 * Reads a file through read-only mappings of up to {@link #WINDOW} bytes,
+	 * mapping the next one as the last is used up.
+	 */
+	private static class MappedInputStream extends InputStream {
+		private static final long WINDOW = 1L << 30;
+		private final FileChannel channel;
+		private final long size;
+		private long mapped = 0;
+		private MappedByteBuffer buffer = null;
+		
+		MappedInputStream(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+		}
+		
+		private boolean next() throws IOException {
+			if( buffer != null && buffer.hasRemaining() ) {
+				return true;
+			}
+			if( mapped >= size ) {
+				return false;
+			}
+			long length = Math.min(WINDOW, size - mapped);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapped, length);
+			mapped += length;
+			return true;
+		}
+		
+		public int read() throws IOException {
+			return next() ? buffer.get() & 0xff : -1;
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			if( len == 0 ) {
+				return 0;
+			}
+			if( !next() ) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+	
+	/**
+	 * Writes the snapshot to a temporary file and moves it into place,
+	 * so a failed run never leaves a truncated snapshot behind.
+	 * 
+	 * @param model
+	 * 			The model extracted from the OWL file
+	 */
+	public void save(CdiscModel model) {
+		if( owl == null || !owl.isFile() ) {
+			return;
+		}
+		File tmp = new File(snapshot.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(owlLength);
+			out.writeLong(owlModified);
+			out.writeUTF(getOwlHash());
+			writeModel(out, model);
+			out.close();
+			out = null;
+			Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			System.out.println("Saved snapshot " + snapshot);
+		} catch (IOException e) {
+			System.out.println("Couldn't save snapshot " + snapshot);
+			e.printStackTrace();
+		} finally {
+			close(out);
+			tmp.delete();
+		}
+	}
+	
+	/**
+	 * Overwrites the OWL file's modification time in the snapshot's header,
+	 * once its hash has shown the file is the one the snapshot was saved from.
+	 * 
+	 * @param modified
+	 */
+	private void setModified(long modified) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(snapshot, "rw");
+			//After the magic, as writeUTF writes it, the version and the length
+			file.seek(2 + MAGIC.getBytes(UTF8).length + 4 + 8);
+			file.writeLong(modified);
+		} catch (IOException e) {
+			//Only costs hashing the OWL file again next time
+			System.out.println("Couldn't update snapshot " + snapshot);
+			e.printStackTrace();
+		} finally {
+			close(file);
+		}
+	}
+	
+	/**
+	 * @return SHA-256 of the OWL file, in hex
+	 */
+	public String getOwlHash() throws IOException {
+		if( owlHash == null ) {
+			owlHash = sha256(owl);
+		}
+		return owlHash;
+	}
+	
+	/**
+	 * @param file
+	 * @return SHA-256 of the file, in hex
+	 */
+	public static String sha256(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[1 << 20];
+			int read;
+			while( (read = in.read(buffer)) != -1 ) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * @param bytes
+	 * @return the bytes in lower case hex
+	 */
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for( byte b : bytes ) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+	
+	private static void writeModel(DataOutputStream out, CdiscModel model) throws IOException {
+		ArrayList<String> codes = new ArrayList<String>(model.getConcepts().keySet());
+		Collections.sort(codes);
+		out.writeInt(codes.size());
+		for( String code : codes ) {
+			writeString(out, code);
+			writeRecord(out, model.getConcept(code));
+		}
+		
+		ArrayList<String> codelists = new ArrayList<String>(model.getAllMembers().keySet());
+		Collections.sort(codelists);
+		out.writeInt(codelists.size());
+		for( String codelist : codelists ) {
+			writeString(out, codelist);
+			writeList(out, model.getMembers(codelist));
+		}
+		
+		out.writeInt(model.getRoots().size());
+		for( String root : model.getRoots() ) {
+			writeString(out, root);
+			writeList(out, model.getCodelists(root));
+		}
+		
+		//How the model sorts, so a model read back renders without sorting again
+		writeString(out, model.getCollation().getName());
+		ArrayList<SortKey> keys = new ArrayList<SortKey>(model.getSortKeys());
+		out.writeInt(keys.size());
+		for( SortKey key : keys ) {
+			writeString(out, key.getValue());
+			byte[] collation = key.getCollation();
+			out.writeInt(collation == null ? -1 : collation.length);
+			if( collation != null ) {
+				out.write(collation);
+			}
+		}
+		ArrayList<String> sorted = new ArrayList<String>();
+		for( String root : model.getRoots() ) {
+			if( model.getListingIndex(root) != null ) {
+				sorted.add(root);
+			}
+		}
+		out.writeInt(sorted.size());
+		for( String root : sorted ) {
+			writeString(out, root);
+			writeIndex(out, model.getListingIndex(root));
+		}
+		List<String> indexed = model.getSubmissionIndexed();
+		out.writeInt(indexed.size());
+		for( String codelist : indexed ) {
+			writeString(out, codelist);
+			writeIndex(out, model.getSubmissionIndex(codelist));
+		}
+	}
+	
+	private static void writeIndex(DataOutputStream out, SortIndex index) throws IOException {
+		out.writeInt(index.size());
+		for( int i = 0; i < index.size(); i++ ) {
+			writeString(out, index.getTerm(i));
+			out.writeInt(index.getPosition(i));
+		}
+	}
+	
+	private static SortIndex readIndex(DataInputStream in, StringPool pool) throws IOException {
+		int size = in.readInt();
+		String[] terms = new String[size];
+		int[] positions = new int[size];
+		for( int i = 0; i < size; i++ ) {
+			terms[i] = pool.intern(readString(in));
+			positions[i] = in.readInt();
+		}
+		return new SortIndex(terms, positions);
+	}
+	
+	/**
+	 * @param out
+	 * @param record
+	 * 			A concept record, written the same way in a snapshot and in a {@link CodelistExtractor} content hash
+	 */
+	static void writeRecord(DataOutputStream out, ConceptRecord record) throws IOException {
+		writeString(out, record.getCode());
+		writeString(out, record.getPreferredName());
+		writeString(out, record.getCdiscDefinition());
+		out.writeBoolean(record.isDeprecated());
+		out.writeInt(record.getSynonyms().size());
+		for( Synonym synonym : record.getSynonyms() ) {
+			writeString(out, synonym.getName());
+			writeString(out, synonym.getTermSource());
+			writeString(out, synonym.getTermGroup());
+			writeList(out, synonym.getSourceCodes());
+		}
+		writeList(out, record.getExtensibleLists());
+	}
+	
+	/**
+	 * @param in
+	 * @param pool
+	 * 			Where the record's strings are shared with the other records read
+	 * @return a record written by {@link #writeRecord(DataOutputStream, ConceptRecord)}
+	 */
+	static ConceptRecord readRecord(DataInputStream in, StringPool pool) throws IOException {
+		ConceptRecord record = new ConceptRecord(pool.intern(readString(in)));
+		record.setPreferredName(pool.intern(readString(in)));
+		record.setCdiscDefinition(readString(in));
+		record.setDeprecated(in.readBoolean());
+		int synonyms = in.readInt();
+		for( int j = 0; j < synonyms; j++ ) {
+			String name = pool.intern(readString(in));
+			String termSource = pool.intern(readString(in));
+			String termGroup = pool.intern(readString(in));
+			List<String> sourceCodes = Collections.emptyList();
+			for( String sourceCode : readList(in) ) {
+				sourceCodes = Synonym.add(sourceCodes, pool.intern(sourceCode));
+			}
+			record.addSynonym(new Synonym(name, termSource, termGroup, sourceCodes));
+		}
+		for( String extensible : readList(in) ) {
+			record.addExtensibleList(pool.intern(extensible));
+		}
+		return record;
+	}
+	
+	private static CdiscModel readModel(DataInputStream in) throws IOException {
+		CdiscModel model = new CdiscModel();
+		StringPool pool = new StringPool();
+		int concepts = in.readInt();
+		for( int i = 0; i < concepts; i++ ) {
+			String code = readString(in);
+			model.addConcept(code, readRecord(in, pool));
+		}
+		
+		int codelists = in.readInt();
+		for( int i = 0; i < codelists; i++ ) {
+			String codelist = readString(in);
+			model.setMembers(codelist, readList(in));
+		}
+		
+		int roots = in.readInt();
+		for( int i = 0; i < roots; i++ ) {
+			String root = readString(in);
+			model.addRoot(root, readList(in));
+		}
+		
+		try {
+			model.setCollation(Collation.forName(readString(in)));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Snapshot is sorted for a locale this JVM can't collate", e);
+		}
+		int keys = in.readInt();
+		for( int i = 0; i < keys; i++ ) {
+			String value = pool.intern(readString(in));
+			int length = in.readInt();
+			byte[] collation = null;
+			if( length >= 0 ) {
+				collation = new byte[length];
+				in.readFully(collation);
+			}
+			model.addSortKey(new SortKey(value, collation));
+		}
+		int listings = in.readInt();
+		for( int i = 0; i < listings; i++ ) {
+			String root = readString(in);
+			model.setListingIndex(root, readIndex(in, pool));
+		}
+		int submissions = in.readInt();
+		for( int i = 0; i < submissions; i++ ) {
+			String codelist = readString(in);
+			model.setSubmissionIndex(codelist, readIndex(in, pool));
+		}
+		return model;
+	}
+	
+	static void writeList(DataOutputStream out, List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for( String value : values ) {
+			writeString(out, value);
+		}
+	}
+	
+	static ArrayList<String> readList(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		ArrayList<String> values = new ArrayList<String>(size);
+		for( int i = 0; i < size; i++ ) {
+			values.add(readString(in));
+		}
+		return values;
+	}
+	
+	//writeUTF stops at 64K, which a long definition could pass
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if( value == null ) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if( length < 0 ) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	static void close(Closeable c) {
+		if( c != null ) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/* Terms in report order, with where each came from.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The result of sorting a root's codelist names, or a codelist's submission
+ * values, by their {@link SortKey}s: the terms in order, each with the position
+ * (codelist under the root, or member of the codelist) it belongs to. The model
+ * keeps these, and snapshots save them, so a model is only sorted once however
+ * often it is rendered.
+ */
+public class SortIndex {
+
+	private final String[] terms;
+	private final int[] positions;
+
+	/**
+	 * @param terms
+	 * 			The terms in order
+	 * @param positions
+	 * 			The position of each term
+	 */
+	public SortIndex(String[] terms, int[] positions) {
+		if( terms.length != positions.length ) {
+			throw new IllegalArgumentException(terms.length + " terms but " + positions.length + " positions");
+		}
+		this.terms = terms;
+		this.positions = positions;
+	}
+
+	/**
+	 * @param keys
+	 * 			The keys of the terms
+	 * @param positions
+	 * 			The position of each term, in the order terms with equal keys are to keep
+	 * @return the index, in {@link SortKey} order
+	 */
+	public static SortIndex sort(final List<SortKey> keys, List<Integer> positions) {
+		Integer[] order = new Integer[keys.size()];
+		for( int i = 0; i < order.length; i++ ) {
+			order[i] = i;
+		}
+		//Stable, so equal keys keep the order they were added in
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return keys.get(a).compareTo(keys.get(b));
+			}
+		});
+		String[] terms = new String[order.length];
+		int[] sorted = new int[order.length];
+		for( int i = 0; i < order.length; i++ ) {
+			terms[i] = keys.get(order[i]).getValue();
+			sorted[i] = positions.get(order[i]);
+		}
+		return new SortIndex(terms, sorted);
+	}
+
+	public int size() {
+		return terms.length;
+	}
+
+	public String getTerm(int i) {
+		return terms[i];
+	}
+
+	public int getPosition(int i) {
+		return positions[i];
+	}
+}
@@ -0,0 +1,110 @@
+/* A term with the keys it is ordered by, worked out once.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.Comparator;
+
+/**
+ * The report orders codelist names and submission values case insensitively,
+ * ties in the order of the exact strings, and each element's CDISC synonyms by
+ * their exact strings. Comparing with String.CASE_INSENSITIVE_ORDER folds the
+ * case of both strings again on every comparison; a SortKey folds the term
+ * once, the same way, so sorting is plain String comparisons. With a locale
+ * {@link Collation} the key also holds the collator's key bytes, which order
+ * first.
+ */
+public final class SortKey implements Comparable<SortKey> {
+
+	/** Orders by collation key, if any, then the exact string, as Collections.sort did the synonyms. */
+	public static final Comparator<SortKey> EXACT = new Comparator<SortKey>() {
+		public int compare(SortKey a, SortKey b) {
+			int c = compareCollation(a, b);
+			return c != 0 ? c : a.value.compareTo(b.value);
+		}
+	};
+
+	private final String value;
+	//null when folding leaves the term as it is
+	private final String folded;
+	private final byte[] collation;
+
+	/**
+	 * @param value
+	 * 			The term
+	 * @param collation
+	 * 			The collator's key for the term, or null
+	 */
+	public SortKey(String value, byte[] collation) {
+		this.value = value;
+		String folded = fold(value);
+		this.folded = folded.equals(value) ? null : folded;
+		this.collation = collation;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the term with every character folded as String.CASE_INSENSITIVE_ORDER folds it
+	 */
+	public String getFolded() {
+		return folded == null ? value : folded;
+	}
+
+	/**
+	 * @return the collator's key bytes, or null for the default order
+	 */
+	public byte[] getCollation() {
+		return collation;
+	}
+
+	/**
+	 * Case insensitive, then exact: the order of a TreeMap of the terms copied
+	 * out and sorted, stably, with String.CASE_INSENSITIVE_ORDER.
+	 */
+	public int compareTo(SortKey other) {
+		int c = compareCollation(this, other);
+		if( c != 0 ) {
+			return c;
+		}
+		c = getFolded().compareTo(other.getFolded());
+		return c != 0 ? c : value.compareTo(other.value);
+	}
+
+	/**
+	 * @param value
+	 * @return the string String.CASE_INSENSITIVE_ORDER compares, character by character, for the value
+	 */
+	static String fold(String value) {
+		char[] chars = null;
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			char f = Character.toLowerCase(Character.toUpperCase(c));
+			if( f != c ) {
+				if( chars == null ) {
+					chars = value.toCharArray();
+				}
+				chars[i] = f;
+			}
+		}
+		return chars == null ? value : new String(chars);
+	}
+
+	private static int compareCollation(SortKey a, SortKey b) {
+		if( a.collation == null || b.collation == null ) {
+			return 0;
+		}
+		int length = Math.min(a.collation.length, b.collation.length);
+		for( int i = 0; i < length; i++ ) {
+			int c = (a.collation[i] & 0xff) - (b.collation[i] & 0xff);
+			if( c != 0 ) {
+				return c;
+			}
+		}
+		return a.collation.length - b.collation.length;
+	}
+}
@@ -0,0 +1,219 @@
+/* The validation rules GenerateCDISC runs by default.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The checks generate has always printed while it works, as rules, and a few
+ * the report needed but never made:
+ * <ul>
+ * <li>submission-value-length : codelist CDISC PT over 8 characters, except for QRS roots</li>
+ * <li>extensible-list : codelist with no or several Extensible_List (P361) values</li>
+ * <li>codelist-definition : codelist without a CDISC ALT_DEFINITION (P325)</li>
+ * <li>duplicate-codelist-synonym : CDISC SY used by two codelists of a root, so only the first is reported under it</li>
+ * <li>unlisted-codelist : codelist without a CDISC SY, which the report leaves out</li>
+ * <li>submission-value : element without a CDISC PT, or with several and none for the codelist's NCI AB</li>
+ * <li>duplicate-submission-value : elements of a codelist with the same submission value, so only one is reported</li>
+ * <li>retired-member : retired element still in a codelist's subset</li>
+ * </ul>
+ */
+public class StandardRules {
+
+	/**
+	 * @return a new instance of every standard rule
+	 */
+	public static ArrayList<ValidationRule> all() {
+		ArrayList<ValidationRule> rules = new ArrayList<ValidationRule>();
+		rules.add(new SubmissionValueLength());
+		rules.add(new ExtensibleList());
+		rules.add(new CodelistDefinition());
+		rules.add(new DuplicateCodelistSynonym());
+		rules.add(new UnlistedCodelist());
+		rules.add(new SubmissionValue());
+		rules.add(new DuplicateSubmissionValue());
+		rules.add(new RetiredMember());
+		return rules;
+	}
+
+	/**
+	 * Base for the rules that only look at one codelist at a time.
+	 */
+	public static abstract class CodelistRule implements ValidationRule {
+
+		public void checkRoot(CdiscModel model, String root, List<Finding> findings) {
+		}
+	}
+
+	public static class SubmissionValueLength extends CodelistRule {
+
+		public String getName() {
+			return "submission-value-length";
+		}
+
+		public void checkCodelist(CdiscModel model, String root, String codelist, List<Finding> findings) {
+			if( GenerateCDISC.isQrsRoot(root) ) {
+				return;
+			}
+			//Per Erin: codelist submission value cannot be more than 8 characters in length
+			for( Synonym synonym : model.getConcept(codelist).getSynonyms("CDISC", "PT") ) {
+				if( synonym.getName().length() > 8 ) {
+					findings.add(new Finding(Finding.WARNING, getName(), root, codelist, codelist,
+							"Codelist Submission Value (CDISC PT) over 8 characters (" + synonym.getName() + ")"));
+				}
+			}
+		}
+	}
+
+	public static class ExtensibleList extends CodelistRule {
+
+		public String getName() {
+			return "extensible-list";
+		}
+
+		public void checkCodelist(CdiscModel model, String root, String codelist, List<Finding> findings) {
+			int count = model.getConcept(codelist).getExtensibleLists().size();
+			if( count == 0 ) {
+				findings.add(new Finding(Finding.ERROR, getName(), root, codelist, codelist, "No Extensible_List"));
+			}
+			else if( count > 1 ) {
+				findings.add(new Finding(Finding.ERROR, getName(), root, codelist, codelist,
+						"Multiple Extensible_List " + model.getConcept(codelist).getExtensibleLists()));
+			}
+		}
+	}
+
+	public static class CodelistDefinition extends CodelistRule {
+
+		public String getName() {
+			return "codelist-definition";
+		}
+
+		public void checkCodelist(CdiscModel model, String root, String codelist, List<Finding> findings) {
+			if( model.getConcept(codelist).getCdiscDefinition() == null ) {
+				findings.add(new Finding(Finding.WARNING, getName(), root, codelist, codelist, "No CDISC Definition"));
+			}
+		}
+	}
+
+	public static class DuplicateCodelistSynonym implements ValidationRule {
+
+		public String getName() {
+			return "duplicate-codelist-synonym";
+		}
+
+		public void checkRoot(CdiscModel model, String root, List<Finding> findings) {
+			//Same order and comparison as the report, so the codelist named keeps the synonym
+			TreeMap<String,String> claimed = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+			for( String codelist : model.getCodelists(root) ) {
+				for( Synonym synonym : model.getConcept(codelist).getSynonyms("CDISC", "SY") ) {
+					String owner = claimed.get(synonym.getName());
+					if( owner == null ) {
+						claimed.put(synonym.getName(), codelist);
+					}
+					else {
+						findings.add(new Finding(Finding.ERROR, getName(), root, codelist, codelist,
+								"CDISC SY " + synonym.getName() + " is already the name of " + owner));
+					}
+				}
+			}
+		}
+
+		public void checkCodelist(CdiscModel model, String root, String codelist, List<Finding> findings) {
+		}
+	}
+
+	public static class UnlistedCodelist extends CodelistRule {
+
+		public String getName() {
+			return "unlisted-codelist";
+		}
+
+		public void checkCodelist(CdiscModel model, String root, String codelist, List<Finding> findings) {
+			if( model.getConcept(codelist).getSynonyms("CDISC", "SY").isEmpty() ) {
+				findings.add(new Finding(Finding.WARNING, getName(), root, codelist, codelist, "No CDISC SY, so the codelist isn't reported"));
+			}
+		}
+	}
+
+	public static class SubmissionValue extends CodelistRule {
+
+		public String getName() {
+			return "submission-value";
+		}
+
+		public void checkCodelist(CdiscModel model, String root, String codelist, List<Finding> findings) {
+			String ab = nciAB(model, codelist);
+			for( String element : model.getMembers(codelist) ) {
+				ConceptRecord record = model.getConcept(element);
+				if( record.isDeprecated() ) {
+					continue;
+				}
+				if( CodelistExtractor.submissionValues(record, ab).isEmpty() ) {
+					int count = record.getSynonyms("CDISC", "PT").size();
+					findings.add(new Finding(Finding.ERROR, getName(), root, codelist, element, count == 0
+							? "No submission value (CDISC PT)"
+							: count + " CDISC PTs and none with Source Code " + ab));
+				}
+			}
+		}
+	}
+
+	public static class DuplicateSubmissionValue extends CodelistRule {
+
+		public String getName() {
+			return "duplicate-submission-value";
+		}
+
+		public void checkCodelist(CdiscModel model, String root, String codelist, List<Finding> findings) {
+			String ab = nciAB(model, codelist);
+			HashMap<String,String> value2Element = new HashMap<String,String>();
+			for( String element : model.getMembers(codelist) ) {
+				ConceptRecord record = model.getConcept(element);
+				if( record.isDeprecated() ) {
+					continue;
+				}
+				for( Synonym synonym : CodelistExtractor.submissionValues(record, ab) ) {
+					String value = synonym.getName();
+					String other = value2Element.get(value);
+					if( other == null ) {
+						value2Element.put(value, element);
+					}
+					else if( !other.equals(element) ) {
+						findings.add(new Finding(Finding.ERROR, getName(), root, codelist, element,
+								"Submission value " + value + " is also used by " + other));
+					}
+				}
+			}
+		}
+	}
+
+	public static class RetiredMember extends CodelistRule {
+
+		public String getName() {
+			return "retired-member";
+		}
+
+		public void checkCodelist(CdiscModel model, String root, String codelist, List<Finding> findings) {
+			for( String element : model.getMembers(codelist) ) {
+				if( model.getConcept(element).isDeprecated() ) {
+					findings.add(new Finding(Finding.WARNING, getName(), root, codelist, element, "Retired concept still in the subset"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the codelist's NCI AB, the last one as the report takes it
+	 */
+	private static String nciAB(CdiscModel model, String codelist) {
+		List<Synonym> abs = model.getConcept(codelist).getSynonyms("NCI", "AB");
+		return abs.isEmpty() ? null : abs.get(abs.size() - 1).getName();
+	}
+}
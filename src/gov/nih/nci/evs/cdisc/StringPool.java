@@ -0,0 +1,41 @@
+/* Shares one copy of each string read from a release.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deduplicates the strings concept records are built from. The KB hands out a
+ * new String for every qualifier and property value, so "CDISC", "PT", "Yes"
+ * and the NCI AB Source Codes would otherwise be held once per synonym, and a
+ * term that is both the Preferred_Name and a synonym once per use. Unlike
+ * String.intern() the pool goes away with the records it was used for.
+ * Safe to use from several threads.
+ */
+public class StringPool {
+
+	private final ConcurrentHashMap<String,String> strings = new ConcurrentHashMap<String,String>();
+
+	/**
+	 * @param value
+	 * 			A string, or null
+	 * @return the pooled string equal to it, null for null
+	 */
+	public String intern(String value) {
+		if( value == null ) {
+			return null;
+		}
+		String pooled = strings.putIfAbsent(value, value);
+		return pooled == null ? value : pooled;
+	}
+
+	/**
+	 * @return number of distinct strings pooled
+	 */
+	public int size() {
+		return strings.size();
+	}
+}
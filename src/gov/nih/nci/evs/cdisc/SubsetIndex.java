@@ -0,0 +1,115 @@
+/* Reverse index of the Concept_In_Subset associations in an OWLKb.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Vector;
+
+
+import gov.nih.nci.evs.owl.data.OWLKb;
+import gov.nih.nci.evs.owl.entity.Association;
+import gov.nih.nci.evs.owl.entity.Relationship;
+import gov.nih.nci.evs.owl.proxy.ConceptProxy;
+
+/**
+ * Maps each subset (codelist) code to the codes of the concepts that are
+ * Concept_In_Subset of it. The whole KB is walked once when the index is built,
+ * after which membership of any codelist, under any root, is a hash lookup.
+ * Members keep the order in which the walk first saw them, so reports come
+ * out the same as the old per-root scan.
+ */
+public class SubsetIndex {
+
+	public static final String CONCEPT_IN_SUBSET = "Concept_In_Subset";
+	
+	private final HashMap<String,LinkedHashSet<String>> subset2Members = new HashMap<String,LinkedHashSet<String>>();
+	private int conceptCount = 0;
+	private int associationCount = 0;
+	
+	/**
+	 * An empty index, filled in with {@link #add(String, String)}.
+	 */
+	public SubsetIndex() {
+	}
+	
+	/**
+	 * @param kb
+	 * 			The KB to index
+	 */
+	public SubsetIndex(OWLKb kb) {
+		HashMap<URI,ConceptProxy> concepts = kb.getAllConcepts();
+		for( URI concept : concepts.keySet() ) {
+			conceptCount++;
+			Vector<Association> assocs = kb.getAssociationsForSource(concept);
+			for( Relationship assoc : assocs ) {
+				associationCount++;
+				if( assoc.getName().equals(CONCEPT_IN_SUBSET) ) {
+					add(assoc.getTarget().getCode(), assoc.getSource().getCode());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param subset
+	 * 			Code of the subset (codelist) concept
+	 * @param member
+	 * 			Code of the concept in the subset
+	 */
+	public void add(String subset, String member) {
+		LinkedHashSet<String> members = subset2Members.get(subset);
+		if( members == null ) {
+			members = new LinkedHashSet<String>();
+			subset2Members.put(subset, members);
+		}
+		members.add(member);
+	}
+	
+	/**
+	 * @param subset
+	 * 			Code of the subset (codelist) concept
+	 * @return the member codes in index order, empty if the subset has none
+	 */
+	public Set<String> getMembers(String subset) {
+		LinkedHashSet<String> members = subset2Members.get(subset);
+		if( members == null ) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(members);
+	}
+	
+	/**
+	 * @return codes of the subsets with at least one member
+	 */
+	public Set<String> getSubsets() {
+		return Collections.unmodifiableSet(subset2Members.keySet());
+	}
+	
+	/**
+	 * @return number of subsets with at least one member
+	 */
+	public int size() {
+		return subset2Members.size();
+	}
+	
+	/**
+	 * @return number of concepts walked while building the index
+	 */
+	public int getConceptCount() {
+		return conceptCount;
+	}
+	
+	/**
+	 * @return number of associations walked while building the index
+	 */
+	public int getAssociationCount() {
+		return associationCount;
+	}
+}
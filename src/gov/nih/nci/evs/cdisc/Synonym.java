@@ -0,0 +1,196 @@
+/* A FULL_SYN (P90) value with its qualifiers already read.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+
+import gov.nih.nci.evs.owl.entity.Property;
+import gov.nih.nci.evs.owl.entity.Qualifier;
+
+/**
+ * One synonym of a concept, classified by Term Source and Term Type, with its
+ * Source Codes. Where Term Source or Term Type is repeated the last value is
+ * kept, as the report has always done; every Source Code is kept, since a
+ * submission value is picked by any of them matching the codelist's NCI AB.
+ */
+public class Synonym {
+
+	private final String name;
+	private final String termSource;
+	private final String termGroup;
+	private final List<String> sourceCodes;
+	
+	/**
+	 * @param name
+	 * 			The synonym text
+	 * @param termSource
+	 * 			Term Source, "" if there is none
+	 * @param termGroup
+	 * 			Term Type, "" if there is none
+	 * @param sourceCodes
+	 * 			Source Codes in document order, empty if there are none
+	 */
+	public Synonym(String name, String termSource, String termGroup, List<String> sourceCodes) {
+		this.name = name;
+		this.termSource = termSource;
+		this.termGroup = termGroup;
+		this.sourceCodes = sourceCodes;
+	}
+	
+	/**
+	 * @param synonym
+	 * 			A P90 property
+	 * @return the synonym with its qualifiers classified
+	 */
+	public static Synonym fromProperty(Property synonym) {
+		return fromProperty(synonym, new StringPool());
+	}
+	
+	/**
+	 * @param synonym
+	 * 			A P90 property
+	 * @param pool
+	 * 			Where the text and qualifier values are shared with other synonyms
+	 * @return the synonym with its qualifiers classified
+	 */
+	public static Synonym fromProperty(Property synonym, StringPool pool) {
+		String termSource = "";
+		String termGroup = "";
+		List<String> sourceCodes = Collections.emptyList();
+		Vector<Qualifier> quals = synonym.getQualifiers();
+		for( Qualifier qual : quals ) {
+			if( qual.getName().equals("Term Source") ) {
+				termSource = qual.getValue();
+			}
+			if( qual.getName().equals("Term Type") ) {
+				termGroup = qual.getValue();
+			}
+			if( qual.getName().equals("Source Code") ) {
+				sourceCodes = add(sourceCodes, pool.intern(qual.getValue()));
+			}
+		}
+		return new Synonym(pool.intern(synonym.getValue()), pool.intern(termSource), pool.intern(termGroup), sourceCodes);
+	}
+	
+	/**
+	 * @param name
+	 * 			The synonym text
+	 * @param qualifiers
+	 * 			Qualifier name and value pairs, in document order
+	 * @return the synonym with its qualifiers classified
+	 */
+	public static Synonym fromQualifiers(String name, List<String[]> qualifiers) {
+		return fromQualifiers(name, qualifiers, new StringPool());
+	}
+	
+	/**
+	 * @param name
+	 * 			The synonym text
+	 * @param qualifiers
+	 * 			Qualifier name and value pairs, in document order
+	 * @param pool
+	 * 			Where the text and qualifier values are shared with other synonyms
+	 * @return the synonym with its qualifiers classified
+	 */
+	public static Synonym fromQualifiers(String name, List<String[]> qualifiers, StringPool pool) {
+		String termSource = "";
+		String termGroup = "";
+		List<String> sourceCodes = Collections.emptyList();
+		for( String[] qual : qualifiers ) {
+			if( qual[0].equals("Term Source") ) {
+				termSource = qual[1];
+			}
+			if( qual[0].equals("Term Type") ) {
+				termGroup = qual[1];
+			}
+			if( qual[0].equals("Source Code") ) {
+				sourceCodes = add(sourceCodes, pool.intern(qual[1]));
+			}
+		}
+		return new Synonym(pool.intern(name), pool.intern(termSource), pool.intern(termGroup), sourceCodes);
+	}
+	
+	/**
+	 * @param sourceCodes
+	 * 			The Source Codes so far, kept small since nearly every synonym has at most one
+	 * @param sourceCode
+	 * @return the list with the Source Code added
+	 */
+	static List<String> add(List<String> sourceCodes, String sourceCode) {
+		if( sourceCodes.isEmpty() ) {
+			return Collections.singletonList(sourceCode);
+		}
+		ArrayList<String> more = new ArrayList<String>(sourceCodes.size() + 1);
+		more.addAll(sourceCodes);
+		more.add(sourceCode);
+		return more;
+	}
+	
+	/**
+	 * @param source
+	 * 			Term Source, e.g. CDISC or NCI
+	 * @param group
+	 * 			Term Type, e.g. PT, SY or AB
+	 * @return true if the synonym has that source and type
+	 */
+	public boolean is(String source, String group) {
+		return termSource.equals(source) && termGroup.equals(group);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getTermSource() {
+		return termSource;
+	}
+	
+	public String getTermGroup() {
+		return termGroup;
+	}
+	
+	/**
+	 * @return the last Source Code, or null if there is none
+	 */
+	public String getSourceCode() {
+		return sourceCodes.isEmpty() ? null : sourceCodes.get(sourceCodes.size() - 1);
+	}
+	
+	/**
+	 * @return every Source Code, in document order
+	 */
+	public List<String> getSourceCodes() {
+		return sourceCodes;
+	}
+	
+	/**
+	 * @param code
+	 * 			A Source Code, e.g. a codelist's NCI AB
+	 * @return true if any of the synonym's Source Codes is that code
+	 */
+	public boolean hasSourceCode(String code) {
+		return sourceCodes.contains(code);
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if( !(other instanceof Synonym) ) {
+			return false;
+		}
+		Synonym synonym = (Synonym) other;
+		return name.equals(synonym.name) && termSource.equals(synonym.termSource)
+				&& termGroup.equals(synonym.termGroup) && sourceCodes.equals(synonym.sourceCodes);
+	}
+	
+	@Override
+	public int hashCode() {
+		return name.hashCode() * 31 + sourceCodes.hashCode();
+	}
+}
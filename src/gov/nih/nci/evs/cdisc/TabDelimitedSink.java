@@ -0,0 +1,75 @@
+/* Writes a CDISC report as tab delimited text.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * The &lt;root name&gt;.txt report: one line per row, cells separated by tabs.
+ */
+public class TabDelimitedSink implements ReportSink {
+
+	private final File file;
+	private final PrintWriter pw;
+	
+	/**
+	 * @param file
+	 * 			The file to write
+	 */
+	public TabDelimitedSink(File file) throws IOException {
+		this.file = file;
+		this.pw = new PrintWriter(file);
+	}
+	
+	/**
+	 * @param writer
+	 * 			Where to write the rows instead of a file, e.g. a server response
+	 */
+	public TabDelimitedSink(Writer writer) {
+		this.file = null;
+		this.pw = new PrintWriter(writer);
+	}
+	
+	/**
+	 * @return the file written, or null if writing to a Writer
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	public void header(String[] header) {
+		printRow(header);
+	}
+	
+	public void codelist(CodelistBlock block) {
+		printRow(block.getCodelistRow());
+		for( String[] row : block.getElementRows() ) {
+			printRow(row);
+		}
+	}
+	
+	public void close() throws IOException {
+		pw.close();
+		if( pw.checkError() ) {
+			throw new IOException("Couldn't write " + (file == null ? "report" : file));
+		}
+	}
+	
+	/**
+	 * @param row
+	 * 			Cells to write tab delimited, followed by a newline
+	 */
+	private void printRow(String[] row) {
+		for( int i = 0; i < row.length; i++ ) {
+			pw.print(row[i]);
+			if( i + 1 < row.length ) pw.print("\t");
+			else pw.print("\n");
+		}
+	}
+}
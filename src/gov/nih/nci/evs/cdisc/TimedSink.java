@@ -0,0 +1,62 @@
+/* Times the calls to another report sink.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.IOException;
+
+/**
+ * Passes everything on to a {@link ReportSink}, adding the time spent in it
+ * and the rows written to a {@link RunMetrics} phase, so the .txt and the
+ * .xls show up separately.
+ */
+public class TimedSink implements ReportSink {
+
+	private final ReportSink sink;
+	private final RunMetrics metrics;
+	private final String phase;
+
+	/**
+	 * @param sink
+	 * 			The sink to time
+	 * @param metrics
+	 * @param phase
+	 * 			The phase its time is added to
+	 */
+	public TimedSink(ReportSink sink, RunMetrics metrics, String phase) {
+		this.sink = sink;
+		this.metrics = metrics;
+		this.phase = phase;
+	}
+
+	public void header(String[] header) throws IOException {
+		RunMetrics.Timer timer = metrics.start(phase);
+		try {
+			sink.header(header);
+		} finally {
+			timer.stop();
+		}
+	}
+
+	public void codelist(CodelistBlock block) throws IOException {
+		RunMetrics.Timer timer = metrics.start(phase);
+		try {
+			sink.codelist(block);
+		} finally {
+			timer.stop();
+		}
+		metrics.count(phase, "rows", 1 + block.getElementRows().size());
+	}
+
+	public void close() throws IOException {
+		RunMetrics.Timer timer = metrics.start(phase);
+		try {
+			sink.close();
+		} finally {
+			timer.stop();
+		}
+		metrics.count(phase, "files", 1);
+	}
+}
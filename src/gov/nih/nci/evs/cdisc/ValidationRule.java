@@ -0,0 +1,47 @@
+/* A QA check run over an extracted CDISC model.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.util.List;
+
+/**
+ * One check {@link Validator} runs over a {@link CdiscModel}. The model is only
+ * read, and checkCodelist is called for the codelists of a root from several
+ * threads at once, so a rule must not keep state between calls. Rules outside
+ * this package are named by class with -rules and need a public no-argument
+ * constructor.
+ */
+public interface ValidationRule {
+
+	/**
+	 * @return the name -rules and the findings use for the rule
+	 */
+	public String getName();
+
+	/**
+	 * Checks across the codelists of a root, called once per root.
+	 *
+	 * @param model
+	 * @param root
+	 * 			The root concept code
+	 * @param findings
+	 * 			Where to add what is found
+	 */
+	public void checkRoot(CdiscModel model, String root, List<Finding> findings);
+
+	/**
+	 * Checks one codelist and its members.
+	 *
+	 * @param model
+	 * @param root
+	 * 			The root concept code
+	 * @param codelist
+	 * 			The codelist concept code
+	 * @param findings
+	 * 			Where to add what is found
+	 */
+	public void checkCodelist(CdiscModel model, String root, String codelist, List<Finding> findings);
+}
@@ -0,0 +1,204 @@
+/* Runs validation rules over an extracted CDISC model.
+ * NCI/EVS with CDISC
+ */
+
+package gov.nih.nci.evs.cdisc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs every {@link ValidationRule} over the roots of a model: the root checks
+ * once per root, the codelist checks for each codelist, spread over a thread
+ * pool. Only the model is read, so validating takes as long as extraction and
+ * nothing is rendered. Findings come back in root, codelist and rule order,
+ * whatever the number of threads. A rule that throws is reported as a finding
+ * rather than stopping the others.
+ */
+public class Validator {
+
+	private final ArrayList<ValidationRule> rules;
+	private final int threads;
+
+	/**
+	 * @param rules
+	 * 			The rules to run, in the order their findings are listed
+	 * @param threads
+	 * 			Number of codelists to check at once
+	 */
+	public Validator(List<ValidationRule> rules, int threads) {
+		this.rules = new ArrayList<ValidationRule>(rules);
+		this.threads = threads;
+	}
+
+	/**
+	 * @param spec
+	 * 			Comma separated rule names from {@link StandardRules}, or class names of other rules
+	 * @return the rules
+	 * @throws IllegalArgumentException if a rule can't be found or made
+	 */
+	public static ArrayList<ValidationRule> parseRules(String spec) {
+		ArrayList<ValidationRule> rules = new ArrayList<ValidationRule>();
+		for( String name : spec.split(",") ) {
+			name = name.trim();
+			ValidationRule rule = null;
+			for( ValidationRule standard : StandardRules.all() ) {
+				if( standard.getName().equalsIgnoreCase(name) ) {
+					rule = standard;
+				}
+			}
+			if( rule == null ) {
+				try {
+					rule = (ValidationRule) Class.forName(name).getDeclaredConstructor().newInstance();
+				} catch (Exception e) {
+					throw new IllegalArgumentException("Unknown rule " + name);
+				}
+			}
+			rules.add(rule);
+		}
+		return rules;
+	}
+
+	/**
+	 * @param model
+	 * 			A model with the roots extracted
+	 * @param roots
+	 * 			The roots to check
+	 * @return what the rules found
+	 */
+	public ArrayList<Finding> validate(final CdiscModel model, Collection<String> roots) {
+		ArrayList<Callable<List<Finding>>> tasks = new ArrayList<Callable<List<Finding>>>();
+		for( final String root : roots ) {
+			tasks.add(new Callable<List<Finding>>() {
+				public List<Finding> call() {
+					ArrayList<Finding> findings = new ArrayList<Finding>();
+					for( ValidationRule rule : rules ) {
+						try {
+							rule.checkRoot(model, root, findings);
+						} catch (RuntimeException e) {
+							findings.add(failed(rule, root, null, e));
+						}
+					}
+					return findings;
+				}
+			});
+			for( final String codelist : model.getCodelists(root) ) {
+				tasks.add(new Callable<List<Finding>>() {
+					public List<Finding> call() {
+						ArrayList<Finding> findings = new ArrayList<Finding>();
+						for( ValidationRule rule : rules ) {
+							try {
+								rule.checkCodelist(model, root, codelist, findings);
+							} catch (RuntimeException e) {
+								findings.add(failed(rule, root, codelist, e));
+							}
+						}
+						return findings;
+					}
+				});
+			}
+		}
+
+		ArrayList<Finding> findings = new ArrayList<Finding>();
+		if( threads <= 1 ) {
+			for( Callable<List<Finding>> task : tasks ) {
+				try {
+					findings.addAll(task.call());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return findings;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for( Future<List<Finding>> future : pool.invokeAll(tasks) ) {
+				findings.addAll(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while validating", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Validation failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return findings;
+	}
+
+	/**
+	 * Writes the findings as a JSON array if the file name ends in .json,
+	 * otherwise tab delimited with a header.
+	 *
+	 * @param findings
+	 * @param file
+	 */
+	public static void write(List<Finding> findings, File file) throws IOException {
+		PrintWriter pw = new PrintWriter(file, "UTF-8");
+		try {
+			if( file.getName().toLowerCase().endsWith(".json") ) {
+				pw.print("[");
+				for( int i = 0; i < findings.size(); i++ ) {
+					pw.print(i == 0 ? "\n  " : ",\n  ");
+					pw.print(findings.get(i).toJson());
+				}
+				pw.print("\n]\n");
+			}
+			else {
+				printRow(pw, Finding.HEADER);
+				for( Finding finding : findings ) {
+					printRow(pw, finding.toRow());
+				}
+			}
+		} finally {
+			pw.close();
+		}
+		if( pw.checkError() ) {
+			throw new IOException("Couldn't write " + file);
+		}
+	}
+
+	/**
+	 * @param findings
+	 * @return the number of findings by severity and rule, one line each
+	 */
+	public static String summary(List<Finding> findings) {
+		TreeMap<String,Integer> counts = new TreeMap<String,Integer>();
+		for( Finding finding : findings ) {
+			String key = finding.getSeverity() + " " + finding.getRule();
+			Integer count = counts.get(key);
+			counts.put(key, count == null ? 1 : count + 1);
+		}
+		StringBuilder sb = new StringBuilder();
+		for( Map.Entry<String,Integer> count : counts.entrySet() ) {
+			sb.append(String.format("%8d %s%n", count.getValue(), count.getKey()));
+		}
+		return sb.toString();
+	}
+
+	private static void printRow(PrintWriter pw, String[] row) {
+		for( int i = 0; i < row.length; i++ ) {
+			//Keep each finding on one line
+			pw.print(row[i].replace('\t', ' ').replace('\n', ' '));
+			if( i + 1 < row.length ) pw.print("\t");
+			else pw.print("\n");
+		}
+	}
+
+	private static Finding failed(ValidationRule rule, String root, String codelist, RuntimeException e) {
+		e.printStackTrace();
+		return new Finding(Finding.ERROR, rule.getName(), root, codelist, codelist, "Rule failed: " + e);
+	}
+}